@@ -0,0 +1,41 @@
+package edu.umich.mlib;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Synthetic page images for the benchmarks. The images are generated
+ * from a fixed seed so that every run measures the same pixels.
+ */
+class BenchImages
+{
+    private static final long SEED = 20200401L;
+
+    /**
+     * Parse a size parameter of the form WIDTHxHEIGHT.
+     */
+    static Dimension parseSize(
+            String size
+    )
+    {
+        String[] dims = size.toLowerCase().split("x");
+        return new Dimension(Integer.parseInt(dims[0]), Integer.parseInt(dims[1]));
+    }
+
+    /**
+     * Create a page-like image with CorpusGenerator, from the fixed seed.
+     *
+     * @param size The image size, WIDTHxHEIGHT.
+     * @param colorType One of rgb, gray, argb or bitonal.
+     * @return The image.
+     */
+    static BufferedImage create(
+            String size,
+            String colorType
+    )
+    {
+        Dimension dim = parseSize(size);
+        return CorpusGenerator.createImage(new Random(SEED), dim.width, dim.height, colorType);
+    }
+}
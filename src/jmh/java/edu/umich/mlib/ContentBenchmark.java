@@ -0,0 +1,60 @@
+package edu.umich.mlib;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a page content stream with processContent, as done by the
+ * shrink function, for pages with an increasing number of text lines.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ContentBenchmark
+{
+    @Param({ "50", "500" })
+    public int lineCount;
+
+    private PDDocument pdfDoc;
+    private PDPage page;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        pdfDoc = new PDDocument();
+        page = new PDPage();
+        pdfDoc.addPage(page);
+
+        PDPageContentStream cs = new PDPageContentStream(pdfDoc, page);
+        for (int i = 0; i < lineCount; i++) {
+            cs.beginText();
+            cs.setFont(i % 2 == 0 ? PDType1Font.HELVETICA : PDType1Font.TIMES_ROMAN, 10);
+            cs.newLineAtOffset(36, 756 - (i % 70) * 10);
+            cs.showText(String.format("Line %d of the benchmark page content stream.", i));
+            cs.endText();
+        }
+        cs.close();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        pdfDoc.close();
+    }
+
+    @Benchmark
+    public PDPage processContent() throws IOException
+    {
+        PdfUtil.processContent(page);
+        return page;
+    }
+}
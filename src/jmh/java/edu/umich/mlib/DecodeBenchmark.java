@@ -0,0 +1,60 @@
+package edu.umich.mlib;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding image XObjects with PDImageXObject.getImage for each of the
+ * filters found in the books: DCT, Flate, JPX and JBIG2.
+ * <p>
+ * The source parameter is the filter and color type of the image.
+ * The images are encoded as by the generate function, see
+ * CorpusGenerator.createImageXObject.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DecodeBenchmark
+{
+    @Param({ "1200x1600", "2400x3200" })
+    public String size;
+
+    @Param({ "dct-rgb", "dct-gray", "flate-rgb", "flate-gray", "jpx-rgb", "jpx-gray", "jbig2-bitonal" })
+    public String source;
+
+    private PDDocument pdfDoc;
+    private PDImageXObject imageObj;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        String filter = source.substring(0, source.indexOf('-'));
+        String colorType = source.substring(source.indexOf('-') + 1);
+        BufferedImage image = BenchImages.create(size, colorType);
+
+        pdfDoc = new PDDocument();
+        imageObj = CorpusGenerator.createImageXObject(pdfDoc, image, filter);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        pdfDoc.close();
+    }
+
+    @Benchmark
+    public BufferedImage getImage() throws IOException
+    {
+        // A new XObject each time, as the decoded image is cached.
+        return new PDImageXObject(imageObj.getStream(), null).getImage();
+    }
+}
@@ -0,0 +1,65 @@
+package edu.umich.mlib;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating an image XObject from a raster: the lossless (Flate)
+ * encoding used by construct and resize against JPEG encoding.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EncodeBenchmark
+{
+    @Param({ "1200x1600", "2400x3200" })
+    public String size;
+
+    @Param({ "rgb", "gray", "bitonal" })
+    public String colorType;
+
+    private BufferedImage image;
+    private PDDocument pdfDoc;
+
+    @Setup
+    public void setup()
+    {
+        image = BenchImages.create(size, colorType);
+    }
+
+    // The encoded streams are held by the document, so a new one is
+    // used for each iteration.
+    @Setup(Level.Iteration)
+    public void openDocument()
+    {
+        pdfDoc = new PDDocument();
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeDocument() throws IOException
+    {
+        pdfDoc.close();
+    }
+
+    @Benchmark
+    public PDImageXObject lossless() throws IOException
+    {
+        return LosslessFactory.createFromImage(pdfDoc, image);
+    }
+
+    @Benchmark
+    public PDImageXObject jpeg() throws IOException
+    {
+        return JPEGFactory.createFromImage(pdfDoc, image, 0.7f);
+    }
+}
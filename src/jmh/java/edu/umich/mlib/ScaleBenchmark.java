@@ -0,0 +1,73 @@
+package edu.umich.mlib;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Image scaling: the single and multi-step Graphics2D scaling of
+ * getScaledInstance, the separable ImageResampler, and the dimension
+ * computation of getScaledDimension.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ScaleBenchmark
+{
+    @Param({ "1200x1600", "2400x3200" })
+    public String size;
+
+    @Param({ "rgb", "gray", "argb" })
+    public String colorType;
+
+    @Param({ "50", "80" })
+    public int resizePct;
+
+    private BufferedImage image;
+    private Dimension imageDim;
+    private Dimension newDim;
+
+    @Setup
+    public void setup()
+    {
+        image = BenchImages.create(size, colorType);
+        imageDim = new Dimension(image.getWidth(), image.getHeight());
+        newDim = PdfUtil.getScaledDimension(imageDim, new Dimension(
+                image.getWidth() * resizePct / 100,
+                image.getHeight() * resizePct / 100));
+    }
+
+    @Benchmark
+    public BufferedImage scaledInstanceSingleStep()
+    {
+        return PdfUtil.getScaledInstance(image, newDim.width, newDim.height,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR, false);
+    }
+
+    @Benchmark
+    public BufferedImage scaledInstanceMultiStep()
+    {
+        return PdfUtil.getScaledInstance(image, newDim.width, newDim.height,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR, true);
+    }
+
+    @Benchmark
+    public BufferedImage resampler()
+    {
+        return ImageResampler.resample(image, newDim.width, newDim.height);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Dimension scaledDimension()
+    {
+        return PdfUtil.getScaledDimension(imageDim, new Dimension(
+                imageDim.width * resizePct / 100,
+                imageDim.height * resizePct / 100));
+    }
+}
@@ -0,0 +1,424 @@
+package edu.umich.mlib;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The files of a batch, each with its own functions and options, read
+ * from a CSV or JSON lines manifest.
+ * <p>
+ * A CSV manifest has the columns file and command, with an optional
+ * header row. A JSON lines manifest, with the extension .jsonl or .json,
+ * has an object per line with the fields file and command, where the
+ * command may also be an array with an element per function. A command
+ * is one or more functions with their options, separated by ';', such
+ * as:
+ * </p>
+ * <pre>
+ * 39015000323371.pdf,"optimize -r 60 -l 50; cover -p 3 -c png"
+ * {"file": "39015000323371.pdf", "command": ["optimize -r 60 -l 50", "cover -p 3 -c png"]}
+ * </pre>
+ * <p>
+ * Options containing spaces are quoted within the command. Relative
+ * file paths are relative to the manifest directory. Blank lines and
+ * lines starting with '#' are ignored.
+ * </p>
+ */
+public class BatchManifest
+{
+    /**
+     * A file and the functions to run on it.
+     */
+    public static class Job
+    {
+        public int lineNumber;
+        public String fileName;
+        public List<List<String>> steps;
+    }
+
+    /**
+     * Read a manifest.
+     *
+     * @param manifestFile The manifest.
+     * @return The jobs, in the order listed.
+     */
+    public static List<Job> load(
+            File manifestFile
+    ) throws Exception
+    {
+        String name = manifestFile.getName().toLowerCase();
+        boolean json = name.endsWith(".jsonl") || name.endsWith(".json");
+        File baseDir = manifestFile.getAbsoluteFile().getParentFile();
+
+        List<Job> jobList = new ArrayList<>();
+        List<String> lines = FileUtils.readLines(manifestFile, StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            int lineNumber = i + 1;
+            String fileName;
+            List<String> commandList = new ArrayList<>();
+            try {
+                if (json) {
+                    Object value = new JsonParser(line).parse();
+                    if (!(value instanceof Map)) {
+                        throw new IllegalArgumentException("expected an object");
+                    }
+                    Map<?, ?> object = (Map<?, ?>) value;
+                    fileName = object.get("file") instanceof String ? (String) object.get("file") : null;
+                    Object command = object.get("command");
+                    if (command instanceof String) {
+                        commandList.add((String) command);
+                    } else if (command instanceof List) {
+                        for (Object step : (List<?>) command) {
+                            commandList.add(String.valueOf(step));
+                        }
+                    }
+                } else {
+                    List<String> fields = splitCSV(line);
+                    // Header row.
+                    if (jobList.isEmpty() && fields.get(0).equalsIgnoreCase("file")) {
+                        continue;
+                    }
+                    if (fields.size() != 2) {
+                        throw new IllegalArgumentException("expected the columns file and command");
+                    }
+                    fileName = fields.get(0);
+                    commandList.add(fields.get(1));
+                }
+            } catch (IllegalArgumentException e) {
+                throw new Exception(String.format("Error: invalid manifest line %d: %s.",
+                        lineNumber, e.getLocalizedMessage()));
+            }
+            if (fileName == null || fileName.isEmpty()) {
+                throw new Exception(String.format("Error: no file on manifest line %d.", lineNumber));
+            }
+
+            Job job = new Job();
+            job.lineNumber = lineNumber;
+            File file = new File(fileName);
+            job.fileName = file.isAbsolute() ? fileName : new File(baseDir, fileName).getPath();
+            job.steps = new ArrayList<>();
+            for (String command : commandList) {
+                job.steps.addAll(splitCommand(command));
+            }
+            if (job.steps.isEmpty()) {
+                throw new Exception(String.format("Error: no command on manifest line %d.", lineNumber));
+            }
+            for (List<String> step : job.steps) {
+                PdfUtil.FuncCode funcCode = PdfUtil.getFuncCode(step.get(0));
+                if (funcCode == null || funcCode == PdfUtil.FuncCode.BATCH
+                        || funcCode == PdfUtil.FuncCode.SERVE || funcCode == PdfUtil.FuncCode.WATCH) {
+                    throw new Exception(String.format("Error: invalid function name \"%s\" on manifest line %d.",
+                            step.get(0), lineNumber));
+                }
+            }
+            jobList.add(job);
+        }
+        return jobList;
+    }
+
+    /**
+     * Split a command into functions, separated by ';', and each function
+     * into its name and options, separated by spaces. Quoted text is kept
+     * together.
+     */
+    static List<List<String>> splitCommand(
+            String command
+    )
+    {
+        List<List<String>> steps = new ArrayList<>();
+        List<String> step = new ArrayList<>();
+        StringBuilder token = null;
+        char quote = 0;
+        for (int i = 0; i < command.length(); i++) {
+            char c = command.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    token.append(c);
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+                token = token == null ? new StringBuilder() : token;
+            } else if (Character.isWhitespace(c) || c == ';') {
+                if (token != null) {
+                    step.add(token.toString());
+                    token = null;
+                }
+                if (c == ';' && !step.isEmpty()) {
+                    steps.add(step);
+                    step = new ArrayList<>();
+                }
+            } else {
+                token = token == null ? new StringBuilder() : token;
+                token.append(c);
+            }
+        }
+        if (quote != 0) {
+            throw new IllegalArgumentException("unterminated quote in command");
+        }
+        if (token != null) {
+            step.add(token.toString());
+        }
+        if (!step.isEmpty()) {
+            steps.add(step);
+        }
+        return steps;
+    }
+
+    /**
+     * Split a CSV line into fields, with '"' quoting and "" for a quote.
+     */
+    private static List<String> splitCSV(
+            String line
+    )
+    {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("unterminated quote");
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+
+    /**
+     * Minimal JSON parser for the manifest lines: objects become maps,
+     * arrays lists, numbers doubles.
+     */
+    private static class JsonParser
+    {
+        private final String text;
+        private int pos = 0;
+
+        JsonParser(
+                String text
+        )
+        {
+            this.text = text;
+        }
+
+        Object parse()
+        {
+            Object value = parseValue();
+            skipWhitespace();
+            if (pos < text.length()) {
+                throw error("unexpected text");
+            }
+            return value;
+        }
+
+        private Object parseValue()
+        {
+            skipWhitespace();
+            if (pos >= text.length()) {
+                throw error("unexpected end");
+            }
+            char c = text.charAt(pos);
+            switch (c) {
+                case '{':
+                    return parseObject();
+                case '[':
+                    return parseArray();
+                case '"':
+                    return parseString();
+                case 't':
+                    return parseLiteral("true", Boolean.TRUE);
+                case 'f':
+                    return parseLiteral("false", Boolean.FALSE);
+                case 'n':
+                    return parseLiteral("null", null);
+                default:
+                    return parseNumber();
+            }
+        }
+
+        private Map<String, Object> parseObject()
+        {
+            Map<String, Object> object = new LinkedHashMap<>();
+            pos++;
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') {
+                    throw error("expected a field name");
+                }
+                String key = parseString();
+                skipWhitespace();
+                expect(':');
+                object.put(key, parseValue());
+                skipWhitespace();
+                if (peek() == ',') {
+                    pos++;
+                } else {
+                    expect('}');
+                    return object;
+                }
+            }
+        }
+
+        private List<Object> parseArray()
+        {
+            List<Object> array = new ArrayList<>();
+            pos++;
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+                return array;
+            }
+            while (true) {
+                array.add(parseValue());
+                skipWhitespace();
+                if (peek() == ',') {
+                    pos++;
+                } else {
+                    expect(']');
+                    return array;
+                }
+            }
+        }
+
+        private String parseString()
+        {
+            StringBuilder value = new StringBuilder();
+            pos++;
+            while (pos < text.length()) {
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (pos >= text.length()) {
+                    break;
+                }
+                char e = text.charAt(pos++);
+                switch (e) {
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > text.length()) {
+                            throw error("invalid escape");
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException ex) {
+                            throw error("invalid escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        value.append(e);
+                        break;
+                }
+            }
+            throw error("unterminated string");
+        }
+
+        private Object parseLiteral(
+                String literal,
+                Object value
+        )
+        {
+            if (!text.startsWith(literal, pos)) {
+                throw error("unexpected text");
+            }
+            pos += literal.length();
+            return value;
+        }
+
+        private Double parseNumber()
+        {
+            int start = pos;
+            while (pos < text.length() && "+-.eE0123456789".indexOf(text.charAt(pos)) != -1) {
+                pos++;
+            }
+            try {
+                return Double.valueOf(text.substring(start, pos));
+            } catch (NumberFormatException e) {
+                throw error("unexpected text");
+            }
+        }
+
+        private void expect(
+                char c
+        )
+        {
+            if (peek() != c) {
+                throw error(String.format("expected '%c'", c));
+            }
+            pos++;
+        }
+
+        private char peek()
+        {
+            return pos < text.length() ? text.charAt(pos) : 0;
+        }
+
+        private void skipWhitespace()
+        {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error(
+                String message
+        )
+        {
+            return new IllegalArgumentException(String.format("%s at column %d", message, pos + 1));
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package edu.umich.mlib;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs functions on many independent files concurrently.
+ * <p>
+ * Each file is processed by separate invocations of its functions, in
+ * order, on a bounded pool of threads, so that a failure only affects
+ * its own file. The messages of each file are buffered and displayed
+ * together once the file is completed, and a summary of all files is
+ * displayed at the end.
+ * </p>
+ * <p>
+ * With a lease timeout, several hosts may process the same files: each
+ * file is claimed with a FileLease before it is processed, and files
+ * held or completed by another host are skipped.
+ * </p>
+ */
+public class BatchRunner
+{
+    private final int threadCount;
+    private final List<Result> results = new ArrayList<>();
+    private long leaseTimeoutMillis = 0;
+    private boolean retryFailed = false;
+    private final Set<FileLease> activeLeases = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The outcome of a file.
+     */
+    public static class Result
+    {
+        public String fileName;
+        public boolean failed;
+        // Held or completed by another host.
+        public boolean skipped;
+        public String message = "";
+        public double seconds;
+        // The arguments of each function, ending with the file.
+        private final List<String[]> steps = new ArrayList<>();
+        private Future<?> future;
+
+        /**
+         * @param fileName The file.
+         * @param steps The name and options of each function to run
+         *              on the file, in order.
+         */
+        public Result(
+                String fileName,
+                List<List<String>> steps
+        )
+        {
+            this.fileName = fileName;
+            for (List<String> step : steps) {
+                List<String> args = new ArrayList<>(step);
+                args.add(fileName);
+                this.steps.add(args.toArray(new String[0]));
+            }
+        }
+
+        /**
+         * @return The functions and their options, separated by ';'.
+         */
+        public String getCommand()
+        {
+            StringBuilder command = new StringBuilder();
+            for (String[] args : steps) {
+                command.append(command.length() == 0 ? "" : "; ");
+                command.append(String.join(" ", Arrays.asList(args).subList(0, args.length - 1)));
+            }
+            return command.toString();
+        }
+    }
+
+    /**
+     * @param threadCount The number of files processed at once.
+     */
+    public BatchRunner(
+            int threadCount
+    )
+    {
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * Claim each file with a lease before processing it.
+     *
+     * @param leaseTimeoutMillis The time after which a lease without
+     *                           update is stale, or 0 for no leases.
+     */
+    public void setLeaseTimeout(
+            long leaseTimeoutMillis
+    )
+    {
+        this.leaseTimeoutMillis = leaseTimeoutMillis;
+    }
+
+    /**
+     * Claim again the files that failed with the same command on a
+     * previous run.
+     *
+     * @param retryFailed Whether failed files are processed again.
+     */
+    public void setRetryFailed(
+            boolean retryFailed
+    )
+    {
+        this.retryFailed = retryFailed;
+    }
+
+    /**
+     * Add a file to process.
+     *
+     * @param fileName The file.
+     * @param steps The name and options of each function to run on the
+     *              file, in order.
+     */
+    public void add(
+            String fileName,
+            List<List<String>> steps
+    )
+    {
+        results.add(new Result(fileName, steps));
+    }
+
+    /**
+     * Process the files and wait for all to complete.
+     *
+     * @return The number of failed files.
+     */
+    public int run() throws InterruptedException
+    {
+        ThreadOutput threadOutput = ThreadOutput.install();
+        // The messages of each file are displayed on the output of the caller.
+        OutputStream callerOut = threadOutput.getThreadOutput();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threadCount, results.size())),
+                CodecPool.threadFactory());
+        ScheduledExecutorService heartbeat = null;
+        if (leaseTimeoutMillis > 0) {
+            long period = Math.max(1, leaseTimeoutMillis / 4);
+            heartbeat = Executors.newSingleThreadScheduledExecutor();
+            heartbeat.scheduleAtFixedRate(this::heartbeat, period, period, TimeUnit.MILLISECONDS);
+        }
+        try {
+            for (Result result : results) {
+                result.future = pool.submit(() -> {
+                    if (leaseTimeoutMillis > 0) {
+                        processLeased(result, threadOutput, callerOut);
+                    } else {
+                        process(result, threadOutput, callerOut);
+                    }
+                });
+            }
+
+            for (Result result : results) {
+                try {
+                    result.future.get();
+                } catch (ExecutionException e) {
+                    // Errors, such as running out of memory, are not caught by process.
+                    result.failed = true;
+                    result.message = e.getCause().toString();
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            if (heartbeat != null) {
+                heartbeat.shutdownNow();
+            }
+        }
+
+        int failedCount = 0;
+        for (Result result : results) {
+            failedCount += result.failed ? 1 : 0;
+        }
+        return failedCount;
+    }
+
+    /**
+     * @return The outcome of each file, in the order added.
+     */
+    public List<Result> getResults()
+    {
+        return results;
+    }
+
+    /**
+     * Display a line for each file and the totals.
+     *
+     * @param seconds The elapsed time of the batch.
+     */
+    public void printSummary(
+            double seconds
+    )
+    {
+        int failedCount = 0;
+        int skippedCount = 0;
+        System.out.println("Batch summary:");
+        System.out.printf("%-7s %9s  %s\n", "Status", "Seconds", "File");
+        for (Result result : results) {
+            failedCount += result.failed ? 1 : 0;
+            skippedCount += result.skipped ? 1 : 0;
+            System.out.printf("%-7s %9.1f  %s%s\n", getStatus(result), result.seconds, result.fileName,
+                    result.message.isEmpty() ? "" : "  " + result.message);
+        }
+        System.out.printf("Files: %d, succeeded: %d, failed: %d, skipped: %d, seconds: %.1f\n",
+                results.size(), results.size() - failedCount - skippedCount, failedCount, skippedCount, seconds);
+    }
+
+    /**
+     * Write the outcome of each file as CSV, with the columns file,
+     * command, status, seconds and message.
+     *
+     * @param resultsFile The results file.
+     */
+    public void writeResults(
+            File resultsFile
+    ) throws IOException
+    {
+        StringBuilder csv = new StringBuilder("file,command,status,seconds,message\n");
+        for (Result result : results) {
+            csv.append(csvField(result.fileName)).append(',')
+                    .append(csvField(result.getCommand())).append(',')
+                    .append(getStatus(result)).append(',')
+                    .append(String.format("%.3f", result.seconds)).append(',')
+                    .append(csvField(result.message)).append('\n');
+        }
+        FileUtils.writeStringToFile(resultsFile, csv.toString(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Run the functions of a file in order, stopping at the first that
+     * fails, record its outcome, and write its messages to an output
+     * stream once completed.
+     *
+     * @param result The file and its functions.
+     * @param threadOutput The installed ThreadOutput.
+     * @param callerOut The stream for the messages.
+     */
+    static void process(
+            Result result,
+            ThreadOutput threadOutput,
+            OutputStream callerOut
+    )
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        threadOutput.setThreadOutput(buffer);
+        long start = System.nanoTime();
+        try {
+            for (String[] args : result.steps) {
+                PdfUtil.FuncCode funcCode = PdfUtil.getFuncCode(args[0]);
+                if (funcCode == null) {
+                    throw new Exception(String.format("Error: invalid function name \"%s\".", args[0]));
+                }
+                int exitCode = PdfUtil.execute(funcCode, args);
+                if (exitCode != 0) {
+                    result.failed = true;
+                    result.message = String.format("Error: %s exit code %d.", args[0], exitCode);
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            result.failed = true;
+            result.message = e.getLocalizedMessage() == null ? e.toString() : e.getLocalizedMessage();
+            System.out.println(result.message);
+        } finally {
+            result.seconds = (System.nanoTime() - start) / 1e9;
+            threadOutput.setThreadOutput(null);
+            byte[] output = buffer.toByteArray();
+            synchronized (callerOut) {
+                try {
+                    callerOut.write(output);
+                    // Keep the messages of the next file on their own line.
+                    if (output.length > 0 && output[output.length - 1] != '\n') {
+                        callerOut.write('\n');
+                    }
+                    callerOut.flush();
+                } catch (IOException e) {
+                    // The caller is gone, the result remains in the summary.
+                }
+            }
+        }
+    }
+
+    /**
+     * Claim a file, process it and write its completion marker, or skip
+     * it if held or completed by another host.
+     */
+    private void processLeased(
+            Result result,
+            ThreadOutput threadOutput,
+            OutputStream callerOut
+    )
+    {
+        Path file = Paths.get(result.fileName);
+        FileLease lease = null;
+        // A missing file fails without a lease.
+        if (Files.isRegularFile(file)) {
+            try {
+                lease = FileLease.claim(file, result.getCommand(), retryFailed, leaseTimeoutMillis);
+            } catch (IOException e) {
+                result.failed = true;
+                result.message = String.format("Error: lease of \"%s\": %s", file, e.getLocalizedMessage());
+                return;
+            }
+            if (lease == null) {
+                Path marker = FileLease.getMarker(file, result.getCommand(), retryFailed);
+                result.skipped = true;
+                result.message = marker != null ?
+                        String.format("Completed, see \"%s\".", marker.getFileName()) :
+                        String.format("Held by %s.", FileLease.getHolder(file));
+                return;
+            }
+            activeLeases.add(lease);
+        }
+
+        process(result, threadOutput, callerOut);
+
+        if (lease != null) {
+            activeLeases.remove(lease);
+            try {
+                // Another host may have processed the file since, its
+                // marker stands.
+                if (!lease.complete(result.failed, result.failed ? result.message : "")) {
+                    result.failed = true;
+                    result.message = "Error: lease lost to another host, no marker written.";
+                }
+            } catch (IOException e) {
+                System.out.printf("Error: marker of \"%s\": %s\n", file, e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private void heartbeat()
+    {
+        for (FileLease lease : activeLeases) {
+            try {
+                if (!lease.heartbeat()) {
+                    activeLeases.remove(lease);
+                    System.out.printf("Error: lease of \"%s\" lost to another host.\n", lease.getFile());
+                }
+            } catch (IOException e) {
+                System.out.printf("Error: %s\n", e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private static String getStatus(
+            Result result
+    )
+    {
+        return result.failed ? "failed" : (result.skipped ? "skipped" : "ok");
+    }
+
+    private static String csvField(
+            String value
+    )
+    {
+        if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,170 @@
+package edu.umich.mlib;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.filter.Filter;
+import org.apache.pdfbox.filter.FilterFactory;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Detects images that are effectively black and white and encodes
+ * them as CCITT Group 4.
+ * <p>
+ * Detection samples the image on a grid and builds a histogram of the
+ * luminance. An image is bitonal if nearly all samples are close to
+ * black or white and nearly none are colored. The encoding thresholds
+ * the image at mid gray and compresses the packed rows with the PDFBox
+ * CCITTFax encoder, so it may run on a worker thread. The XObject is
+ * created separately as it adds a stream to the document.
+ * </p>
+ */
+public class BitonalEncoder
+{
+    // Maximum number of pixels sampled for detection.
+    private static final int MAX_SAMPLES = 64 * 1024;
+
+    // Luminance at or below DARK is black, at or above LIGHT is white.
+    private static final int DARK = 64;
+    private static final int LIGHT = 192;
+
+    // Channel spread above which a sample is colored.
+    private static final int CHROMA = 40;
+
+    // Maximum % of gray and colored samples. Few gray samples are
+    // allowed so that halftones and soft figures keep their tones.
+    private static final double MAX_GRAY_PCT = 1.0;
+    private static final double MAX_COLOR_PCT = 1.0;
+
+    /**
+     * Determine whether an image is effectively bitonal.
+     *
+     * @param image The image.
+     * @return true if the image can be encoded as 1-bit.
+     */
+    public static boolean isBitonal(
+            BufferedImage image
+    )
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int step = (int) Math.ceil(Math.sqrt((double) width * height / MAX_SAMPLES));
+        step = step < 1 ? 1 : step;
+
+        int[] histogram = new int[256];
+        int samples = 0;
+        int colored = 0;
+        int[] row = new int[width];
+        for (int y = step / 2; y < height; y += step) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = step / 2; x < width; x += step) {
+                int rgb = row[x];
+                int r = (rgb >> 16) & 0xFF;
+                int g = (rgb >> 8) & 0xFF;
+                int b = rgb & 0xFF;
+                if (Math.max(r, Math.max(g, b)) - Math.min(r, Math.min(g, b)) > CHROMA) {
+                    colored += 1;
+                }
+                histogram[luminance(r, g, b)] += 1;
+                samples += 1;
+            }
+        }
+        if (samples == 0) {
+            return false;
+        }
+
+        int gray = 0;
+        for (int i = DARK + 1; i < LIGHT; i++) {
+            gray += histogram[i];
+        }
+        return gray * 100.0 / samples <= MAX_GRAY_PCT && colored * 100.0 / samples <= MAX_COLOR_PCT;
+    }
+
+    /**
+     * Threshold an image and encode it as CCITT Group 4.
+     *
+     * @param image The image.
+     * @return The encoded data.
+     */
+    public static byte[] encode(
+            BufferedImage image
+    ) throws IOException
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int rowBytes = (width + 7) / 8;
+
+        // Pack the rows with black as 1, the same as CCITTFactory,
+        // so that /BlackIs1 is not needed.
+        byte[] packed = new byte[rowBytes * height];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            int offset = y * rowBytes;
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x];
+                if (luminance((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF) < 128) {
+                    packed[offset + (x >> 3)] |= (byte) (0x80 >> (x & 7));
+                }
+            }
+        }
+
+        COSDictionary parms = new COSDictionary();
+        parms.setInt(COSName.COLUMNS, width);
+        parms.setInt(COSName.ROWS, height);
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(packed.length / 8);
+        Filter encoder = FilterFactory.INSTANCE.getFilter(COSName.CCITTFAX_DECODE);
+        encoder.encode(new ByteArrayInputStream(packed), encoded, parms, 0);
+        return encoded.toByteArray();
+    }
+
+    /**
+     * Create a CCITTFaxDecode image XObject from encoded data.
+     *
+     * @param pdfDoc The document.
+     * @param encoded The Group 4 data.
+     * @param width The image width.
+     * @param height The image height.
+     * @return The image XObject.
+     */
+    public static PDImageXObject createXObject(
+            PDDocument pdfDoc,
+            byte[] encoded,
+            int width,
+            int height
+    ) throws IOException
+    {
+        PDImageXObject imageObj = new PDImageXObject(
+                pdfDoc,
+                new ByteArrayInputStream(encoded),
+                COSName.CCITTFAX_DECODE,
+                width,
+                height,
+                1,
+                PDDeviceGray.INSTANCE
+        );
+
+        COSDictionary parms = new COSDictionary();
+        parms.setInt(COSName.K, -1);
+        parms.setInt(COSName.COLUMNS, width);
+        parms.setInt(COSName.ROWS, height);
+        imageObj.getCOSObject().setItem(COSName.DECODE_PARMS, parms);
+        return imageObj;
+    }
+
+    private static int luminance(
+            int r,
+            int g,
+            int b
+    )
+    {
+        return (r * 299 + g * 587 + b * 114) / 1000;
+    }
+}
@@ -0,0 +1,81 @@
+package edu.umich.mlib;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+
+/**
+ * Detects color images in which every pixel is a neutral gray and
+ * reduces them to a single gray component.
+ * <p>
+ * A pixel is neutral when its red, green and blue samples differ by no
+ * more than the tolerance. Detection makes one pass over the raster and
+ * stops at the first colored pixel. CMYK images are seen as RGB, as
+ * returned by the PDFBox decoder.
+ * </p>
+ */
+public class ChannelReducer
+{
+    /**
+     * Determine whether a color image contains only neutral pixels.
+     *
+     * @param image The image.
+     * @param tolerance The maximum difference between components.
+     * @return true if the image has more than one color component
+     *         and all its pixels are neutral.
+     */
+    public static boolean isNeutral(
+            BufferedImage image,
+            int tolerance
+    )
+    {
+        if (image.getColorModel().getNumColorComponents() < 2) {
+            return false;
+        }
+
+        int width = image.getWidth();
+        int[] row = new int[width];
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x];
+                int r = (rgb >> 16) & 0xFF;
+                int g = (rgb >> 8) & 0xFF;
+                int b = rgb & 0xFF;
+                if (Math.abs(r - g) > tolerance || Math.abs(g - b) > tolerance || Math.abs(r - b) > tolerance) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Convert an image to an 8-bit gray image using the luminance of
+     * each pixel. The samples are computed directly rather than by a
+     * color conversion, which would alter the gray levels.
+     *
+     * @param image The image.
+     * @return The gray image.
+     */
+    public static BufferedImage toGray(
+            BufferedImage image
+    )
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BufferedImage grayImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster raster = grayImage.getRaster();
+
+        int[] row = new int[width];
+        int[] grayRow = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x];
+                grayRow[x] = (((rgb >> 16) & 0xFF) * 299 + ((rgb >> 8) & 0xFF) * 587 + (rgb & 0xFF) * 114 + 500) / 1000;
+            }
+            raster.setSamples(0, y, width, 1, 0, grayRow);
+        }
+        return grayImage;
+    }
+}
@@ -0,0 +1,216 @@
+package edu.umich.mlib;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Reusable ImageIO readers and writers, held per thread.
+ * <p>
+ * Looking up the ImageIO service providers and setting up a codec is
+ * significant for small images, so each thread keeps the readers and
+ * writers it has used, with their parameters, and reuses them for the
+ * following images. A reader or writer is obtained before an image and
+ * released after it, which resets it; it must not be disposed. The
+ * threads of a pool created with threadFactory dispose their codecs
+ * when they exit. The number of codecs created and reused is counted
+ * for the whole JVM.
+ * </p>
+ */
+public class CodecPool
+{
+    // Readers by provider and writers by suffix, of the current thread.
+    private static final ThreadLocal<List<ImageReader>> READERS = ThreadLocal.withInitial(ArrayList::new);
+    private static final ThreadLocal<Map<String, ImageWriter>> WRITERS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<Object, Object>> PARAMS = ThreadLocal.withInitial(HashMap::new);
+
+    private static final AtomicLong readersCreated = new AtomicLong();
+    private static final AtomicLong readersReused = new AtomicLong();
+    private static final AtomicLong writersCreated = new AtomicLong();
+    private static final AtomicLong writersReused = new AtomicLong();
+
+    /**
+     * Return a reader for an image stream, reusing a reader of this
+     * thread whose provider can decode it.
+     *
+     * @param iis The image stream.
+     * @return The reader, or null if no provider can decode the stream.
+     */
+    public static ImageReader getReader(
+            ImageInputStream iis
+    ) throws IOException
+    {
+        List<ImageReader> readerList = READERS.get();
+        for (ImageReader reader : readerList) {
+            ImageReaderSpi provider = reader.getOriginatingProvider();
+            if (provider != null && provider.canDecodeInput(iis)) {
+                readersReused.incrementAndGet();
+                return reader;
+            }
+        }
+
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        readersCreated.incrementAndGet();
+        if (reader.getOriginatingProvider() != null) {
+            readerList.add(reader);
+        }
+        return reader;
+    }
+
+    /**
+     * Return a writer for an image file suffix, reusing the writer of
+     * this thread for the suffix.
+     *
+     * @param suffix The file suffix, such as jpg.
+     * @return The writer.
+     * @throws IllegalArgumentException if no writer handles the suffix.
+     */
+    public static ImageWriter getWriter(
+            String suffix
+    )
+    {
+        Map<String, ImageWriter> writerMap = WRITERS.get();
+        ImageWriter writer = writerMap.get(suffix);
+        if (writer != null) {
+            writersReused.incrementAndGet();
+            return writer;
+        }
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(suffix);
+        if (!writers.hasNext()) {
+            throw new IllegalArgumentException(String.format("no image writer for \"%s\"", suffix));
+        }
+        writer = writers.next();
+        writersCreated.incrementAndGet();
+        writerMap.put(suffix, writer);
+        return writer;
+    }
+
+    /**
+     * Return the read parameters of a reader of this thread, created
+     * on first use. The parameters set by the caller are kept.
+     *
+     * @param reader The reader.
+     * @param factory Creates the parameters.
+     * @return The parameters.
+     */
+    public static <T extends ImageReadParam> T getReadParam(
+            ImageReader reader,
+            Supplier<T> factory
+    )
+    {
+        return getParam(reader, factory);
+    }
+
+    /**
+     * Return the write parameters of a writer of this thread, created
+     * on first use. The parameters set by the caller are kept.
+     *
+     * @param writer The writer.
+     * @param factory Creates the parameters.
+     * @return The parameters.
+     */
+    public static <T extends ImageWriteParam> T getWriteParam(
+            ImageWriter writer,
+            Supplier<T> factory
+    )
+    {
+        return getParam(writer, factory);
+    }
+
+    /**
+     * Reset a reader once an image is read. Its input stream is not
+     * closed.
+     */
+    public static void release(
+            ImageReader reader
+    )
+    {
+        if (reader.getOriginatingProvider() == null) {
+            reader.dispose();
+        } else {
+            reader.reset();
+        }
+    }
+
+    /**
+     * Reset a writer once an image is written. Its output stream is not
+     * closed.
+     */
+    public static void release(
+            ImageWriter writer
+    )
+    {
+        writer.reset();
+    }
+
+    /**
+     * Dispose the readers and writers of this thread.
+     */
+    public static void clear()
+    {
+        for (ImageReader reader : READERS.get()) {
+            reader.dispose();
+        }
+        for (ImageWriter writer : WRITERS.get().values()) {
+            writer.dispose();
+        }
+        READERS.remove();
+        WRITERS.remove();
+        PARAMS.remove();
+    }
+
+    /**
+     * Return a thread factory for a pool whose threads dispose their
+     * readers and writers when they exit, as the pool shuts down.
+     *
+     * @return The thread factory.
+     */
+    public static ThreadFactory threadFactory()
+    {
+        ThreadFactory factory = Executors.defaultThreadFactory();
+        return runnable -> factory.newThread(() -> {
+            try {
+                runnable.run();
+            } finally {
+                clear();
+            }
+        });
+    }
+
+    /**
+     * @return The number of readers and writers created and reused.
+     */
+    public static String getSummary()
+    {
+        return String.format("Codecs: %d readers created, %d reused; %d writers created, %d reused.",
+                readersCreated.get(), readersReused.get(), writersCreated.get(), writersReused.get());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T getParam(
+            Object codec,
+            Supplier<T> factory
+    )
+    {
+        return (T) PARAMS.get().computeIfAbsent(codec, k -> factory.get());
+    }
+}
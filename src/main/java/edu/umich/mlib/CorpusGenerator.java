@@ -0,0 +1,540 @@
+package edu.umich.mlib;
+
+import com.github.jaiimageio.jpeg2000.J2KImageWriteParam;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentInformation;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.pdmodel.graphics.state.RenderingMode;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineItem;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineNode;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Generates synthetic PDFs with controlled properties, as a stand-in
+ * for publisher PDFs in performance testing.
+ * <p>
+ * Each page holds a number of page-like images, encoded with a filter
+ * chosen from a weighted mix of DCT, Flate, JBIG2 and JPX. Images may
+ * be shared between pages, drawn within nested form XObjects, and
+ * overlaid with invisible text in embedded fonts, as for OCR. The
+ * outline is a tree of the given depth and breadth.
+ * </p>
+ * <p>
+ * Everything is derived from the seed, including the document ID and
+ * dates, so the same seed and options produce the same bytes.
+ * </p>
+ * <p>
+ * PDFBox can not encode JBIG2. JBIG2 images are embedded streams with
+ * a single generic region coded with MMR, which is the CCITT Group 4
+ * coding, as produced by many scanners.
+ * </p>
+ */
+public class CorpusGenerator
+{
+    private static final String FONT_RESOURCE = "/org/apache/pdfbox/resources/ttf/LiberationSans-Regular.ttf";
+
+    private static final String[] WORDS = {
+            "the", "of", "and", "press", "university", "michigan", "library", "chapter",
+            "history", "publishing", "scholarly", "edition", "volume", "press", "notes",
+            "figure", "table", "index", "review", "introduction", "conclusion", "archive"
+    };
+
+    private final long seed;
+    private int pageCount = 10;
+    private int imageCount = 1;
+    private int imageWidth = 1200;
+    private int imageHeight = 1600;
+    private int sharedPct = 0;
+    private int outlineDepth = 0;
+    private int outlineBreadth = 4;
+    private int fontCount = 0;
+    private int formDepth = 0;
+
+    // Filter names and their cumulative weights.
+    private final List<String> filters = new ArrayList<>();
+    private final List<Integer> weights = new ArrayList<>();
+
+    public CorpusGenerator(
+            long seed
+    )
+    {
+        this.seed = seed;
+        setFilterMix("dct");
+    }
+
+    public void setPageCount(
+            int pageCount
+    )
+    {
+        this.pageCount = pageCount;
+    }
+
+    /**
+     * Set the number and size of the images on each page.
+     */
+    public void setImages(
+            int imageCount,
+            int imageWidth,
+            int imageHeight
+    )
+    {
+        this.imageCount = imageCount;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+    }
+
+    /**
+     * Set the mix of image encodings, a comma separated list of
+     * filter[-color][:weight], where filter is dct, flate, jbig2 or jpx
+     * and color is rgb, gray or bitonal. For example
+     * "dct:6,flate-gray:2,jbig2:1,jpx:1".
+     */
+    public void setFilterMix(
+            String mix
+    )
+    {
+        filters.clear();
+        weights.clear();
+        int total = 0;
+        for (String item : mix.split(",")) {
+            String[] parts = item.trim().split(":");
+            String filter = parts[0].toLowerCase();
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+            String name = filter.contains("-") ? filter.substring(0, filter.indexOf('-')) : filter;
+            if (!name.equals("dct") && !name.equals("flate") && !name.equals("jbig2") && !name.equals("jpx")) {
+                throw new IllegalArgumentException(String.format("Error: invalid filter \"%s\".", filter));
+            }
+            if (weight > 0) {
+                total += weight;
+                filters.add(filter);
+                weights.add(total);
+            }
+        }
+        if (filters.isEmpty()) {
+            throw new IllegalArgumentException(String.format("Error: invalid filter mix \"%s\".", mix));
+        }
+    }
+
+    /**
+     * Set the % of image references that reuse an image XObject of an
+     * earlier page.
+     */
+    public void setSharedPct(
+            int sharedPct
+    )
+    {
+        this.sharedPct = sharedPct;
+    }
+
+    /**
+     * Set the outline depth and the number of children of each entry.
+     */
+    public void setOutline(
+            int outlineDepth,
+            int outlineBreadth
+    )
+    {
+        this.outlineDepth = outlineDepth;
+        this.outlineBreadth = outlineBreadth;
+    }
+
+    /**
+     * Set the number of embedded fonts. Each is a separate copy, as
+     * found in PDFs merged from chapters. No text is added if 0.
+     */
+    public void setFontCount(
+            int fontCount
+    )
+    {
+        this.fontCount = fontCount;
+    }
+
+    /**
+     * Set the depth of the form XObjects that the images of a page are
+     * drawn within.
+     */
+    public void setFormDepth(
+            int formDepth
+    )
+    {
+        this.formDepth = formDepth;
+    }
+
+    /**
+     * Generate a document. The caller saves and closes it.
+     *
+     * @param pdfDoc An empty document.
+     */
+    public void generate(
+            PDDocument pdfDoc
+    ) throws IOException
+    {
+        Random random = new Random(seed);
+
+        // Fixed document ID and dates, so the output is reproducible.
+        byte[] id = new byte[16];
+        random.nextBytes(id);
+        COSArray idArray = new COSArray();
+        idArray.add(new COSString(id));
+        idArray.add(new COSString(id));
+        pdfDoc.getDocument().getTrailer().setItem(COSName.ID, idArray);
+
+        Calendar date = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        date.clear();
+        date.set(2020, Calendar.JANUARY, 1);
+        PDDocumentInformation info = pdfDoc.getDocumentInformation();
+        info.setProducer("Michigan Publishing Services");
+        info.setTitle(String.format("Synthetic corpus seed %d", seed));
+        info.setCreationDate(date);
+        info.setModificationDate(date);
+
+        List<PDFont> fonts = new ArrayList<>();
+        for (int i = 0; i < fontCount; i++) {
+            try (InputStream fontStream = CorpusGenerator.class.getResourceAsStream(FONT_RESOURCE)) {
+                fonts.add(PDType0Font.load(pdfDoc, fontStream));
+            }
+        }
+
+        List<PDImageXObject> images = new ArrayList<>();
+        for (int i = 0; i < pageCount; i++) {
+            PDPage page = new PDPage(PDRectangle.LETTER);
+            pdfDoc.addPage(page);
+            PDRectangle mediaBox = page.getMediaBox();
+
+            PDPageContentStream cs = new PDPageContentStream(pdfDoc, page);
+
+            // The images are drawn within the innermost form.
+            PDPageContentStream imageCs = cs;
+            List<PDPageContentStream> formStreams = new ArrayList<>();
+            for (int d = 0; d < formDepth; d++) {
+                PDFormXObject form = new PDFormXObject(pdfDoc);
+                form.setBBox(mediaBox);
+                form.setResources(new PDResources());
+                imageCs.drawForm(form);
+                imageCs = new PDPageContentStream(pdfDoc, form, form.getStream().createOutputStream(COSName.FLATE_DECODE));
+                formStreams.add(imageCs);
+            }
+
+            float cellHeight = mediaBox.getHeight() / imageCount;
+            for (int j = 0; j < imageCount; j++) {
+                PDImageXObject imageObj;
+                if (!images.isEmpty() && random.nextInt(100) < sharedPct) {
+                    imageObj = images.get(random.nextInt(images.size()));
+                } else {
+                    String filter = chooseFilter(random);
+                    String colorType = filter.contains("-") ? filter.substring(filter.indexOf('-') + 1)
+                            : (filter.equals("jbig2") ? "bitonal" : "rgb");
+                    BufferedImage image = createImage(random, imageWidth, imageHeight, colorType);
+                    imageObj = createImageXObject(pdfDoc, image, filter.split("-")[0]);
+                    images.add(imageObj);
+                }
+
+                // Fit the image within its cell.
+                float scale = Math.min(mediaBox.getWidth() / imageObj.getWidth(), cellHeight / imageObj.getHeight());
+                float w = imageObj.getWidth() * scale;
+                float h = imageObj.getHeight() * scale;
+                imageCs.drawImage(imageObj, (mediaBox.getWidth() - w) / 2,
+                        mediaBox.getHeight() - cellHeight * (j + 1) + (cellHeight - h) / 2, w, h);
+            }
+            for (int d = formStreams.size() - 1; d >= 0; d--) {
+                formStreams.get(d).close();
+            }
+
+            if (!fonts.isEmpty()) {
+                addText(cs, random, fonts.get(i % fonts.size()), mediaBox);
+            }
+            cs.close();
+        }
+
+        if (outlineDepth > 0 && pageCount > 0) {
+            PDDocumentOutline outline = new PDDocumentOutline();
+            pdfDoc.getDocumentCatalog().setDocumentOutline(outline);
+            addOutline(pdfDoc, outline, "", 1, new int[] { 0 }, countOutline());
+        }
+    }
+
+    /**
+     * Create a page-like image: a tinted background with a gradient and
+     * noise, with lines of dark word-like strokes. Bitonal images have
+     * a white background and no noise.
+     *
+     * @param random The random source.
+     * @param width The image width.
+     * @param height The image height.
+     * @param colorType One of rgb, gray, argb or bitonal.
+     * @return The image.
+     */
+    static BufferedImage createImage(
+            Random random,
+            int width,
+            int height,
+            String colorType
+    )
+    {
+        int type;
+        switch (colorType) {
+            case "gray":
+                type = BufferedImage.TYPE_BYTE_GRAY;
+                break;
+            case "argb":
+                type = BufferedImage.TYPE_INT_ARGB;
+                break;
+            case "bitonal":
+                type = BufferedImage.TYPE_BYTE_BINARY;
+                break;
+            default:
+                type = BufferedImage.TYPE_3BYTE_BGR;
+                break;
+        }
+        boolean bitonal = type == BufferedImage.TYPE_BYTE_BINARY;
+
+        BufferedImage image = new BufferedImage(width, height, type);
+        int tintG = random.nextInt(16);
+        int tintB = 8 + random.nextInt(24);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int v = bitonal ? 255 : 200 + (x + y) * 40 / (width + height) + random.nextInt(16);
+                int r = Math.min(255, v);
+                int g = Math.min(255, bitonal ? v : v - tintG);
+                int b = Math.min(255, bitonal ? v : v - tintB);
+                row[x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+
+        Graphics2D g2 = image.createGraphics();
+        g2.setColor(Color.BLACK);
+        int lineHeight = Math.max(8, height / 50);
+        for (int y = lineHeight * 2; y < height - lineHeight * 2; y += lineHeight * 3 / 2) {
+            for (int x = width / 10; x < width * 9 / 10; ) {
+                int w = lineHeight / 2 + random.nextInt(lineHeight * 2);
+                g2.fillRect(x, y, w, lineHeight - lineHeight / 4);
+                x += w + lineHeight / 2;
+            }
+        }
+        g2.dispose();
+        return image;
+    }
+
+    /**
+     * Create an image XObject encoded with a filter.
+     *
+     * @param pdfDoc The document.
+     * @param image The image.
+     * @param filter One of dct, flate, jbig2 or jpx.
+     * @return The image XObject.
+     */
+    static PDImageXObject createImageXObject(
+            PDDocument pdfDoc,
+            BufferedImage image,
+            String filter
+    ) throws IOException
+    {
+        switch (filter) {
+            case "dct":
+                return JPEGFactory.createFromImage(pdfDoc, image, 0.75f);
+            case "flate":
+                return LosslessFactory.createFromImage(pdfDoc, image);
+            case "jbig2":
+                return createJBIG2(pdfDoc, image);
+            case "jpx":
+                return createJPX(pdfDoc, image);
+            default:
+                throw new IllegalArgumentException(String.format("Error: invalid filter \"%s\".", filter));
+        }
+    }
+
+    /**
+     * Create a lossy JPX image XObject.
+     */
+    private static PDImageXObject createJPX(
+            PDDocument pdfDoc,
+            BufferedImage image
+    ) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg2000").next();
+        J2KImageWriteParam param = (J2KImageWriteParam) writer.getDefaultWriteParam();
+        param.setLossless(false);
+        param.setEncodingRate(1.0);
+        try (MemoryCacheImageOutputStream outStream = new MemoryCacheImageOutputStream(buffer)) {
+            writer.setOutput(outStream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+
+        PDColorSpace colorSpace = image.getColorModel().getNumColorComponents() == 1 ?
+                PDDeviceGray.INSTANCE : PDDeviceRGB.INSTANCE;
+        return new PDImageXObject(pdfDoc, new ByteArrayInputStream(buffer.toByteArray()),
+                COSName.JPX_DECODE, image.getWidth(), image.getHeight(), 8, colorSpace);
+    }
+
+    /**
+     * Create an embedded JBIG2 image XObject: a page information
+     * segment, an immediate lossless generic region coded with MMR, and
+     * an end of page segment.
+     */
+    private static PDImageXObject createJBIG2(
+            PDDocument pdfDoc,
+            BufferedImage image
+    ) throws IOException
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] mmr = BitonalEncoder.encode(image);
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+
+        // Page information.
+        writeSegmentHeader(out, 0, 48, 19);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(0);
+        out.writeShort(0);
+
+        // Immediate lossless generic region, MMR coded.
+        writeSegmentHeader(out, 1, 39, 18 + mmr.length);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(0);
+        out.writeByte(1);
+        out.write(mmr);
+
+        // End of page.
+        writeSegmentHeader(out, 2, 49, 0);
+        out.flush();
+
+        return new PDImageXObject(pdfDoc, new ByteArrayInputStream(buffer.toByteArray()),
+                COSName.JBIG2_DECODE, width, height, 1, PDDeviceGray.INSTANCE);
+    }
+
+    private static void writeSegmentHeader(
+            DataOutputStream out,
+            int number,
+            int type,
+            int dataLength
+    ) throws IOException
+    {
+        out.writeInt(number);
+        out.writeByte(type);
+        // No referred-to segments, associated with page 1.
+        out.writeByte(0);
+        out.writeByte(1);
+        out.writeInt(dataLength);
+    }
+
+    private String chooseFilter(
+            Random random
+    )
+    {
+        int value = random.nextInt(weights.get(weights.size() - 1));
+        int i = 0;
+        while (value >= weights.get(i)) {
+            i++;
+        }
+        return filters.get(i);
+    }
+
+    /**
+     * Add invisible lines of words over the page, as for OCR text.
+     */
+    private static void addText(
+            PDPageContentStream cs,
+            Random random,
+            PDFont font,
+            PDRectangle mediaBox
+    ) throws IOException
+    {
+        float fontSize = 10;
+        cs.beginText();
+        cs.setFont(font, fontSize);
+        cs.setRenderingMode(RenderingMode.NEITHER);
+        cs.newLineAtOffset(54, mediaBox.getHeight() - 54);
+        for (float y = mediaBox.getHeight() - 54; y > 54; y -= fontSize * 1.5f) {
+            StringBuilder line = new StringBuilder();
+            while (line.length() < 80) {
+                line.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            cs.showText(line.toString().trim());
+            cs.newLineAtOffset(0, -fontSize * 1.5f);
+        }
+        cs.endText();
+    }
+
+    /**
+     * Return the number of outline entries.
+     */
+    private int countOutline()
+    {
+        int count = 0;
+        int level = 1;
+        for (int d = 0; d < outlineDepth; d++) {
+            level *= outlineBreadth;
+            count += level;
+        }
+        return count;
+    }
+
+    /**
+     * Add the outline entries below a node in document order, each
+     * pointing to a page in proportion to its position.
+     */
+    private void addOutline(
+            PDDocument pdfDoc,
+            PDOutlineNode parent,
+            String prefix,
+            int depth,
+            int[] position,
+            int count
+    )
+    {
+        for (int i = 1; i <= outlineBreadth; i++) {
+            String label = prefix.isEmpty() ? Integer.toString(i) : prefix + "." + i;
+            PDOutlineItem item = new PDOutlineItem();
+            item.setTitle(String.format("Section %s", label));
+            int pageIndex = (int) ((long) position[0] * pageCount / Math.max(1, count));
+            item.setDestination(pdfDoc.getPage(Math.min(pageIndex, pageCount - 1)));
+            position[0] += 1;
+            parent.addLast(item);
+            if (depth < outlineDepth) {
+                addOutline(pdfDoc, item, label, depth + 1, position, count);
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package edu.umich.mlib;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A claim on an input file shared by several hosts, held with a lease
+ * file next to it, so that each file is processed by one host only.
+ * <p>
+ * A lease is claimed by creating the file.lease file, which fails if it
+ * exists, and kept by updating its modification time. A lease not updated
+ * within the timeout is stale, its holder is presumed dead, and it is
+ * reclaimed by renaming it to a name unique to the claimant, which only
+ * one host can do, before claiming the file again. Once processed, a
+ * file.done or file.failed marker is written and the lease removed;
+ * files with a marker of the same command are not claimed again, other
+ * than failed files when retried. A holder whose lease was reclaimed
+ * writes no marker.
+ * </p>
+ * <p>
+ * The hosts must have synchronized clocks, within a small part of the
+ * timeout.
+ * </p>
+ */
+public class FileLease
+{
+    public static final String LEASE_SUFFIX = ".lease";
+    public static final String DONE_SUFFIX = ".done";
+    public static final String FAILED_SUFFIX = ".failed";
+
+    // Identifies this process, as pid@host.
+    private static final String OWNER = ManagementFactory.getRuntimeMXBean().getName();
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final Path file;
+    private final Path leaseFile;
+    private final String command;
+    private final String token;
+
+    private FileLease(
+            Path file,
+            String command,
+            String token
+    )
+    {
+        this.file = file;
+        this.leaseFile = sibling(file, LEASE_SUFFIX);
+        this.command = command;
+        this.token = token;
+    }
+
+    /**
+     * Claim a file.
+     *
+     * @param file The input file.
+     * @param command The command the file is processed with.
+     * @param retryFailed Whether a file failed with the command is claimed again.
+     * @param timeoutMillis The time after which a lease without update is stale.
+     * @return The lease, or null if the file is held by another or completed.
+     */
+    public static FileLease claim(
+            Path file,
+            String command,
+            boolean retryFailed,
+            long timeoutMillis
+    ) throws IOException
+    {
+        if (getMarker(file, command, retryFailed) != null) {
+            return null;
+        }
+
+        String token = String.format("%s %d %s\n", OWNER, SEQUENCE.incrementAndGet(), Instant.now());
+        Path leaseFile = sibling(file, LEASE_SUFFIX);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                Files.write(leaseFile, token.getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                // Completed by another since checked.
+                if (getMarker(file, command, retryFailed) != null) {
+                    Files.deleteIfExists(leaseFile);
+                    return null;
+                }
+                return new FileLease(file, command, token);
+            } catch (FileAlreadyExistsException e) {
+                if (attempt > 0 || !reclaim(leaseFile, timeoutMillis)) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the completion marker of a file, written for a command.
+     *
+     * @param file The input file.
+     * @param command The command the file is processed with.
+     * @param retryFailed Whether a failed marker is ignored.
+     * @return The done or failed marker, or null if none.
+     */
+    public static Path getMarker(
+            Path file,
+            String command,
+            boolean retryFailed
+    )
+    {
+        for (String suffix : new String[] { DONE_SUFFIX, FAILED_SUFFIX }) {
+            if (retryFailed && suffix.equals(FAILED_SUFFIX)) {
+                continue;
+            }
+            Path marker = sibling(file, suffix);
+            try {
+                // The first line of a marker is its command.
+                List<String> lines = Files.readAllLines(marker, StandardCharsets.UTF_8);
+                if (!lines.isEmpty() && lines.get(0).equals(command)) {
+                    return marker;
+                }
+            } catch (IOException e) {
+                // No marker.
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the holder of the lease of a file.
+     *
+     * @param file The input file.
+     * @return The holder, or an empty string if unknown.
+     */
+    public static String getHolder(
+            Path file
+    )
+    {
+        try {
+            String token = new String(Files.readAllBytes(sibling(file, LEASE_SUFFIX)), StandardCharsets.UTF_8);
+            return token.split(" ")[0].trim();
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /**
+     * @return The input file.
+     */
+    public Path getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Update the lease modification time.
+     *
+     * @return false if the lease was reclaimed by another.
+     */
+    public boolean heartbeat() throws IOException
+    {
+        if (!isHeld()) {
+            return false;
+        }
+        Files.setLastModifiedTime(leaseFile, FileTime.fromMillis(System.currentTimeMillis()));
+        return true;
+    }
+
+    /**
+     * Write the completion marker, replacing a marker of another command
+     * or outcome, and remove the lease.
+     *
+     * @param failed Whether the file failed.
+     * @param message The marker content.
+     * @return false if the lease was reclaimed by another, and no marker written.
+     */
+    public boolean complete(
+            boolean failed,
+            String message
+    ) throws IOException
+    {
+        if (!isHeld()) {
+            return false;
+        }
+        Path marker = sibling(file, failed ? FAILED_SUFFIX : DONE_SUFFIX);
+        Path tempMarker = sibling(file, String.format(".%d.tmp", SEQUENCE.incrementAndGet()));
+        String content = String.format("%s\n%s %s %s\n", command, OWNER, Instant.now(), message);
+        Files.write(tempMarker, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(tempMarker, marker, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(sibling(file, failed ? DONE_SUFFIX : FAILED_SUFFIX));
+        release();
+        return true;
+    }
+
+    /**
+     * Remove the lease, if still held, without a marker.
+     */
+    public void release() throws IOException
+    {
+        if (isHeld()) {
+            Files.deleteIfExists(leaseFile);
+        }
+    }
+
+    private boolean isHeld()
+    {
+        try {
+            return new String(Files.readAllBytes(leaseFile), StandardCharsets.UTF_8).equals(token);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Remove a stale lease.
+     *
+     * @return true if this process removed it.
+     */
+    private static boolean reclaim(
+            Path leaseFile,
+            long timeoutMillis
+    ) throws IOException
+    {
+        FileTime modified;
+        try {
+            modified = Files.getLastModifiedTime(leaseFile);
+        } catch (NoSuchFileException e) {
+            // Released since, claim it.
+            return true;
+        }
+        if (System.currentTimeMillis() - modified.toMillis() < timeoutMillis) {
+            return false;
+        }
+
+        // Only one of the hosts reclaiming the lease can rename it.
+        Path staleFile = sibling(leaseFile, String.format(".%s.%d.stale",
+                OWNER.replaceAll("[^A-Za-z0-9.-]", "_"), SEQUENCE.incrementAndGet()));
+        try {
+            Files.move(leaseFile, staleFile, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+
+        // Updated by its holder just before the rename, give it back.
+        if (System.currentTimeMillis() - Files.getLastModifiedTime(staleFile).toMillis() < timeoutMillis) {
+            try {
+                // Not atomic, so that a lease claimed since is not replaced.
+                Files.move(staleFile, leaseFile);
+            } catch (IOException e) {
+                Files.deleteIfExists(staleFile);
+            }
+            return false;
+        }
+        System.out.printf("Reclaiming stale lease \"%s\".\n", leaseFile.getFileName());
+        Files.delete(staleFile);
+        return true;
+    }
+
+    private static Path sibling(
+            Path path,
+            String suffix
+    )
+    {
+        Path name = Paths.get(path.getFileName().toString() + suffix);
+        return path.getParent() == null ? name : path.getParent().resolve(name);
+    }
+}
@@ -0,0 +1,321 @@
+package edu.umich.mlib;
+
+import org.apache.commons.io.FileUtils;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a hot folder and runs a function on each file dropped in it.
+ * <p>
+ * A file is taken once its size and modification time have not changed
+ * for the settle time, so that files still being copied are left alone.
+ * It is then moved to its own directory within the processing directory,
+ * where the function writes its results next to it, and run on a bounded
+ * pool of threads. Once completed, the directory, with the file, its
+ * results and a log of the messages, is moved to the done or failed
+ * directory. Files left in the processing directory by an interrupted
+ * run are returned to the hot folder when the watch is started.
+ * </p>
+ */
+public class FolderWatcher
+{
+    private final Path watchDir;
+    private final int threadCount;
+    private final long settleMillis;
+    private Path processingDir;
+    private Path doneDir;
+    private Path failedDir;
+    private PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:*.{pdf,PDF}");
+    private volatile boolean stopping = false;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    // Files not yet settled, by path.
+    private final Map<Path, Candidate> candidates = new LinkedHashMap<>();
+
+    private static class Candidate
+    {
+        long size = -1;
+        long modified = -1;
+        long unchangedSince;
+    }
+
+    /**
+     * @param watchDir The hot folder.
+     * @param threadCount The number of files processed at once.
+     * @param settleMillis The time a file must remain unchanged.
+     */
+    public FolderWatcher(
+            Path watchDir,
+            int threadCount,
+            long settleMillis
+    )
+    {
+        this.watchDir = watchDir.toAbsolutePath();
+        this.threadCount = Math.max(1, threadCount);
+        this.settleMillis = settleMillis;
+        this.processingDir = this.watchDir.resolve("processing");
+        this.doneDir = this.watchDir.resolve("done");
+        this.failedDir = this.watchDir.resolve("failed");
+    }
+
+    public void setDoneDir(
+            Path doneDir
+    )
+    {
+        this.doneDir = doneDir.toAbsolutePath();
+    }
+
+    public void setFailedDir(
+            Path failedDir
+    )
+    {
+        this.failedDir = failedDir.toAbsolutePath();
+    }
+
+    /**
+     * @param glob The file names to process, the default is *.{pdf,PDF}.
+     */
+    public void setGlob(
+            String glob
+    )
+    {
+        this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+    }
+
+    /**
+     * Run a function on the files dropped in the hot folder until stopped,
+     * then wait for the files in progress.
+     *
+     * @param funcName The function name.
+     * @param funcOptions The function options, applied to every file.
+     */
+    public void watch(
+            String funcName,
+            List<String> funcOptions
+    ) throws IOException, InterruptedException
+    {
+        Files.createDirectories(processingDir);
+        Files.createDirectories(doneDir);
+        Files.createDirectories(failedDir);
+        recover();
+
+        // On a termination signal, drain before the JVM halts.
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+
+        ThreadOutput threadOutput = ThreadOutput.install();
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount, CodecPool.threadFactory());
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            watchDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            System.out.printf("Watching \"%s\" with %d threads.\n", watchDir, threadCount);
+
+            // Files dropped while not watching.
+            scan();
+            while (!stopping) {
+                WatchKey key = watchService.poll(1, TimeUnit.SECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            scan();
+                        } else {
+                            add(watchDir.resolve((Path) event.context()));
+                        }
+                    }
+                    key.reset();
+                }
+
+                for (Path stagedFile : settled()) {
+                    pool.execute(() -> process(funcName, funcOptions, stagedFile, threadOutput));
+                }
+            }
+        } finally {
+            pool.shutdown();
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("Waiting for the files in progress.");
+            }
+            System.out.println("Watch stopped.");
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Stop taking files. The files in progress are completed by watch.
+     */
+    public void stop()
+    {
+        stopping = true;
+    }
+
+    /**
+     * Stop and wait for watch to complete the files in progress, from
+     * a shutdown hook.
+     */
+    private void shutdown()
+    {
+        // Memory caches, as ImageIO can not add the shutdown hook that
+        // removes its cache files once the JVM is shutting down.
+        ImageIO.setUseCache(false);
+        stop();
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void scan() throws IOException
+    {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(watchDir)) {
+            for (Path path : stream) {
+                add(path);
+            }
+        }
+    }
+
+    private void add(
+            Path path
+    )
+    {
+        if (matcher.matches(path.getFileName()) && !candidates.containsKey(path)) {
+            candidates.put(path, new Candidate());
+        }
+    }
+
+    /**
+     * Move the files which have settled to the processing directory.
+     *
+     * @return The staged files.
+     */
+    private List<Path> settled()
+    {
+        List<Path> stagedList = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Candidate>> iterator = candidates.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Candidate> entry = iterator.next();
+            Path path = entry.getKey();
+            Candidate candidate = entry.getValue();
+
+            File file = path.toFile();
+            if (!file.isFile()) {
+                iterator.remove();
+                continue;
+            }
+            long size = file.length();
+            long modified = file.lastModified();
+            if (size != candidate.size || modified != candidate.modified) {
+                candidate.size = size;
+                candidate.modified = modified;
+                candidate.unchangedSince = now;
+                continue;
+            }
+            if (now - candidate.unchangedSince < settleMillis) {
+                continue;
+            }
+
+            // A file of the same name still in progress is left for later.
+            Path stageDir = processingDir.resolve(path.getFileName());
+            if (Files.exists(stageDir)) {
+                continue;
+            }
+            try {
+                Files.createDirectory(stageDir);
+                Path stagedFile = stageDir.resolve(path.getFileName());
+                Files.move(path, stagedFile, StandardCopyOption.ATOMIC_MOVE);
+                stagedList.add(stagedFile);
+                iterator.remove();
+            } catch (IOException e) {
+                // Still held by the writer, try again later.
+                System.out.printf("Error: %s\n", e.getLocalizedMessage());
+                stageDir.toFile().delete();
+            }
+        }
+        return stagedList;
+    }
+
+    private void process(
+            String funcName,
+            List<String> funcOptions,
+            Path stagedFile,
+            ThreadOutput threadOutput
+    )
+    {
+        Path stageDir = stagedFile.getParent();
+        String fileName = stagedFile.getFileName().toString();
+        System.out.printf("Processing file \"%s\".\n", fileName);
+
+        List<String> step = new ArrayList<>();
+        step.add(funcName);
+        step.addAll(funcOptions);
+
+        BatchRunner.Result result = new BatchRunner.Result(stagedFile.toString(), Collections.singletonList(step));
+        try (OutputStream logOut = new FileOutputStream(stageDir.resolve(fileName + ".log").toFile())) {
+            BatchRunner.process(result, threadOutput, logOut);
+        } catch (IOException e) {
+            result.failed = true;
+            result.message = e.getLocalizedMessage();
+        }
+
+        Path resultDir = result.failed ? failedDir : doneDir;
+        try {
+            File targetDir = resultDir.resolve(fileName).toFile();
+            for (int i = 1; targetDir.exists(); i++) {
+                targetDir = resultDir.resolve(String.format("%s.%d", fileName, i)).toFile();
+            }
+            FileUtils.moveDirectory(stageDir.toFile(), targetDir);
+            if (result.failed) {
+                System.out.printf("Failed file \"%s\" in %.1f seconds, moved to \"%s\": %s\n",
+                        fileName, result.seconds, targetDir, result.message);
+            } else {
+                System.out.printf("Completed file \"%s\" in %.1f seconds, moved to \"%s\".\n",
+                        fileName, result.seconds, targetDir);
+            }
+        } catch (IOException e) {
+            System.out.printf("Error: file \"%s\" left in \"%s\": %s\n",
+                    fileName, stageDir, e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Return the files of an interrupted run to the hot folder and
+     * remove their partial results.
+     */
+    private void recover() throws IOException
+    {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(processingDir)) {
+            for (Path stageDir : stream) {
+                Path stagedFile = stageDir.resolve(stageDir.getFileName());
+                Path file = watchDir.resolve(stageDir.getFileName());
+                if (Files.isRegularFile(stagedFile) && !Files.exists(file)) {
+                    System.out.printf("Returning file \"%s\" of an interrupted run.\n", file.getFileName());
+                    Files.move(stagedFile, file);
+                    FileUtils.deleteDirectory(stageDir.toFile());
+                }
+            }
+        }
+    }
+}
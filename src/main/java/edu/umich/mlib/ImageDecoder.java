@@ -0,0 +1,241 @@
+package edu.umich.mlib;
+
+import com.github.jaiimageio.jpeg2000.J2KImageReadParam;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decodes image XObjects at a reduced resolution.
+ * <p>
+ * When an image is to be scaled down by a factor of four or more, the
+ * target size is pushed into the decoder instead of decoding the full
+ * resolution raster and scaling it afterwards. JPEG2000 images are
+ * decoded at a lower resolution level, all others are subsampled by
+ * the PDFBox filters (DCT through the ImageIO read parameters), which
+ * pick every Nth pixel without filtering. The decoded image is at least
+ * twice the target, so that the final area average scaling performed
+ * by the caller filters out the aliasing of the subsampling.
+ * </p>
+ * <p>
+ * Bitonal images are always fully decoded as subsampling would drop
+ * thin strokes.
+ * </p>
+ */
+public class ImageDecoder
+{
+    private static final List<String> JPX_STOP_FILTERS =
+            Collections.singletonList(COSName.JPX_DECODE.getName());
+
+    /**
+     * Return the subsampling factor for decoding an image that is to
+     * be scaled to the specified dimensions.
+     *
+     * @param imageObj The image.
+     * @param targetWidth The scaled width.
+     * @param targetHeight The scaled height.
+     * @return The subsampling factor, 1 for a full decode. The subsampled
+     *         image is at least twice the target size.
+     */
+    public static int getSubsampling(
+            PDImageXObject imageObj,
+            int targetWidth,
+            int targetHeight
+    )
+    {
+        if (targetWidth < 1 || targetHeight < 1 || isBitonal(imageObj)) {
+            return 1;
+        }
+        int subsampling = Math.min(imageObj.getWidth() / targetWidth, imageObj.getHeight() / targetHeight) / 2;
+        return subsampling < 1 ? 1 : subsampling;
+    }
+
+    /**
+     * Decode an image, subsampled by the specified factor.
+     *
+     * @param imageObj The image.
+     * @param subsampling The subsampling factor.
+     * @return The decoded image.
+     */
+    public static BufferedImage decode(
+            PDImageXObject imageObj,
+            int subsampling
+    ) throws IOException
+    {
+        if (subsampling <= 1) {
+            return imageObj.getImage();
+        }
+
+        if (COSName.JPX_DECODE.getName().equals(lastFilter(imageObj)) && isPlainJPX(imageObj)) {
+            BufferedImage image = decodeJPX(imageObj, subsampling);
+            if (image != null) {
+                return image;
+            }
+        }
+        return imageObj.getImage(null, subsampling);
+    }
+
+    private static boolean isBitonal(
+            PDImageXObject imageObj
+    )
+    {
+        String filter = lastFilter(imageObj);
+        return imageObj.isStencil()
+                || imageObj.getBitsPerComponent() == 1
+                || COSName.CCITTFAX_DECODE.getName().equals(filter)
+                || COSName.JBIG2_DECODE.getName().equals(filter);
+    }
+
+    private static String lastFilter(
+            PDImageXObject imageObj
+    )
+    {
+        List<COSName> filters = imageObj.getStream().getFilters();
+        return filters == null || filters.isEmpty() ? null : filters.get(filters.size() - 1).getName();
+    }
+
+    /**
+     * Determine whether the JPEG2000 image can be read by ImageIO
+     * directly, without the color handling performed by PDFBox.
+     */
+    private static boolean isPlainJPX(
+            PDImageXObject imageObj
+    )
+    {
+        COSStream stream = imageObj.getCOSObject();
+        if (stream.containsKey(COSName.SMASK)
+                || stream.containsKey(COSName.MASK)
+                || stream.containsKey(COSName.DECODE)
+                || stream.getInt(COSName.getPDFName("SMaskInData"), 0) != 0) {
+            return false;
+        }
+
+        COSBase colorSpace = stream.getDictionaryObject(COSName.COLORSPACE, COSName.CS);
+        if (colorSpace == null) {
+            // The color space is specified by the JPEG2000 data.
+            return true;
+        }
+        try {
+            PDColorSpace pdColorSpace = imageObj.getColorSpace();
+            return pdColorSpace == PDDeviceRGB.INSTANCE || pdColorSpace == PDDeviceGray.INSTANCE;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Decode a JPEG2000 image at the resolution level that is closest
+     * to, but not smaller than, the subsampled size.
+     *
+     * @return The decoded image or null if it could not be decoded.
+     */
+    private static BufferedImage decodeJPX(
+            PDImageXObject imageObj,
+            int subsampling
+    ) throws IOException
+    {
+        byte[] data;
+        try (InputStream is = imageObj.createInputStream(JPX_STOP_FILTERS)) {
+            data = IOUtils.toByteArray(is);
+        }
+
+        int levels = getDecompositionLevels(data);
+        int reduction = 0;
+        while ((2 << reduction) <= subsampling && reduction < levels) {
+            reduction += 1;
+        }
+        if (reduction == 0) {
+            return null;
+        }
+
+        ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(data));
+        ImageReader reader = CodecPool.getReader(iis);
+        if (reader == null) {
+            iis.close();
+            return null;
+        }
+        try {
+            reader.setInput(iis, true, true);
+            J2KImageReadParam param = CodecPool.getReadParam(reader, J2KImageReadParam::new);
+            param.setResolution(levels - reduction);
+            BufferedImage image = reader.read(0, param);
+
+            int bands = image.getRaster().getNumBands();
+            if (image.getColorModel().hasAlpha()
+                    || image.getColorModel().getComponentSize(0) > 8
+                    || (bands != 1 && bands != 3)) {
+                return null;
+            }
+
+            // Match the image type returned by PDImageXObject.getImage.
+            BufferedImage rgbImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2 = rgbImage.createGraphics();
+            g2.drawImage(image, 0, 0, null);
+            g2.dispose();
+            return rgbImage;
+        } catch (IOException | RuntimeException e) {
+            // Fall back to the PDFBox decoder.
+            return null;
+        } finally {
+            CodecPool.release(reader);
+            iis.close();
+        }
+    }
+
+    /**
+     * Return the number of wavelet decomposition levels from the COD
+     * marker segment of a JPEG2000 code stream or JP2 file.
+     *
+     * @param data The JPEG2000 data.
+     * @return The number of levels or 0 if not found.
+     */
+    static int getDecompositionLevels(
+            byte[] data
+    )
+    {
+        // Locate the start of the code stream (SOC followed by SIZ).
+        int pos = -1;
+        for (int i = 0; i + 3 < data.length; i++) {
+            if ((data[i] & 0xFF) == 0xFF && (data[i + 1] & 0xFF) == 0x4F
+                    && (data[i + 2] & 0xFF) == 0xFF && (data[i + 3] & 0xFF) == 0x51) {
+                pos = i + 2;
+                break;
+            }
+        }
+        if (pos < 0) {
+            return 0;
+        }
+
+        // Walk the main header marker segments up to COD.
+        while (pos + 4 <= data.length) {
+            int marker = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+            int length = ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+            if (marker == 0xFF52) {
+                // Lcod(2) Scod(1) progression(1) layers(2) MCT(1) levels(1)
+                return pos + 9 < data.length ? data[pos + 9] & 0xFF : 0;
+            }
+            if (marker == 0xFF90 || (marker & 0xFF00) != 0xFF00 || length < 2) {
+                // Reached the first tile or invalid data.
+                return 0;
+            }
+            pos += 2 + length;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,233 @@
+package edu.umich.mlib;
+
+import org.apache.pdfbox.cos.*;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Collapses byte-identical image XObjects stored as separate objects.
+ * <p>
+ * Each image stream is hashed from its raw (still encoded) bytes, each
+ * preceded by its length, plus its dictionary, including any nested
+ * streams such as soft masks.
+ * The stream data is read through a digest buffer, so only the hashes
+ * are held in memory. Every resource entry naming a duplicate is then
+ * pointed at the first image with the same hash.
+ * </p>
+ * <p>
+ * The page resources, form XObject resources and tiling pattern
+ * resources are traversed.
+ * </p>
+ */
+public class ImageDeduplicator
+{
+    private int imageCount = 0;
+    private int duplicateCount = 0;
+    private long reclaimedBytes = 0;
+
+    // Image hash by stream and first image by hash.
+    private final Map<COSStream, String> streamHashMap = new IdentityHashMap<>();
+    private final Map<String, COSStream> hashStreamMap = new HashMap<>();
+
+    // Resource dictionaries already traversed.
+    private final Set<COSDictionary> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private final byte[] buffer = new byte[64 * 1024];
+
+    public int getImageCount()
+    {
+        return imageCount;
+    }
+
+    public int getDuplicateCount()
+    {
+        return duplicateCount;
+    }
+
+    public long getReclaimedBytes()
+    {
+        return reclaimedBytes;
+    }
+
+    /**
+     * Replace duplicate images within the document.
+     *
+     * @param pdfDoc The document.
+     * @return The number of duplicate images removed.
+     */
+    public int deduplicate(
+            PDDocument pdfDoc
+    ) throws IOException
+    {
+        for (PDPage page : pdfDoc.getPages()) {
+            PDResources resources = page.getResources();
+            if (resources != null) {
+                deduplicate(resources.getCOSObject());
+            }
+        }
+        return duplicateCount;
+    }
+
+    private void deduplicate(
+            COSDictionary resources
+    ) throws IOException
+    {
+        if (!visited.add(resources)) {
+            return;
+        }
+
+        COSDictionary xobjects = resources.getCOSDictionary(COSName.XOBJECT);
+        if (xobjects != null) {
+            for (COSName name : new ArrayList<>(xobjects.keySet())) {
+                COSBase xobject = xobjects.getDictionaryObject(name);
+                if (!(xobject instanceof COSStream)) {
+                    continue;
+                }
+                COSStream stream = (COSStream) xobject;
+                if (COSName.FORM.equals(stream.getCOSName(COSName.SUBTYPE))) {
+                    COSDictionary formResources = stream.getCOSDictionary(COSName.RESOURCES);
+                    if (formResources != null) {
+                        deduplicate(formResources);
+                    }
+                    continue;
+                }
+                if (!COSName.IMAGE.equals(stream.getCOSName(COSName.SUBTYPE))) {
+                    continue;
+                }
+
+                String hash = streamHashMap.get(stream);
+                if (hash == null) {
+                    imageCount += 1;
+                    hash = hashStream(stream);
+                    streamHashMap.put(stream, hash);
+
+                    COSStream firstStream = hashStreamMap.get(hash);
+                    if (firstStream == null) {
+                        hashStreamMap.put(hash, stream);
+                        continue;
+                    }
+                    duplicateCount += 1;
+                    reclaimedBytes += stream.getLength();
+                }
+
+                COSStream firstStream = hashStreamMap.get(hash);
+                if (firstStream != stream) {
+                    xobjects.setItem(name, firstStream);
+                }
+            }
+        }
+
+        COSDictionary patterns = resources.getCOSDictionary(COSName.PATTERN);
+        if (patterns != null) {
+            for (COSName name : patterns.keySet()) {
+                COSBase pattern = patterns.getDictionaryObject(name);
+                if (pattern instanceof COSStream) {
+                    COSDictionary patternResources = ((COSStream) pattern).getCOSDictionary(COSName.RESOURCES);
+                    if (patternResources != null) {
+                        deduplicate(patternResources);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the hash of a stream's dictionary and raw data.
+     */
+    private String hashStream(
+            COSStream stream
+    ) throws IOException
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        updateDigest(digest, stream, Collections.newSetFromMap(new IdentityHashMap<>()));
+
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+    private void updateDigest(
+            MessageDigest digest,
+            COSBase base,
+            Set<COSBase> path
+    ) throws IOException
+    {
+        if (base instanceof COSObject) {
+            base = ((COSObject) base).getObject();
+        }
+        if (base == null || base instanceof COSNull) {
+            update(digest, "null;");
+            return;
+        }
+        if (!path.add(base)) {
+            // Reference back to an enclosing object.
+            update(digest, "cycle;");
+            return;
+        }
+
+        if (base instanceof COSDictionary) {
+            COSDictionary dict = (COSDictionary) base;
+            List<COSName> keys = new ArrayList<>(dict.keySet());
+            Collections.sort(keys);
+            update(digest, "<<");
+            for (COSName key : keys) {
+                if (COSName.LENGTH.equals(key) && base instanceof COSStream) {
+                    // Hashed before the data.
+                    continue;
+                }
+                update(digest, "/" + key.getName() + " ");
+                updateDigest(digest, dict.getItem(key), path);
+            }
+            update(digest, ">>");
+
+            if (base instanceof COSStream) {
+                // The raw length delimits the data of each stream.
+                update(digest, "stream " + ((COSStream) base).getLength() + ";");
+                try (InputStream in = ((COSStream) base).createRawInputStream()) {
+                    int len;
+                    while ((len = in.read(buffer)) != -1) {
+                        digest.update(buffer, 0, len);
+                    }
+                }
+            }
+        } else if (base instanceof COSArray) {
+            update(digest, "[");
+            for (COSBase item : (COSArray) base) {
+                updateDigest(digest, item, path);
+            }
+            update(digest, "]");
+        } else if (base instanceof COSName) {
+            update(digest, "/" + ((COSName) base).getName() + ";");
+        } else if (base instanceof COSString) {
+            update(digest, "(" + ((COSString) base).toHexString() + ");");
+        } else {
+            update(digest, base.toString() + ";");
+        }
+
+        path.remove(base);
+    }
+
+    private static void update(
+            MessageDigest digest,
+            String text
+    )
+    {
+        digest.update(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,349 @@
+package edu.umich.mlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only journal of the images completed by an optimize run, so
+ * that a run which dies part way can be resumed.
+ * <p>
+ * The journal is a text file with a header line identifying the source
+ * document and the options, followed by one tab separated line per
+ * image: the image index, page and image numbers, source object id,
+ * outcome, SHA-256 hash of the encoded bytes, image file name, offset
+ * and length within the data file, and the dimensions and encoding of
+ * the image. The encoded bytes are appended to a separate data file.
+ * </p>
+ * <p>
+ * Both files are forced to disk in batches, the data file first, so
+ * the journal does not become the bottleneck. Entries written after
+ * the last batch may be lost or torn by a crash. A torn line ends the
+ * journal when it is read back, and an entry whose data does not match
+ * its hash is encoded again.
+ * </p>
+ */
+public class ImageJournal
+{
+    // Entries and milliseconds between forcing the files to disk.
+    private static final int SYNC_ENTRIES = 64;
+    private static final long SYNC_MILLIS = 2000;
+
+    private static final String HEADER_PREFIX = "# pdfutil optimize journal";
+
+    public static final String REPLACED = "replaced";
+    public static final String KEPT = "kept";
+    public static final String SKIPPED = "skipped";
+
+    private final File journalFile;
+    private final File dataFile;
+    private final String signature;
+
+    private FileChannel journalChannel;
+    private FileChannel dataChannel;
+    private int unsyncedCount = 0;
+    private long syncTime = 0;
+
+    // Entries of the journal being resumed, by image index.
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private int quality = -1;
+    private long loadedLength = 0;
+
+    /**
+     * A completed image.
+     */
+    public static class Entry
+    {
+        public int index;
+        public int pageNum;
+        public int imageNum;
+        public String objectId;
+        public String status;
+        public String hash = "-";
+        public String fileName;
+        public long offset = 0;
+        public int length = 0;
+        public int width = 0;
+        public int height = 0;
+        public boolean bitonal;
+        public boolean gray;
+    }
+
+    /**
+     * @param journalFile The journal file. The data file has the same
+     *                    name with the suffix .data.
+     * @param signature The description of the source document and the
+     *                  options. A journal is only resumed if its
+     *                  signature matches.
+     */
+    public ImageJournal(
+            File journalFile,
+            String signature
+    )
+    {
+        this.journalFile = journalFile;
+        this.dataFile = new File(journalFile.getPath() + ".data");
+        this.signature = signature.replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Read an existing journal. Nothing is loaded if the journal does
+     * not exist or was written for another document or other options.
+     *
+     * @return The number of entries loaded.
+     */
+    public int load() throws IOException
+    {
+        entries.clear();
+        quality = -1;
+        if (!journalFile.exists() || !dataFile.exists()) {
+            return 0;
+        }
+
+        // Only complete lines are read, the last may have been torn by
+        // a crash.
+        String text = new String(Files.readAllBytes(journalFile.toPath()), StandardCharsets.UTF_8);
+        int end = text.indexOf('\n');
+        if (end < 0 || !text.startsWith(HEADER_PREFIX + " " + signature + " quality=")) {
+            System.out.printf("Journal \"%s\" does not match, not resuming.\n", journalFile.getName());
+            return 0;
+        }
+        String header = text.substring(0, end);
+        quality = Integer.parseInt(header.substring(header.lastIndexOf('=') + 1));
+        loadedLength = header.getBytes(StandardCharsets.UTF_8).length + 1;
+
+        long dataLength = dataFile.length();
+        for (int start = end + 1; (end = text.indexOf('\n', start)) >= 0; start = end + 1) {
+            String line = text.substring(start, end);
+            Entry entry = parse(line);
+            if (entry == null || entry.offset + entry.length > dataLength) {
+                break;
+            }
+            entries.put(entry.index, entry);
+            loadedLength += line.getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+        return entries.size();
+    }
+
+    /**
+     * Return the quality of the journal loaded, or -1.
+     */
+    public int getQuality()
+    {
+        return quality;
+    }
+
+    /**
+     * Return the loaded entry for an image, if it describes the same
+     * image.
+     */
+    public Entry getEntry(
+            int index,
+            int pageNum,
+            int imageNum,
+            String objectId
+    )
+    {
+        Entry entry = entries.get(index);
+        if (entry == null || entry.pageNum != pageNum || entry.imageNum != imageNum
+                || !entry.objectId.equals(objectId)) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Read the encoded bytes of an entry.
+     *
+     * @return The bytes or null if they do not match the hash.
+     */
+    public byte[] read(
+            Entry entry
+    ) throws IOException
+    {
+        byte[] data = new byte[entry.length];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        try (FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, entry.offset + buffer.position()) < 0) {
+                    return null;
+                }
+            }
+        }
+        return hash(data).equals(entry.hash) ? data : null;
+    }
+
+    /**
+     * Open the journal for appending. If the loaded journal was written
+     * at the same quality its entries are kept, otherwise the journal
+     * is started over.
+     *
+     * @param quality The quality of this run.
+     */
+    public void open(
+            int quality
+    ) throws IOException
+    {
+        boolean append = !entries.isEmpty() && quality == this.quality;
+        if (!append) {
+            entries.clear();
+        }
+        this.quality = quality;
+
+        journalChannel = FileChannel.open(journalFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        dataChannel = FileChannel.open(dataFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        if (append) {
+            // Drop a torn or invalid tail.
+            journalChannel.truncate(loadedLength);
+            journalChannel.position(journalChannel.size());
+            dataChannel.position(dataChannel.size());
+        } else {
+            journalChannel.truncate(0);
+            dataChannel.truncate(0);
+            write(String.format("%s %s quality=%d\n", HEADER_PREFIX, signature, quality));
+            sync();
+        }
+        syncTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Append an entry and its encoded bytes.
+     *
+     * @param entry The entry, its hash, offset and length are set.
+     * @param data The encoded bytes or null.
+     */
+    public void append(
+            Entry entry,
+            byte[] data
+    ) throws IOException
+    {
+        if (data != null) {
+            entry.offset = dataChannel.position();
+            entry.length = data.length;
+            entry.hash = hash(data);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                dataChannel.write(buffer);
+            }
+        }
+        write(format(entry));
+
+        unsyncedCount += 1;
+        if (unsyncedCount >= SYNC_ENTRIES || System.currentTimeMillis() - syncTime >= SYNC_MILLIS) {
+            sync();
+        }
+    }
+
+    /**
+     * Force the appended entries to disk.
+     */
+    public void sync() throws IOException
+    {
+        // The data first, so that a synced entry refers to synced data.
+        dataChannel.force(false);
+        journalChannel.force(false);
+        unsyncedCount = 0;
+        syncTime = System.currentTimeMillis();
+    }
+
+    public void close() throws IOException
+    {
+        if (journalChannel != null) {
+            sync();
+            journalChannel.close();
+            dataChannel.close();
+            journalChannel = null;
+            dataChannel = null;
+        }
+    }
+
+    /**
+     * Delete the journal once the output has been saved.
+     */
+    public void delete() throws IOException
+    {
+        close();
+        Files.deleteIfExists(journalFile.toPath());
+        Files.deleteIfExists(dataFile.toPath());
+    }
+
+    private void write(
+            String line
+    ) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            journalChannel.write(buffer);
+        }
+    }
+
+    private static String format(
+            Entry entry
+    )
+    {
+        String encoding = entry.bitonal ? "g4" : (entry.gray ? "gray" : "-");
+        return String.format("%d\t%d\t%d\t%s\t%s\t%s\t%s\t%d\t%d\t%d\t%d\t%s\n",
+                entry.index, entry.pageNum, entry.imageNum, entry.objectId, entry.status,
+                entry.hash, entry.fileName, entry.offset, entry.length,
+                entry.width, entry.height, encoding);
+    }
+
+    private static Entry parse(
+            String line
+    )
+    {
+        String[] fields = line.split("\t");
+        if (fields.length != 12) {
+            return null;
+        }
+        Entry entry = new Entry();
+        try {
+            entry.index = Integer.parseInt(fields[0]);
+            entry.pageNum = Integer.parseInt(fields[1]);
+            entry.imageNum = Integer.parseInt(fields[2]);
+            entry.offset = Long.parseLong(fields[7]);
+            entry.length = Integer.parseInt(fields[8]);
+            entry.width = Integer.parseInt(fields[9]);
+            entry.height = Integer.parseInt(fields[10]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        entry.objectId = fields[3];
+        entry.status = fields[4];
+        entry.hash = fields[5];
+        entry.fileName = fields[6];
+        entry.bitonal = fields[11].equals("g4");
+        entry.gray = fields[11].equals("gray");
+        if (!entry.status.equals(REPLACED) && !entry.status.equals(KEPT) && !entry.status.equals(SKIPPED)) {
+            return null;
+        }
+        return entry;
+    }
+
+    private static String hash(
+            byte[] data
+    ) throws IOException
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest(data)) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+}
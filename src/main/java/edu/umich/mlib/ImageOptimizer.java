@@ -0,0 +1,1110 @@
+package edu.umich.mlib;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.filter.MissingImageReaderException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Concurrent engine for the optimize function.
+ * <p>
+ * Pages are traversed on the calling thread, which resolves each image
+ * XObject and hands it to a bounded pool of worker threads for the
+ * decode, scale and encode steps. The encoded images are attached back
+ * to the page resources by a single commit stage, also running on the
+ * calling thread, in the same page/image order as a sequential run.
+ * Messages produced by the workers are buffered and printed by the
+ * commit stage so the output reads the same regardless of the number
+ * of threads.
+ * </p>
+ * <p>
+ * Images are encoded into a per-worker memory buffer and imported
+ * directly from the encoded bytes. They are written to the image
+ * directory only when one is specified, for debugging.
+ * </p>
+ * <p>
+ * An image XObject referenced from several pages is processed once,
+ * keyed on the identity of its COSStream, and every referencing page
+ * is pointed at the same new XObject. A new XObject met again through
+ * resources shared with an earlier page is not encoded again.
+ * </p>
+ * <p>
+ * When a target size is set, a trial pass first encodes every image at
+ * a few qualities to fit a size model per image, then the highest
+ * quality whose predicted total fits the budget is used for all images.
+ * The scaled rasters of the trial pass are held through soft references
+ * so the final pass can reuse them instead of decoding again.
+ * </p>
+ * <p>
+ * An image is only replaced when the encoded image is smaller than the
+ * original stream by at least the minimum saving, otherwise the
+ * original stream is kept.
+ * </p>
+ * <p>
+ * Images that are effectively black and white are encoded as CCITT
+ * Group 4 rather than JPEG. Optionally, color images in which every
+ * pixel is a neutral gray are reduced to a single gray component
+ * before they are encoded.
+ * </p>
+ * <p>
+ * The estimate mode encodes only a stratified sample of the images,
+ * without modifying the document, and extrapolates the output size
+ * and processing time.
+ * </p>
+ * <p>
+ * When a journal is set, each completed image is appended to it by the
+ * commit stage, and the images recorded by the journal of an earlier
+ * run are committed from their stored bytes rather than encoded again.
+ * </p>
+ */
+public class ImageOptimizer
+{
+    private final String extractExt;
+    private final int compressionLevel;
+    private final int resizePct;
+    private final int imageSizeLimit;
+    private final int threadCount;
+    private final File outputDirFile;
+
+    // Lowest quality considered when meeting a target size.
+    private static final int MIN_QUALITY = 10;
+
+    // Number of trial encodes per image.
+    private static final int TRIAL_COUNT = 4;
+
+    // Minimum number of images sampled by an estimate.
+    private static final int MIN_SAMPLES = 16;
+
+    // Page range strata of an estimate.
+    private static final int PAGE_STRATA = 4;
+
+    private long targetSize = 0;
+    private long documentSize = 0;
+    private int minSaving = 0;
+    private boolean bitonal = true;
+    private int grayTolerance = -1;
+    private ImageJournal journal = null;
+    private ImageReport report = null;
+
+    // Quality used for encoding and whether this is the trial pass.
+    private int quality;
+    private boolean trial = false;
+    private int[] trialQualities;
+
+    // Size models of the trial pass and scaled rasters by source stream.
+    private final List<SizeModel> sizeModels = new ArrayList<>();
+    private final Map<COSStream, SoftReference<BufferedImage>> scaledImages =
+            Collections.synchronizedMap(new IdentityHashMap<>());
+    private long encodedLength = 0;
+
+    // Tasks by the stream of the new image they committed, so that pages
+    // sharing the resources do not encode the new image again.
+    private final Map<COSStream, ImageTask> committedImages = new IdentityHashMap<>();
+
+    // Per-run counts of unique images.
+    private int replacedCount = 0;
+    private int keptCount = 0;
+    private int skippedCount = 0;
+    private int grayCount = 0;
+
+    // Encode buffer reused by each worker thread.
+    private final ThreadLocal<ByteArrayOutputStream> encodeBuffer =
+            ThreadLocal.withInitial(() -> new ByteArrayOutputStream(1 << 20));
+
+    public ImageOptimizer(
+            String extractExt,
+            int compressionLevel,
+            int resizePct,
+            int imageSizeLimit,
+            int threadCount,
+            File outputDirFile
+    )
+    {
+        this.extractExt = extractExt;
+        this.compressionLevel = compressionLevel;
+        this.resizePct = resizePct;
+        this.imageSizeLimit = imageSizeLimit;
+        this.threadCount = threadCount < 1 ? 1 : threadCount;
+        this.outputDirFile = outputDirFile;
+        this.quality = compressionLevel;
+    }
+
+    /**
+     * Choose the compression level so that the document fits within
+     * the specified size. The compression level becomes the highest
+     * quality considered.
+     *
+     * @param targetSize The target document size in bytes.
+     * @param documentSize The current document size in bytes.
+     */
+    public void setTargetSize(
+            long targetSize,
+            long documentSize
+    )
+    {
+        this.targetSize = targetSize;
+        this.documentSize = documentSize;
+    }
+
+    /**
+     * Set the minimum saving for replacing an image. Images whose
+     * encoded size is not smaller than the original stream by this
+     * percentage are kept.
+     *
+     * @param minSaving The minimum saving %.
+     */
+    public void setMinSaving(
+            int minSaving
+    )
+    {
+        this.minSaving = minSaving;
+    }
+
+    /**
+     * Set whether bitonal images are encoded as CCITT Group 4.
+     *
+     * @param bitonal true to detect and encode bitonal images.
+     */
+    public void setBitonal(
+            boolean bitonal
+    )
+    {
+        this.bitonal = bitonal;
+    }
+
+    /**
+     * Reduce color images whose pixels are all neutral to gray.
+     *
+     * @param grayTolerance The maximum difference between the color
+     *                      components of a neutral pixel, or -1 to
+     *                      keep the color images.
+     */
+    public void setGrayTolerance(
+            int grayTolerance
+    )
+    {
+        this.grayTolerance = grayTolerance;
+    }
+
+    /**
+     * Record the completed images in a journal. The entries loaded from
+     * the journal are reused.
+     *
+     * @param journal The journal or null.
+     */
+    public void setJournal(
+            ImageJournal journal
+    )
+    {
+        this.journal = journal;
+    }
+
+    /**
+     * Write a record for each image to a report.
+     *
+     * @param report The report or null.
+     */
+    public void setReport(
+            ImageReport report
+    )
+    {
+        this.report = report;
+    }
+
+    /**
+     * Return the quality the images were encoded with.
+     */
+    public int getQuality()
+    {
+        return quality;
+    }
+
+    /**
+     * An image scheduled for optimization.
+     */
+    private static class ImageTask
+    {
+        int pageNum;
+        int imageNum;
+        int index;
+        String objectId;
+        boolean resumed;
+        PDResources resources;
+        COSName name;
+        PDImageXObject imageObj;
+        String imageFileName;
+        byte[] encodedImage;
+        Set<COSStream> streams;
+        List<String> messages = new ArrayList<>();
+        Future<Boolean> future;
+        ImageTask source;
+        PDImageXObject newObj;
+        SizeModel sizeModel;
+        boolean kept;
+        boolean bitonal;
+        boolean gray;
+        int width;
+        int height;
+        ImageReport.Record record;
+    }
+
+    /**
+     * Encoded image size as a function of quality. The log of the size
+     * is close to linear in the log of the JPEG quantization table
+     * scaling, so it is interpolated on that axis between the trial
+     * encodes.
+     */
+    private static class SizeModel
+    {
+        final long originalLength;
+        final int[] qualities;
+        final double[] logSizes;
+
+        SizeModel(
+                long originalLength,
+                int[] qualities,
+                long[] sizes
+        )
+        {
+            this.originalLength = originalLength;
+            this.qualities = qualities;
+            this.logSizes = new double[sizes.length];
+            for (int i = 0; i < sizes.length; i++) {
+                logSizes[i] = Math.log(Math.max(1, sizes[i]));
+            }
+        }
+
+        double predict(
+                int quality
+        )
+        {
+            int n = qualities.length;
+            if (n == 1) {
+                return Math.exp(logSizes[0]);
+            }
+            int i = 0;
+            while (i < n - 2 && quality > qualities[i + 1]) {
+                i++;
+            }
+            double x0 = logScale(qualities[i]);
+            double t = (logScale(quality) - x0) / (logScale(qualities[i + 1]) - x0);
+            return Math.exp(logSizes[i] + t * (logSizes[i + 1] - logSizes[i]));
+        }
+
+        /**
+         * Return the log of the inverse quantization table scaling used
+         * by the IJG encoder for a quality.
+         */
+        private static double logScale(
+                int quality
+        )
+        {
+            double q = Math.max(1, Math.min(100, quality));
+            double scale = q < 50 ? 5000.0 / q : 200.0 - 2.0 * q;
+            return -Math.log(Math.max(1.0, scale));
+        }
+
+        /**
+         * Return the quality for a log inverse scaling.
+         */
+        private static int quality(
+                double logScale
+        )
+        {
+            double scale = Math.exp(-logScale);
+            double q = scale >= 100 ? 5000.0 / scale : (200.0 - scale) / 2.0;
+            return (int) Math.round(q);
+        }
+    }
+
+    public boolean optimize(
+            PDDocument pdfDoc
+    ) throws Exception
+    {
+        quality = compressionLevel;
+        if (journal != null && journal.getQuality() > 0) {
+            // Use the quality selected by the run being resumed.
+            quality = journal.getQuality();
+        } else if (targetSize > 0) {
+            quality = selectQuality(pdfDoc);
+        }
+
+        encodedLength = 0;
+        replacedCount = 0;
+        keptCount = 0;
+        skippedCount = 0;
+        grayCount = 0;
+        if (journal != null) {
+            journal.open(quality);
+        }
+        try {
+            process(pdfDoc);
+        } finally {
+            if (journal != null) {
+                journal.close();
+            }
+        }
+        scaledImages.clear();
+
+        if (targetSize > 0) {
+            System.out.printf("Images encoded at quality %d: %d bytes.\n", quality, encodedLength);
+        }
+        System.out.printf("Images: %d replaced, %d kept, %d skipped.\n",
+                replacedCount, keptCount, skippedCount);
+        if (report != null) {
+            System.out.println(CodecPool.getSummary());
+        }
+        if (grayTolerance >= 0) {
+            System.out.printf("Images reduced to gray: %d.\n", grayCount);
+        }
+        return true;
+    }
+
+    /**
+     * Determine whether an encoded image saves enough over the
+     * original stream to replace it.
+     */
+    private boolean isSaving(
+            long encodedLength,
+            long originalLength
+    )
+    {
+        return encodedLength * 100 < originalLength * (100 - minSaving);
+    }
+
+    /**
+     * Run the trial pass and return the highest quality whose
+     * predicted document size fits the target size.
+     */
+    private int selectQuality(
+            PDDocument pdfDoc
+    ) throws Exception
+    {
+        int maxQuality = Math.max(MIN_QUALITY, compressionLevel);
+        int count = maxQuality > MIN_QUALITY ? TRIAL_COUNT : 1;
+        // Space the trial qualities evenly along the model axis.
+        trialQualities = new int[count];
+        double minScale = SizeModel.logScale(MIN_QUALITY);
+        double maxScale = SizeModel.logScale(maxQuality);
+        for (int i = 0; i < count; i++) {
+            trialQualities[i] = count == 1 ? maxQuality
+                    : SizeModel.quality(minScale + (maxScale - minScale) * i / (count - 1));
+        }
+        System.out.printf("Sampling image sizes at qualities %s.\n", Arrays.toString(trialQualities));
+
+        trial = true;
+        sizeModels.clear();
+        try {
+            process(pdfDoc);
+        } finally {
+            trial = false;
+        }
+
+        // Bytes outside of the images to be replaced.
+        long imageLength = 0;
+        for (SizeModel model : sizeModels) {
+            imageLength += model.originalLength;
+        }
+        long otherLength = Math.max(0, documentSize - imageLength);
+        System.out.printf("Target size: %d bytes, images: %d bytes, other: %d bytes.\n",
+                targetSize, imageLength, otherLength);
+
+        int selected = maxQuality;
+        long estimate = otherLength + predict(selected);
+        while (selected > MIN_QUALITY && estimate > targetSize) {
+            selected -= 1;
+            estimate = otherLength + predict(selected);
+        }
+        if (estimate > targetSize) {
+            System.out.printf("Warning: target size can not be met, estimated size %d bytes at quality %d.\n",
+                    estimate, selected);
+        } else {
+            System.out.printf("Selected quality %d, estimated size %d bytes.\n", selected, estimate);
+        }
+        sizeModels.clear();
+        return selected;
+    }
+
+    private long predict(
+            int quality
+    )
+    {
+        double total = 0;
+        for (SizeModel model : sizeModels) {
+            // Images that would not shrink keep their original stream.
+            double size = model.predict(quality);
+            total += isSaving(Math.round(size), model.originalLength) ? size : model.originalLength;
+        }
+        return Math.round(total);
+    }
+
+    /**
+     * An image considered by an estimate.
+     */
+    private static class Sample
+    {
+        PDImageXObject imageObj;
+        int pageNum;
+        int imageNum;
+        long pixels;
+        long originalLength;
+        long encodedLength;
+        double seconds;
+    }
+
+    /**
+     * Predict the output size and processing time from a stratified
+     * sample of the images, then print a report. The images are
+     * encoded on the calling thread and the document is not modified.
+     *
+     * @param pdfDoc The document.
+     * @param documentSize The current document size in bytes.
+     */
+    public void estimate(
+            PDDocument pdfDoc,
+            long documentSize
+    ) throws Exception
+    {
+        // Collect the unique images that would be optimized.
+        List<Sample> candidates = new ArrayList<>();
+        Set<COSStream> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        int imageCount = 0;
+        long imageLength = 0;
+        for (int i = 0; i < pdfDoc.getNumberOfPages(); i++) {
+            PDResources resources = pdfDoc.getPage(i).getResources();
+            int imageNum = 0;
+            for (COSName name : resources.getXObjectNames()) {
+                if (!resources.isImageXObject(name)) {
+                    continue;
+                }
+                imageNum += 1;
+                PDImageXObject imageObj = (PDImageXObject) resources.getXObject(name);
+                if (!seen.add(imageObj.getCOSObject())) {
+                    continue;
+                }
+                imageCount += 1;
+                imageLength += imageObj.getCOSObject().getLength();
+
+                String suffix = imageObj.getSuffix();
+                if (!suffix.equalsIgnoreCase("jpg") && !suffix.equalsIgnoreCase("png") && !suffix.equalsIgnoreCase("bmp")) {
+                    continue;
+                }
+                Sample sample = new Sample();
+                sample.imageObj = imageObj;
+                sample.pageNum = i + 1;
+                sample.imageNum = imageNum;
+                sample.pixels = (long) imageObj.getWidth() * imageObj.getHeight();
+                sample.originalLength = imageObj.getCOSObject().getLength();
+                candidates.add(sample);
+            }
+        }
+
+        // Assign the candidates to strata by page range, by pixel
+        // count above or below the median and by image format.
+        Map<String, List<Sample>> strata = new TreeMap<>();
+        long[] pixelCounts = new long[candidates.size()];
+        for (int i = 0; i < candidates.size(); i++) {
+            pixelCounts[i] = candidates.get(i).pixels;
+        }
+        Arrays.sort(pixelCounts);
+        long medianPixels = pixelCounts.length == 0 ? 0 : pixelCounts[pixelCounts.length / 2];
+        int pageCount = Math.max(1, pdfDoc.getNumberOfPages());
+        for (Sample sample : candidates) {
+            int pageStratum = (sample.pageNum - 1) * PAGE_STRATA / pageCount;
+            int pixelStratum = sample.pixels >= medianPixels ? 1 : 0;
+            String key = String.format("%d/%d/%s", pageStratum, pixelStratum, sample.imageObj.getSuffix());
+            strata.computeIfAbsent(key, k -> new ArrayList<>()).add(sample);
+        }
+
+        // Warm up the codec of each stratum so that the samples are
+        // not timed cold.
+        for (List<Sample> stratum : strata.values()) {
+            encodeSample(stratum.get(stratum.size() - 1));
+        }
+
+        int sampleCount = Math.max(MIN_SAMPLES, candidates.size() / 20);
+        int sampledCount = 0;
+        long predictedLength = imageLength;
+        double predictedSeconds = 0;
+        for (List<Sample> stratum : strata.values()) {
+            // Sample evenly across the stratum, at least one image.
+            int n = (int) Math.round((double) sampleCount * stratum.size() / Math.max(1, candidates.size()));
+            n = Math.min(stratum.size(), Math.max(1, n));
+            long sampledOriginal = 0;
+            long sampledEncoded = 0;
+            long sampledPixels = 0;
+            double sampledSeconds = 0;
+            for (int k = 0; k < n; k++) {
+                Sample sample = stratum.get((int) ((k + 0.5) * stratum.size() / n));
+                encodeSample(sample);
+                sampledOriginal += sample.originalLength;
+                sampledEncoded += sample.encodedLength;
+                sampledPixels += sample.pixels;
+                sampledSeconds += sample.seconds;
+            }
+            sampledCount += n;
+
+            // Extrapolate to the whole stratum.
+            long stratumOriginal = 0;
+            long stratumPixels = 0;
+            for (Sample sample : stratum) {
+                stratumOriginal += sample.originalLength;
+                stratumPixels += sample.pixels;
+            }
+            double ratio = sampledOriginal == 0 ? 1.0 : (double) sampledEncoded / sampledOriginal;
+            predictedLength += Math.round(stratumOriginal * ratio) - stratumOriginal;
+            predictedSeconds += sampledPixels == 0 ? 0 : sampledSeconds * stratumPixels / sampledPixels;
+        }
+
+        long predictedSize = documentSize - imageLength + predictedLength;
+        System.out.printf("Pages: %d\n", pdfDoc.getNumberOfPages());
+        System.out.printf("Images: %d (%d sampled)\n", imageCount, sampledCount);
+        System.out.printf("Image bytes: %d\n", imageLength);
+        System.out.printf("Predicted image bytes: %d\n", predictedLength);
+        System.out.printf("Predicted file size: %d bytes (%.1f%% of %d)\n", predictedSize,
+                documentSize == 0 ? 100.0 : predictedSize * 100.0 / documentSize, documentSize);
+        System.out.printf("Predicted seconds: %.1f (%d threads)\n", predictedSeconds / threadCount, threadCount);
+    }
+
+    /**
+     * Encode a sampled image and record its encoded length and time.
+     */
+    private void encodeSample(
+            Sample sample
+    ) throws Exception
+    {
+        ImageTask task = new ImageTask();
+        task.pageNum = sample.pageNum;
+        task.imageNum = sample.imageNum;
+        task.imageObj = sample.imageObj;
+        task.imageFileName = String.format("Page_%04d_Image_%04d.%s",
+                sample.pageNum, sample.imageNum, extractExt);
+
+        long start = System.nanoTime();
+        boolean replace = encodeImage(task);
+        sample.seconds = (System.nanoTime() - start) / 1e9;
+
+        // Kept or failed images retain their original length.
+        sample.encodedLength = replace ? task.encodedImage.length : sample.originalLength;
+    }
+
+    private void process(
+            PDDocument pdfDoc
+    ) throws Exception
+    {
+        // Bound the number of images in flight so that at most a few
+        // decoded rasters per worker are held in memory.
+        int windowSize = threadCount * 2;
+        Deque<ImageTask> pending = new ArrayDeque<>();
+
+        // Images already scheduled, by source stream.
+        Map<COSStream, ImageTask> processed = new IdentityHashMap<>();
+        committedImages.clear();
+        int imageIndex = 0;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount, CodecPool.threadFactory());
+        try {
+            // Traverse the source PDF pdfDoc pages.
+            for (int i = 0; i < pdfDoc.getNumberOfPages(); i++) {
+                int pageNum = i + 1;
+
+                PDPage page = pdfDoc.getPage(i);
+
+                // Get the page resources.
+                PDResources resources = page.getResources();
+                Iterable<COSName> xobjectNames = resources.getXObjectNames();
+
+                // Traverse source page resources.
+                int imageNum = 0;
+                for (COSName name : xobjectNames) {
+                    if (!resources.isImageXObject(name)) {
+                        continue;
+                    }
+                    imageNum += 1;
+
+                    ImageTask task = new ImageTask();
+                    task.pageNum = pageNum;
+                    task.imageNum = imageNum;
+                    task.resources = resources;
+                    task.name = name;
+                    task.imageFileName = String.format("Page_%04d_Image_%04d.%s",
+                            pageNum, imageNum, extractExt);
+
+                    PDImageXObject imageObj = (PDImageXObject) resources.getXObject(name);
+                    if (report != null && !trial) {
+                        task.record = report.newRecord(pageNum, imageNum, name.getName(), imageObj);
+                    }
+                    String suffix = imageObj.getSuffix();
+                    if (!suffix.equalsIgnoreCase("jpg") && !suffix.equalsIgnoreCase("png") && !suffix.equalsIgnoreCase("bmp")) {
+                        // Queue the message so that it remains in order.
+                        task.messages.add(String.format("Skipping image page %d image %d suffix %s\n",
+                                pageNum, imageNum, suffix));
+                        task.streams = Collections.emptySet();
+                        task.future = CompletableFuture.completedFuture(false);
+                        pending.add(task);
+                        continue;
+                    }
+
+                    ImageTask sourceTask = processed.get(imageObj.getCOSObject());
+                    if (sourceTask == null) {
+                        sourceTask = committedImages.get(imageObj.getCOSObject());
+                    }
+                    if (sourceTask != null) {
+                        // Shared image, reuse the result of the first reference.
+                        task.messages.add(String.format("Reusing image page %d image %d for page %d image %d\n",
+                                sourceTask.pageNum, sourceTask.imageNum, pageNum, imageNum));
+                        task.source = sourceTask;
+                        task.streams = Collections.emptySet();
+                        task.future = sourceTask.future;
+                        pending.add(task);
+                        continue;
+                    }
+                    processed.put(imageObj.getCOSObject(), task);
+                    imageIndex += 1;
+                    task.index = imageIndex;
+
+                    if (journal != null && !trial) {
+                        task.objectId = objectId(resources, name);
+                        ImageJournal.Entry entry = journal.getEntry(imageIndex, pageNum, imageNum, task.objectId);
+                        if (entry != null && resume(task, entry)) {
+                            pending.add(task);
+                            while (pending.size() >= windowSize) {
+                                commit(pdfDoc, pending.poll());
+                            }
+                            continue;
+                        }
+                    }
+
+                    task.messages.add(String.format("Processing image page %d image %d suffix %s\n",
+                            pageNum, imageNum, suffix));
+
+                    // Resolve the color space here as it may populate the
+                    // document resource cache, which is not thread safe.
+                    imageObj.getColorSpace();
+                    task.imageObj = imageObj;
+                    task.streams = sourceStreams(imageObj);
+
+                    // A COSStream can not be read by two threads at once.
+                    // Wait for any pending image sharing one of its streams.
+                    while (!pending.isEmpty() && sharesStream(pending, task)) {
+                        commit(pdfDoc, pending.poll());
+                    }
+
+                    task.future = pool.submit(() -> encodeImage(task));
+                    pending.add(task);
+
+                    while (pending.size() >= windowSize) {
+                        commit(pdfDoc, pending.poll());
+                    }
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                commit(pdfDoc, pending.poll());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Complete an image task from its journal entry.
+     *
+     * @param task The image task.
+     * @param entry The journal entry.
+     * @return false if the stored bytes are invalid and the image
+     *         must be encoded again.
+     */
+    private boolean resume(
+            ImageTask task,
+            ImageJournal.Entry entry
+    ) throws IOException
+    {
+        boolean replace = entry.status.equals(ImageJournal.REPLACED);
+        if (replace) {
+            task.encodedImage = journal.read(entry);
+            if (task.encodedImage == null) {
+                task.messages.add(String.format("Journal data of page %d image %d is invalid, encoding again.\n",
+                        task.pageNum, task.imageNum));
+                return false;
+            }
+            task.bitonal = entry.bitonal;
+            task.gray = entry.gray;
+            task.width = entry.width;
+            task.height = entry.height;
+        }
+        task.kept = entry.status.equals(ImageJournal.KEPT);
+        task.resumed = true;
+        task.messages.add(String.format("Resuming image page %d image %d from the journal, %s.\n",
+                task.pageNum, task.imageNum, entry.status));
+        task.streams = Collections.emptySet();
+        task.future = CompletableFuture.completedFuture(replace);
+        return true;
+    }
+
+    /**
+     * Decode, scale and encode an image. Executed by a worker thread.
+     *
+     * @param task The image task.
+     * @return true if the image was encoded and should be replaced.
+     */
+    private boolean encodeImage(
+            ImageTask task
+    ) throws Exception
+    {
+        List<String> messages = task.messages;
+
+        // Determine the scaled dimensions before decoding, so that
+        // the decoder can subsample when reducing by 4x or more.
+        int width = task.imageObj.getWidth();
+        int height = task.imageObj.getHeight();
+        Dimension newDim = null;
+        if (width < imageSizeLimit && height < imageSizeLimit) {
+            messages.add(String.format("Dimensions: %dx%d less than limit %d. Skipping scaling.\n",
+                    width, height, imageSizeLimit));
+        } else if (resizePct == 100) {
+            messages.add(String.format("Resize pct = %d. Skipping scaling.\n", resizePct));
+        } else {
+            Dimension imageDim = new Dimension(width, height);
+            int newWidth = ((width * resizePct) / 100);
+            newWidth = newWidth < 1 ? 1 : newWidth;
+            int newHeight = ((height * resizePct) / 100);
+            newHeight = newHeight < 1 ? 1 : newHeight;
+            Dimension newImageDim = new Dimension(newWidth, newHeight);
+            messages.add(String.format("Dimensions: %dx%d => %dx%d\n", width, height,
+                    newWidth, newHeight));
+
+            newDim = PdfUtil.getScaledDimension(imageDim, newImageDim);
+            newDim.width = newDim.width < 1 ? 1 : newDim.width;
+            newDim.height = newDim.height < 1 ? 1 : newDim.height;
+        }
+
+        int subsampling = newDim == null ? 1 : ImageDecoder.getSubsampling(task.imageObj, newDim.width, newDim.height);
+
+        // Reuse the raster scaled by the trial pass, if still held.
+        COSStream stream = task.imageObj.getCOSObject();
+        SoftReference<BufferedImage> scaledRef = scaledImages.remove(stream);
+        BufferedImage scaledImage = scaledRef == null ? null : scaledRef.get();
+        if (scaledImage == null) {
+            if (subsampling > 1) {
+                messages.add(String.format("Decoding at 1/%d resolution.\n", subsampling));
+            }
+
+            BufferedImage image = null;
+            long start = System.nanoTime();
+            try {
+                image = ImageDecoder.decode(task.imageObj, subsampling);
+            } catch (MissingImageReaderException exception) {
+                messages.add(String.format("Error: %s\n", exception.getLocalizedMessage()));
+                return false;
+            }
+            if (task.record != null) {
+                task.record.decodeNanos = System.nanoTime() - start;
+            }
+
+            start = System.nanoTime();
+            scaledImage = image;
+            if (newDim != null && (image.getWidth() != newDim.width || image.getHeight() != newDim.height)) {
+                scaledImage = ImageResampler.resample(image, newDim.width, newDim.height);
+            }
+            if (task.record != null) {
+                task.record.scaleNanos = System.nanoTime() - start;
+            }
+        }
+
+        // The detection and reduction are timed with the encode.
+        long start = System.nanoTime();
+        boolean isBitonal = bitonal && BitonalEncoder.isBitonal(scaledImage);
+
+        // Encode neutral color images with a single component.
+        BufferedImage outputImage = scaledImage;
+        if (!isBitonal && grayTolerance >= 0 && ChannelReducer.isNeutral(scaledImage, grayTolerance)) {
+            messages.add(String.format("Reducing image %s to gray.\n", task.imageFileName));
+            outputImage = ChannelReducer.toGray(scaledImage);
+            task.gray = true;
+        }
+
+        if (trial) {
+            long[] sizes = new long[trialQualities.length];
+            if (isBitonal) {
+                // Group 4 does not depend on the quality.
+                Arrays.fill(sizes, BitonalEncoder.encode(scaledImage).length);
+            }
+            for (int i = 0; i < trialQualities.length && !isBitonal; i++) {
+                byte[] encoded = encode(outputImage, trialQualities[i]);
+                if (encoded == null) {
+                    return false;
+                }
+                sizes[i] = encoded.length;
+            }
+            task.sizeModel = new SizeModel(stream.getLength(), trialQualities, sizes);
+            scaledImages.put(stream, new SoftReference<>(scaledImage));
+            return false;
+        }
+
+        messages.add(String.format("Optimizing image %s %dx%d\n",
+                task.imageFileName, scaledImage.getWidth(), scaledImage.getHeight()));
+
+        if (isBitonal) {
+            messages.add(String.format("Encoding bitonal image %s as CCITT G4.\n", task.imageFileName));
+            task.encodedImage = BitonalEncoder.encode(scaledImage);
+            task.bitonal = true;
+            task.width = scaledImage.getWidth();
+            task.height = scaledImage.getHeight();
+        } else {
+            task.encodedImage = encode(outputImage, quality);
+        }
+        if (task.record != null) {
+            task.record.encodeNanos = System.nanoTime() - start;
+            task.record.outWidth = scaledImage.getWidth();
+            task.record.outHeight = scaledImage.getHeight();
+            task.record.bytesOut = task.encodedImage == null ? 0 : task.encodedImage.length;
+        }
+        if (task.encodedImage == null) {
+            // Problem writing image. Log a message and skip it.
+            messages.add(String.format("Optimizing image %s %dx%d write FAILED, not replaced.\n",
+                    task.imageFileName, scaledImage.getWidth(), scaledImage.getHeight()));
+            return false;
+        }
+
+        long originalLength = stream.getLength();
+        if (!isSaving(task.encodedImage.length, originalLength)) {
+            messages.add(String.format("Keeping image %s, encoded %d bytes, original %d bytes.\n",
+                    task.imageFileName, task.encodedImage.length, originalLength));
+            task.encodedImage = null;
+            task.kept = true;
+            return false;
+        }
+
+        if (outputDirFile != null && !task.bitonal) {
+            Files.write(new File(outputDirFile, task.imageFileName).toPath(), task.encodedImage);
+        }
+        return true;
+    }
+
+    /**
+     * Encode an image into memory.
+     *
+     * @param image The image.
+     * @param quality The compression quality %.
+     * @return The encoded image or null if it could not be written.
+     */
+    private byte[] encode(
+            BufferedImage image,
+            int quality
+    ) throws IOException
+    {
+        // Can't write this as a jpeg2000 because
+        // PDImageXObject.createFromByteArray below will
+        // throw an exception attempting to read a jp2 file.
+        // Using ImageIO.read will load the jp2 image, but
+        // LosslessFactory.createFromImage will convert it to a
+        // PNG and insert it into the PDF as such, thus no file
+        // size savings.
+        // The writer and its parameters are reused by the worker thread.
+        final ImageWriter writer = CodecPool.getWriter(extractExt);
+        JPEGImageWriteParam jpegParams = CodecPool.getWriteParam(writer, () -> {
+            JPEGImageWriteParam params = new JPEGImageWriteParam(null);
+            params.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            return params;
+        });
+        jpegParams.setCompressionQuality(quality / 100.0f);
+
+        ByteArrayOutputStream buffer = encodeBuffer.get();
+        buffer.reset();
+        MemoryCacheImageOutputStream outStream = new MemoryCacheImageOutputStream(buffer);
+        writer.setOutput(outStream);
+
+        try {
+            writer.write(null, new IIOImage(image, null, null), jpegParams);
+        } catch (IIOException exception) {
+            return null;
+        } finally {
+            outStream.close();
+            CodecPool.release(writer);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Wait for an image task to complete, print its messages and
+     * replace the image within the page resources.
+     *
+     * @param pdfDoc The document.
+     * @param task The image task.
+     */
+    private void commit(
+            PDDocument pdfDoc,
+            ImageTask task
+    ) throws Exception
+    {
+        boolean replace;
+        try {
+            replace = task.future.get();
+        } catch (ExecutionException e) {
+            for (String msg : task.messages) {
+                System.out.print(msg);
+            }
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+
+        if (trial) {
+            // Only the size model is kept from the trial pass.
+            if (task.sizeModel != null) {
+                sizeModels.add(task.sizeModel);
+            }
+            task.imageObj = null;
+            task.messages = null;
+            task.streams = Collections.emptySet();
+            return;
+        }
+
+        for (String msg : task.messages) {
+            System.out.print(msg);
+        }
+        if (task.source == null) {
+            if (replace) {
+                replacedCount += 1;
+                grayCount += task.gray ? 1 : 0;
+            } else if (task.kept) {
+                keptCount += 1;
+            } else {
+                skippedCount += 1;
+            }
+        }
+        long start = System.nanoTime();
+        if (replace) {
+            if (task.source != null) {
+                // The source task has already been committed.
+                task.newObj = task.source.newObj;
+            } else if (task.bitonal) {
+                task.newObj = BitonalEncoder.createXObject(pdfDoc, task.encodedImage, task.width, task.height);
+                encodedLength += task.encodedImage.length;
+            } else {
+                task.newObj = PDImageXObject.createFromByteArray(pdfDoc, task.encodedImage, task.imageFileName);
+                encodedLength += task.encodedImage.length;
+            }
+            task.resources.put(task.name, task.newObj);
+            if (task.source == null) {
+                committedImages.put(task.newObj.getCOSObject(), task);
+            }
+        }
+        if (task.record != null) {
+            ImageReport.Record record = task.record;
+            if (task.source != null) {
+                record.result = "shared";
+            } else if (task.resumed) {
+                record.result = replace ? "resumed" : (task.kept ? "kept" : "skipped");
+            } else {
+                record.result = replace ? "replaced" : (task.kept ? "kept" : "skipped");
+            }
+            if (replace && task.source == null) {
+                record.importNanos = System.nanoTime() - start;
+                record.bytesOut = task.newObj.getCOSObject().getLength();
+                record.outWidth = task.newObj.getWidth();
+                record.outHeight = task.newObj.getHeight();
+            }
+            report.write(record);
+        }
+        if (journal != null && task.objectId != null && !task.resumed) {
+            ImageJournal.Entry entry = new ImageJournal.Entry();
+            entry.index = task.index;
+            entry.pageNum = task.pageNum;
+            entry.imageNum = task.imageNum;
+            entry.objectId = task.objectId;
+            entry.status = replace ? ImageJournal.REPLACED : (task.kept ? ImageJournal.KEPT : ImageJournal.SKIPPED);
+            entry.fileName = task.imageFileName;
+            entry.bitonal = task.bitonal;
+            entry.gray = task.gray;
+            entry.width = task.width;
+            entry.height = task.height;
+            journal.append(entry, replace ? task.encodedImage : null);
+        }
+
+        // Only the new image is needed once committed.
+        task.imageObj = null;
+        task.encodedImage = null;
+        task.messages = null;
+        task.streams = Collections.emptySet();
+    }
+
+    /**
+     * Return the streams read when an image is decoded, the image
+     * itself and its masks.
+     */
+    private static Set<COSStream> sourceStreams(
+            PDImageXObject imageObj
+    )
+    {
+        Set<COSStream> streams = Collections.newSetFromMap(new IdentityHashMap<>());
+        streams.add(imageObj.getCOSObject());
+        for (COSName key : new COSName[] { COSName.SMASK, COSName.MASK }) {
+            COSBase mask = imageObj.getCOSObject().getDictionaryObject(key);
+            if (mask instanceof COSStream) {
+                streams.add((COSStream) mask);
+            }
+        }
+        return streams;
+    }
+
+    /**
+     * Return the object id of an image XObject, as referenced by the
+     * page resources, or "-" if it is not an indirect object.
+     */
+    private static String objectId(
+            PDResources resources,
+            COSName name
+    )
+    {
+        COSDictionary xobjects = resources.getCOSObject().getCOSDictionary(COSName.XOBJECT);
+        COSBase item = xobjects == null ? null : xobjects.getItem(name);
+        if (item instanceof COSObject) {
+            COSObject object = (COSObject) item;
+            return String.format("%d.%d", object.getObjectNumber(), object.getGenerationNumber());
+        }
+        return "-";
+    }
+
+    private static boolean sharesStream(
+            Collection<ImageTask> pending,
+            ImageTask task
+    )
+    {
+        for (ImageTask pendingTask : pending) {
+            for (COSStream stream : task.streams) {
+                if (pendingTask.streams.contains(stream)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
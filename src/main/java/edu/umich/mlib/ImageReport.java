@@ -0,0 +1,205 @@
+package edu.umich.mlib;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Machine readable report of the images processed by a command, one
+ * JSON object per line.
+ * <p>
+ * Each record holds the command and source file, the page and image
+ * numbers, the resource or file name, the source filters, the source
+ * and output dimensions and bytes, the time spent decoding, scaling,
+ * encoding and importing the image in nanoseconds, and the result.
+ * Records are written as they are completed and flushed so that the
+ * report of an interrupted run is usable. The source is set per
+ * thread, so that files processed concurrently by the batch function
+ * share a report.
+ * </p>
+ */
+public class ImageReport
+{
+    private final Writer writer;
+    // Command and file name of the records created by each thread.
+    private final ThreadLocal<String[]> source = ThreadLocal.withInitial(() -> new String[] { "", "" });
+
+    /**
+     * A processed image. Dimensions, bytes and times which do not
+     * apply are left at 0.
+     */
+    public static class Record
+    {
+        public String command;
+        public String file;
+        public int page;
+        public int image;
+        public String name;
+        public String filter = "-";
+        public int width;
+        public int height;
+        public int outWidth;
+        public int outHeight;
+        public long bytesIn;
+        public long bytesOut;
+        public long decodeNanos;
+        public long scaleNanos;
+        public long encodeNanos;
+        public long importNanos;
+        public String result;
+    }
+
+    /**
+     * @param reportFile The report file, appended to if it exists.
+     */
+    public ImageReport(
+            File reportFile
+    ) throws IOException
+    {
+        this.writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(reportFile, true), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Set the command and file of the following records created
+     * by the calling thread.
+     */
+    public void setSource(
+            String command,
+            String fileName
+    )
+    {
+        source.set(new String[] { command, fileName });
+    }
+
+    /**
+     * Create a record for an image of the current source.
+     */
+    public Record newRecord(
+            int page,
+            int image,
+            String name
+    )
+    {
+        String[] current = source.get();
+        Record record = new Record();
+        record.command = current[0];
+        record.file = current[1];
+        record.page = page;
+        record.image = image;
+        record.name = name;
+        return record;
+    }
+
+    /**
+     * Create a record for an image XObject of the current source,
+     * with its filters, dimensions and length.
+     */
+    public Record newRecord(
+            int page,
+            int image,
+            String name,
+            PDImageXObject imageObj
+    )
+    {
+        Record record = newRecord(page, image, name);
+        record.filter = filters(imageObj);
+        record.width = imageObj.getWidth();
+        record.height = imageObj.getHeight();
+        record.bytesIn = imageObj.getCOSObject().getLength();
+        return record;
+    }
+
+    public synchronized void write(
+            Record record
+    ) throws IOException
+    {
+        StringBuilder line = new StringBuilder("{");
+        field(line, "command", record.command);
+        field(line, "file", record.file);
+        field(line, "page", record.page);
+        field(line, "image", record.image);
+        field(line, "name", record.name);
+        field(line, "filter", record.filter);
+        field(line, "width", record.width);
+        field(line, "height", record.height);
+        field(line, "out_width", record.outWidth);
+        field(line, "out_height", record.outHeight);
+        field(line, "bytes_in", record.bytesIn);
+        field(line, "bytes_out", record.bytesOut);
+        field(line, "decode_ns", record.decodeNanos);
+        field(line, "scale_ns", record.scaleNanos);
+        field(line, "encode_ns", record.encodeNanos);
+        field(line, "import_ns", record.importNanos);
+        field(line, "result", record.result);
+        line.setCharAt(line.length() - 1, '}');
+        line.append('\n');
+        writer.write(line.toString());
+        writer.flush();
+    }
+
+    public synchronized void close() throws IOException
+    {
+        writer.close();
+    }
+
+    /**
+     * Return the filters of an image stream joined by '+', or "-".
+     */
+    public static String filters(
+            PDImageXObject imageObj
+    )
+    {
+        List<COSName> filters = imageObj.getStream().getFilters();
+        if (filters == null || filters.isEmpty()) {
+            return "-";
+        }
+        StringBuilder filter = new StringBuilder();
+        for (COSName name : filters) {
+            filter.append(filter.length() == 0 ? "" : "+").append(name.getName());
+        }
+        return filter.toString();
+    }
+
+    private static void field(
+            StringBuilder line,
+            String key,
+            long value
+    )
+    {
+        line.append('"').append(key).append("\":").append(value).append(',');
+    }
+
+    private static void field(
+            StringBuilder line,
+            String key,
+            String value
+    )
+    {
+        line.append('"').append(key).append("\":");
+        if (value == null) {
+            line.append("null,");
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append("\",");
+    }
+}
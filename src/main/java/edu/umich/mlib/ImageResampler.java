@@ -0,0 +1,453 @@
+package edu.umich.mlib;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Separable image resampler.
+ * <p>
+ * The image is scaled horizontally and then vertically using a
+ * precomputed weight table for each direction. Samples are read from
+ * and written to the raster's primitive arrays directly, so 8 and 16
+ * bit gray, RGB and CMYK rasters keep their layout and color model.
+ * Other image types are first converted to an RGB or gray image.
+ * </p>
+ * <p>
+ * The destination is processed in bands of rows, each band scaling
+ * only the source rows it requires. Large images spread their bands
+ * across the common fork/join pool.
+ * </p>
+ */
+public class ImageResampler
+{
+    public enum Filter
+    {
+        AREA_AVERAGE,
+        LANCZOS
+    }
+
+    private static final int LANCZOS_LOBES = 3;
+
+    // Destination rows per band.
+    private static final int BAND_ROWS = 64;
+
+    // Minimum source size for scaling bands in parallel.
+    private static final long PARALLEL_PIXELS = 1024 * 1024;
+
+    /**
+     * Scale an image to the specified dimensions. Area averaging is
+     * used when reducing by two or more, otherwise the Lanczos filter.
+     *
+     * @param img The image.
+     * @param targetWidth The scaled width.
+     * @param targetHeight The scaled height.
+     * @return The scaled image.
+     */
+    public static BufferedImage resample(
+            BufferedImage img,
+            int targetWidth,
+            int targetHeight
+    )
+    {
+        Filter filter = img.getWidth() >= targetWidth * 2 && img.getHeight() >= targetHeight * 2
+                ? Filter.AREA_AVERAGE : Filter.LANCZOS;
+        return resample(img, targetWidth, targetHeight, filter);
+    }
+
+    /**
+     * Scale an image to the specified dimensions.
+     *
+     * @param img The image.
+     * @param targetWidth The scaled width.
+     * @param targetHeight The scaled height.
+     * @param filter The resampling filter.
+     * @return The scaled image.
+     */
+    public static BufferedImage resample(
+            BufferedImage img,
+            int targetWidth,
+            int targetHeight,
+            Filter filter
+    )
+    {
+        if (targetWidth < 1 || targetHeight < 1) {
+            throw new IllegalArgumentException(
+                    String.format("Error: invalid dimensions %dx%d.", targetWidth, targetHeight));
+        }
+
+        if (Samples.create(img.getRaster(), img.getColorModel()) == null) {
+            img = convert(img);
+        }
+        Samples src = Samples.create(img.getRaster(), img.getColorModel());
+
+        BufferedImage dstImage;
+        if (img.getType() != BufferedImage.TYPE_CUSTOM) {
+            dstImage = new BufferedImage(targetWidth, targetHeight, img.getType());
+        } else {
+            ColorModel cm = img.getColorModel();
+            WritableRaster raster = cm.createCompatibleWritableRaster(targetWidth, targetHeight);
+            dstImage = new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+        }
+        Samples dst = Samples.create(dstImage.getRaster(), dstImage.getColorModel());
+
+        Weights hWeights = new Weights(img.getWidth(), targetWidth, filter);
+        Weights vWeights = new Weights(img.getHeight(), targetHeight, filter);
+
+        int bandCount = (targetHeight + BAND_ROWS - 1) / BAND_ROWS;
+        IntStream bands = IntStream.range(0, bandCount);
+        if (bandCount > 1 && (long) img.getWidth() * img.getHeight() >= PARALLEL_PIXELS) {
+            bands = bands.parallel();
+        }
+        bands.forEach(band -> scaleBand(src, dst, hWeights, vWeights, band * BAND_ROWS,
+                Math.min(targetHeight, (band + 1) * BAND_ROWS)));
+
+        return dstImage;
+    }
+
+    /**
+     * Scale the destination rows [firstRow, lastRow).
+     */
+    private static void scaleBand(
+            Samples src,
+            Samples dst,
+            Weights hWeights,
+            Weights vWeights,
+            int firstRow,
+            int lastRow
+    )
+    {
+        int bands = src.bands;
+        int firstSrcRow = vWeights.start[firstRow];
+        int lastSrcRow = vWeights.start[lastRow - 1] + vWeights.count[lastRow - 1];
+
+        // Scale the source rows horizontally.
+        float[] srcRow = new float[src.width * bands];
+        float[][] rows = new float[lastSrcRow - firstSrcRow][];
+        for (int y = firstSrcRow; y < lastSrcRow; y++) {
+            src.readRow(y, srcRow);
+            float[] row = new float[dst.width * bands];
+            for (int x = 0; x < dst.width; x++) {
+                int start = hWeights.start[x];
+                int count = hWeights.count[x];
+                int w = x * hWeights.stride;
+                for (int b = 0; b < bands; b++) {
+                    float sum = 0;
+                    for (int k = 0, s = start * bands + b; k < count; k++, s += bands) {
+                        sum += hWeights.weights[w + k] * srcRow[s];
+                    }
+                    row[x * bands + b] = sum;
+                }
+            }
+            rows[y - firstSrcRow] = row;
+        }
+
+        // Combine them vertically.
+        float[] dstRow = new float[dst.width * bands];
+        for (int y = firstRow; y < lastRow; y++) {
+            int start = vWeights.start[y] - firstSrcRow;
+            int count = vWeights.count[y];
+            int w = y * vWeights.stride;
+            Arrays.fill(dstRow, 0);
+            for (int k = 0; k < count; k++) {
+                float weight = vWeights.weights[w + k];
+                float[] row = rows[start + k];
+                for (int i = 0; i < dstRow.length; i++) {
+                    dstRow[i] += weight * row[i];
+                }
+            }
+            dst.writeRow(y, dstRow);
+        }
+    }
+
+    /**
+     * Convert an image that can not be resampled directly to an RGB,
+     * ARGB or gray image.
+     */
+    private static BufferedImage convert(
+            BufferedImage img
+    )
+    {
+        ColorModel cm = img.getColorModel();
+        int type;
+        if (cm.hasAlpha()) {
+            type = BufferedImage.TYPE_INT_ARGB;
+        } else if (cm.getColorSpace().getType() == ColorSpace.TYPE_GRAY || isGrayPalette(cm)) {
+            type = BufferedImage.TYPE_BYTE_GRAY;
+        } else {
+            type = BufferedImage.TYPE_INT_RGB;
+        }
+
+        BufferedImage ret = new BufferedImage(img.getWidth(), img.getHeight(), type);
+        Graphics2D g2 = ret.createGraphics();
+        g2.drawImage(img, 0, 0, null);
+        g2.dispose();
+        return ret;
+    }
+
+    private static boolean isGrayPalette(
+            ColorModel cm
+    )
+    {
+        if (!(cm instanceof IndexColorModel)) {
+            return false;
+        }
+        IndexColorModel icm = (IndexColorModel) cm;
+        for (int i = 0; i < icm.getMapSize(); i++) {
+            if (icm.getRed(i) != icm.getGreen(i) || icm.getRed(i) != icm.getBlue(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Contributing source samples and their weights for each
+     * destination sample along one axis.
+     */
+    private static class Weights
+    {
+        final int[] start;
+        final int[] count;
+        final float[] weights;
+        final int stride;
+
+        Weights(
+                int srcSize,
+                int dstSize,
+                Filter filter
+        )
+        {
+            double scale = (double) srcSize / dstSize;
+            double filterScale = Math.max(scale, 1.0);
+            double support = filter == Filter.LANCZOS ? LANCZOS_LOBES * filterScale : filterScale / 2;
+
+            stride = (int) Math.ceil(support * 2) + 2;
+            start = new int[dstSize];
+            count = new int[dstSize];
+            weights = new float[dstSize * stride];
+
+            double[] w = new double[stride];
+            for (int d = 0; d < dstSize; d++) {
+                double center = (d + 0.5) * scale;
+                int first = Math.max(0, (int) Math.floor(center - support));
+                int last = Math.min(srcSize - 1, (int) Math.ceil(center + support));
+
+                double total = 0;
+                int n = 0;
+                for (int s = first; s <= last && n < stride; s++, n++) {
+                    if (filter == Filter.LANCZOS) {
+                        w[n] = lanczos((s + 0.5 - center) / filterScale);
+                    } else {
+                        // Overlap of the source pixel with the destination pixel.
+                        double lo = Math.max(s, center - support);
+                        double hi = Math.min(s + 1, center + support);
+                        w[n] = Math.max(0, hi - lo);
+                    }
+                    total += w[n];
+                }
+
+                // Drop zero weights at either end.
+                int lo = 0;
+                while (lo < n - 1 && w[lo] == 0) {
+                    lo++;
+                }
+                int hi = n;
+                while (hi > lo + 1 && w[hi - 1] == 0) {
+                    hi--;
+                }
+
+                start[d] = first + lo;
+                count[d] = hi - lo;
+                for (int k = lo; k < hi; k++) {
+                    weights[d * stride + k - lo] = (float) (total == 0 ? 1.0 / n : w[k] / total);
+                }
+            }
+        }
+
+        private static double lanczos(
+                double x
+        )
+        {
+            x = Math.abs(x);
+            if (x < 1e-8) {
+                return 1.0;
+            }
+            if (x >= LANCZOS_LOBES) {
+                return 0.0;
+            }
+            double px = Math.PI * x;
+            return LANCZOS_LOBES * Math.sin(px) * Math.sin(px / LANCZOS_LOBES) / (px * px);
+        }
+    }
+
+    /**
+     * Row access to the primitive sample array of a raster.
+     */
+    private static class Samples
+    {
+        final int width;
+        final int bands;
+
+        private final byte[] byteData;
+        private final short[] shortData;
+        private final int[] intData;
+
+        private final int origin;
+        private final int scanlineStride;
+        private final int pixelStride;
+        private final int[] bandOffsets;
+        private final int[] masks;
+        private final int[] shifts;
+        private final float[] maxValues;
+
+        private Samples(
+                WritableRaster raster,
+                byte[] byteData,
+                short[] shortData,
+                int[] intData,
+                int origin,
+                int scanlineStride,
+                int pixelStride,
+                int[] bandOffsets,
+                int[] masks,
+                int[] shifts,
+                float[] maxValues
+        )
+        {
+            this.width = raster.getWidth();
+            this.bands = raster.getNumBands();
+            this.byteData = byteData;
+            this.shortData = shortData;
+            this.intData = intData;
+            this.origin = origin;
+            this.scanlineStride = scanlineStride;
+            this.pixelStride = pixelStride;
+            this.bandOffsets = bandOffsets;
+            this.masks = masks;
+            this.shifts = shifts;
+            this.maxValues = maxValues;
+        }
+
+        /**
+         * Return the sample access for a raster or null if its layout
+         * is not supported.
+         */
+        static Samples create(
+                WritableRaster raster,
+                ColorModel cm
+        )
+        {
+            SampleModel sm = raster.getSampleModel();
+            DataBuffer db = raster.getDataBuffer();
+            int bands = raster.getNumBands();
+            if (db.getNumBanks() != 1) {
+                return null;
+            }
+
+            if (sm instanceof ComponentSampleModel && cm instanceof ComponentColorModel
+                    && (db instanceof DataBufferByte || db instanceof DataBufferUShort)) {
+                ComponentSampleModel csm = (ComponentSampleModel) sm;
+                int origin = db.getOffset()
+                        - raster.getSampleModelTranslateY() * csm.getScanlineStride()
+                        - raster.getSampleModelTranslateX() * csm.getPixelStride();
+                float maxValue = db instanceof DataBufferByte ? 0xFF : 0xFFFF;
+                float[] maxValues = new float[bands];
+                Arrays.fill(maxValues, maxValue);
+                return new Samples(raster,
+                        db instanceof DataBufferByte ? ((DataBufferByte) db).getData() : null,
+                        db instanceof DataBufferUShort ? ((DataBufferUShort) db).getData() : null,
+                        null,
+                        origin, csm.getScanlineStride(), csm.getPixelStride(),
+                        csm.getBandOffsets(), null, null, maxValues);
+            }
+
+            if (sm instanceof SinglePixelPackedSampleModel && cm instanceof DirectColorModel
+                    && db instanceof DataBufferInt) {
+                SinglePixelPackedSampleModel spsm = (SinglePixelPackedSampleModel) sm;
+                int[] masks = spsm.getBitMasks();
+                int[] shifts = spsm.getBitOffsets();
+                float[] maxValues = new float[bands];
+                for (int b = 0; b < bands; b++) {
+                    maxValues[b] = masks[b] >>> shifts[b];
+                }
+                int origin = db.getOffset()
+                        - raster.getSampleModelTranslateY() * spsm.getScanlineStride()
+                        - raster.getSampleModelTranslateX();
+                return new Samples(raster, null, null, ((DataBufferInt) db).getData(),
+                        origin, spsm.getScanlineStride(), 1, null, masks, shifts, maxValues);
+            }
+            return null;
+        }
+
+        void readRow(
+                int y,
+                float[] row
+        )
+        {
+            int offset = origin + y * scanlineStride;
+            if (byteData != null) {
+                for (int x = 0, i = 0; x < width; x++, offset += pixelStride) {
+                    for (int b = 0; b < bands; b++) {
+                        row[i++] = byteData[offset + bandOffsets[b]] & 0xFF;
+                    }
+                }
+            } else if (shortData != null) {
+                for (int x = 0, i = 0; x < width; x++, offset += pixelStride) {
+                    for (int b = 0; b < bands; b++) {
+                        row[i++] = shortData[offset + bandOffsets[b]] & 0xFFFF;
+                    }
+                }
+            } else {
+                for (int x = 0, i = 0; x < width; x++, offset++) {
+                    int pixel = intData[offset];
+                    for (int b = 0; b < bands; b++) {
+                        row[i++] = (pixel & masks[b]) >>> shifts[b];
+                    }
+                }
+            }
+        }
+
+        void writeRow(
+                int y,
+                float[] row
+        )
+        {
+            int offset = origin + y * scanlineStride;
+            if (byteData != null) {
+                for (int x = 0, i = 0; x < width; x++, offset += pixelStride) {
+                    for (int b = 0; b < bands; b++) {
+                        byteData[offset + bandOffsets[b]] = (byte) clamp(row[i++], 0xFF);
+                    }
+                }
+            } else if (shortData != null) {
+                for (int x = 0, i = 0; x < width; x++, offset += pixelStride) {
+                    for (int b = 0; b < bands; b++) {
+                        shortData[offset + bandOffsets[b]] = (short) clamp(row[i++], 0xFFFF);
+                    }
+                }
+            } else {
+                for (int x = 0, i = 0; x < width; x++, offset++) {
+                    int pixel = 0;
+                    for (int b = 0; b < bands; b++) {
+                        pixel |= (clamp(row[i++], maxValues[b]) << shifts[b]) & masks[b];
+                    }
+                    intData[offset] = pixel;
+                }
+            }
+        }
+
+        private static int clamp(
+                float value,
+                float maxValue
+        )
+        {
+            if (value <= 0) {
+                return 0;
+            }
+            return value >= maxValue ? (int) maxValue : (int) (value + 0.5f);
+        }
+    }
+}
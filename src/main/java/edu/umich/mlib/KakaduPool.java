@@ -0,0 +1,369 @@
+package edu.umich.mlib;
+
+import com.github.jaiimageio.jpeg2000.J2KImageWriteParam;
+import org.apache.commons.io.FileUtils;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts images to JPEG2000 with kdu_compress, running several
+ * processes at once.
+ * <p>
+ * The output of each process, standard output and error together, is
+ * redirected to a scratch file rather than a pipe, so that a process
+ * never blocks on a full pipe, and is displayed once it exits. A process
+ * running longer than the timeout is killed. When the kdu_compress
+ * binary is not found, the images are converted within the JVM by the
+ * JPEG2000 ImageIO writer with matching parameters, other than the
+ * Kakadu rate-distortion slope.
+ * </p>
+ */
+public class KakaduPool
+{
+    public static final String DEFAULT_BINARY = "kdu_compress";
+
+    // Encoding rate of the JVM writer, in bits per pixel, in place of the
+    // Kakadu slope.
+    private static final double JVM_ENCODING_RATE = 2.0;
+
+    private final String binary;
+    private final int threadCount;
+    private final long timeoutMillis;
+    private final List<Job> jobs = new ArrayList<>();
+
+    /**
+     * The conversion of an image.
+     */
+    public static class Job
+    {
+        public File imageFile;
+        public File jp2File;
+        public String encoder = "";
+        // The process exit code, -1 if it did not complete.
+        public int exitCode = -1;
+        public boolean failed;
+        public String message = "";
+        public double seconds;
+        private final List<String> messages = new ArrayList<>();
+        private Future<?> future;
+    }
+
+    /**
+     * @param binary The kdu_compress path, or its name to find it on the PATH.
+     * @param threadCount The number of images converted at once.
+     * @param timeoutMillis The time after which a process is killed, or 0 for none.
+     */
+    public KakaduPool(
+            String binary,
+            int threadCount,
+            long timeoutMillis
+    )
+    {
+        this.binary = binary;
+        this.threadCount = Math.max(1, threadCount);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Add an image, converted to a .jp2 file of the same base name.
+     *
+     * @param imageFile The image.
+     */
+    public void add(
+            File imageFile
+    )
+    {
+        Job job = new Job();
+        job.imageFile = imageFile;
+        String fileName = imageFile.getName();
+        if (fileName.indexOf(".") > 0) {
+            fileName = fileName.substring(0, fileName.lastIndexOf("."));
+        }
+        job.jp2File = new File(imageFile.getAbsoluteFile().getParentFile(), fileName + ".jp2");
+        jobs.add(job);
+    }
+
+    /**
+     * Convert the images and display the messages of each, in the order
+     * added, as they complete.
+     *
+     * @return The number of failed images.
+     */
+    public int run() throws InterruptedException
+    {
+        File binaryFile = findBinary(binary);
+        if (binaryFile == null) {
+            System.out.printf("Binary \"%s\" not found, converting within the JVM.\n", binary);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threadCount, jobs.size())),
+                CodecPool.threadFactory());
+        int failedCount = 0;
+        try {
+            for (Job job : jobs) {
+                job.future = pool.submit(() -> convert(job, binaryFile));
+            }
+            for (Job job : jobs) {
+                try {
+                    job.future.get();
+                } catch (ExecutionException e) {
+                    job.failed = true;
+                    job.message = e.getCause().toString();
+                    job.messages.add(job.message);
+                }
+                for (String msg : job.messages) {
+                    System.out.println(msg);
+                }
+                failedCount += job.failed ? 1 : 0;
+            }
+        } finally {
+            // Kills the processes left when interrupted.
+            pool.shutdownNow();
+        }
+        return failedCount;
+    }
+
+    /**
+     * Display a line for each image and the totals.
+     *
+     * @param seconds The elapsed time of the conversion.
+     */
+    public void printSummary(
+            double seconds
+    )
+    {
+        int failedCount = 0;
+        System.out.println("Kakadu summary:");
+        System.out.printf("%-7s %4s %9s  %-12s %s\n", "Status", "Exit", "Seconds", "Encoder", "File");
+        for (Job job : jobs) {
+            failedCount += job.failed ? 1 : 0;
+            System.out.printf("%-7s %4d %9.1f  %-12s %s%s\n", job.failed ? "failed" : "ok", job.exitCode,
+                    job.seconds, job.encoder, job.imageFile.getName(),
+                    job.message.isEmpty() ? "" : "  " + job.message);
+        }
+        System.out.printf("Files: %d, succeeded: %d, failed: %d, seconds: %.1f\n",
+                jobs.size(), jobs.size() - failedCount, failedCount, seconds);
+    }
+
+    /**
+     * @return The conversions, in the order added.
+     */
+    public List<Job> getJobs()
+    {
+        return jobs;
+    }
+
+    private void convert(
+            Job job,
+            File binaryFile
+    )
+    {
+        long start = System.nanoTime();
+        try {
+            int[] size = getImageSize(job.imageFile);
+            int levels = getLevels(size[0], size[1]);
+            job.messages.add(String.format("%s => %s: levels: %d width: %d height: %d",
+                    job.imageFile.getName(), job.jp2File.getName(), levels, size[0], size[1]));
+            if (binaryFile != null) {
+                job.encoder = binaryFile.getName();
+                compress(job, binaryFile, levels);
+            } else {
+                job.encoder = "jvm";
+                encode(job, levels);
+            }
+        } catch (InterruptedException e) {
+            job.failed = true;
+            job.message = "Error: interrupted.";
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            job.failed = true;
+            job.message = e.getLocalizedMessage() == null ? e.toString() : e.getLocalizedMessage();
+        } finally {
+            job.seconds = (System.nanoTime() - start) / 1e9;
+            if (job.failed) {
+                job.messages.add(job.message);
+                // Remove a partial output.
+                job.jp2File.delete();
+            }
+        }
+    }
+
+    /**
+     * Run kdu_compress on an image.
+     */
+    private void compress(
+            Job job,
+            File binaryFile,
+            int levels
+    ) throws IOException, InterruptedException
+    {
+        List<String> command = Arrays.asList(
+                binaryFile.getPath(),
+                "-i", job.imageFile.getAbsolutePath(),
+                "-o", job.jp2File.getAbsolutePath(),
+                String.format("Clevels=%d", levels),
+                "Clayers=8",
+                "Corder=RLCP",
+                "Cuse_sop=yes",
+                "Cuse_eph=yes",
+                "Cmodes=RESET|RESTART|CAUSAL|ERTERM|SEGMARK",
+                "-no_weights",
+                "-slope", "42988"
+        );
+        job.messages.add(String.join(" ", command));
+
+        File logFile = File.createTempFile("kakadu", ".log");
+        try {
+            Process process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(logFile)
+                    .start();
+            boolean completed;
+            try {
+                if (timeoutMillis > 0) {
+                    completed = process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS);
+                } else {
+                    process.waitFor();
+                    completed = true;
+                }
+            } finally {
+                if (process.isAlive()) {
+                    process.destroyForcibly();
+                    process.waitFor(10, TimeUnit.SECONDS);
+                }
+            }
+
+            for (String line : FileUtils.readLines(logFile, Charset.defaultCharset())) {
+                job.messages.add(line);
+            }
+            if (!completed) {
+                job.failed = true;
+                job.message = String.format("Error: killed after %d seconds.", timeoutMillis / 1000);
+                return;
+            }
+            job.exitCode = process.exitValue();
+            if (job.exitCode != 0) {
+                job.failed = true;
+                job.message = String.format("Error: %s exit code %d.", binaryFile.getName(), job.exitCode);
+            } else if (!job.jp2File.isFile()) {
+                job.failed = true;
+                job.message = String.format("Error: %s wrote no file.", binaryFile.getName());
+            }
+        } finally {
+            logFile.delete();
+        }
+    }
+
+    /**
+     * Convert an image with the JPEG2000 ImageIO writer.
+     */
+    private static void encode(
+            Job job,
+            int levels
+    ) throws IOException
+    {
+        BufferedImage image = ImageIO.read(job.imageFile);
+        if (image == null) {
+            throw new IOException(String.format("Error: no reader for image \"%s\".", job.imageFile.getName()));
+        }
+
+        ImageWriter writer = CodecPool.getWriter("jp2");
+        J2KImageWriteParam param = CodecPool.getWriteParam(writer, () -> {
+            J2KImageWriteParam params = (J2KImageWriteParam) writer.getDefaultWriteParam();
+            params.setLossless(false);
+            params.setEncodingRate(JVM_ENCODING_RATE);
+            params.setProgressionType("res");
+            params.setSOP(true);
+            params.setEPH(true);
+            return params;
+        });
+        param.setNumDecompositionLevels(levels);
+
+        job.jp2File.delete();
+        try (ImageOutputStream outStream = ImageIO.createImageOutputStream(job.jp2File)) {
+            writer.setOutput(outStream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            CodecPool.release(writer);
+        }
+        job.exitCode = 0;
+    }
+
+    /**
+     * Return the width and height of an image from its header.
+     */
+    private static int[] getImageSize(
+            File imageFile
+    ) throws IOException
+    {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(imageFile)) {
+            ImageReader reader = iis == null ? null : CodecPool.getReader(iis);
+            if (reader == null) {
+                throw new IOException(String.format("Error: no reader for image \"%s\".", imageFile.getName()));
+            }
+            try {
+                reader.setInput(iis, true, true);
+                return new int[] { reader.getWidth(0), reader.getHeight(0) };
+            } finally {
+                CodecPool.release(reader);
+            }
+        }
+    }
+
+    /**
+     * Return the number of decomposition levels, at least 5, so that
+     * the smallest resolution is about 100 pixels.
+     */
+    private static int getLevels(
+            int width,
+            int height
+    )
+    {
+        double dimLevel = Math.ceil(PdfUtil.log2(Math.max(width, height) / 100.0)) - 1;
+        return (int) Math.max(5.0, dimLevel);
+    }
+
+    /**
+     * Return the binary file, searching the PATH for a name without
+     * a directory.
+     *
+     * @return The file, or null if not found.
+     */
+    static File findBinary(
+            String binary
+    )
+    {
+        File binaryFile = new File(binary);
+        if (binary.contains(File.separator)) {
+            return binaryFile.isFile() && binaryFile.canExecute() ? binaryFile : null;
+        }
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        for (String dir : path.split(File.pathSeparator)) {
+            File file = new File(dir.isEmpty() ? "." : dir, binary);
+            if (file.isFile() && file.canExecute()) {
+                return file;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,348 @@
+package edu.umich.mlib;
+
+import javax.imageio.ImageIO;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs functions requested over a loopback TCP port within one JVM,
+ * avoiding the JVM startup and warmup of each invocation.
+ * <p>
+ * A request is the server token, the client working directory and the
+ * function name and arguments, one per line, and ends with an empty line.
+ * The token is a random secret written, when the server is started, to a
+ * token file readable by its user only, so that other users of the host
+ * can not run functions as that user. A request not completed within
+ * the read timeout is dropped.
+ * Arguments naming an existing file, or a PDF to create, relative to
+ * the working directory are made absolute. The messages of the function
+ * are returned as it runs, followed by a line with the exit code:
+ * </p>
+ * <pre>
+ * PDFUTIL-EXIT 0
+ * </pre>
+ * <p>
+ * Requests run concurrently on a bounded pool of threads. The global
+ * options are those the server was started with. A stop request, or
+ * a termination signal, stops accepting requests and waits for the
+ * requests in progress to complete.
+ * </p>
+ */
+public class PdfServer
+{
+    public static final String EXIT_PREFIX = "PDFUTIL-EXIT ";
+
+    // Global options are set when the server is started.
+    private static final String[] GLOBAL_OPTIONS = { "--memory", "--scratch_dir", "--classic_xref", "--report",
+            "--cache_dir", "--cache_size", "--no_cache", "--no-cache" };
+
+    // Time allowed to send a request.
+    private static final int REQUEST_TIMEOUT_MILLIS = 30000;
+
+    private final int port;
+    private final int threadCount;
+    private final Path tokenFile;
+    private byte[] token;
+    private ServerSocket serverSocket;
+    private ExecutorService pool;
+    private ThreadOutput threadOutput;
+    private volatile boolean stopping = false;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    /**
+     * @param port The loopback port.
+     * @param threadCount The number of requests run at once.
+     * @param tokenFile The file the token is written to.
+     */
+    public PdfServer(
+            int port,
+            int threadCount,
+            Path tokenFile
+    )
+    {
+        this.port = port;
+        this.threadCount = Math.max(1, threadCount);
+        this.tokenFile = tokenFile.toAbsolutePath();
+    }
+
+    /**
+     * Return the default token file of a port, in the .pdfutil directory
+     * of the user home.
+     */
+    public static Path getDefaultTokenFile(
+            int port
+    )
+    {
+        return new File(System.getProperty("user.home"), String.format(".pdfutil/server_%d.token", port)).toPath();
+    }
+
+    /**
+     * Accept and run requests until stopped, then wait for the
+     * requests in progress.
+     */
+    public void serve() throws IOException, InterruptedException
+    {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        writeToken();
+        pool = Executors.newFixedThreadPool(threadCount, CodecPool.threadFactory());
+        threadOutput = ThreadOutput.install();
+
+        // On a termination signal, drain before the JVM halts.
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+
+        System.out.printf("Serving on port %d with %d threads.\n", serverSocket.getLocalPort(), threadCount);
+        try {
+            while (!stopping) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException e) {
+                    // The socket is closed when stopping.
+                    if (stopping) {
+                        break;
+                    }
+                    throw e;
+                }
+                pool.execute(() -> handle(socket));
+            }
+        } finally {
+            pool.shutdown();
+            if (!pool.isTerminated()) {
+                System.out.println("Waiting for the requests in progress.");
+            }
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.out.println("Waiting for the requests in progress.");
+            }
+            Files.deleteIfExists(tokenFile);
+            System.out.println("Server stopped.");
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Stop accepting requests. The requests in progress and those
+     * already accepted are completed by serve.
+     */
+    public synchronized void stop()
+    {
+        if (stopping) {
+            return;
+        }
+        stopping = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            System.out.printf("Error: %s\n", e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Stop and wait for serve to complete the requests in progress,
+     * from a shutdown hook.
+     */
+    private void shutdown()
+    {
+        // Memory caches, as ImageIO can not add the shutdown hook that
+        // removes its cache files once the JVM is shutting down.
+        ImageIO.setUseCache(false);
+        stop();
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handle(
+            Socket socket
+    )
+    {
+        try (Socket s = socket) {
+            // An idle client must not hold the thread.
+            s.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    s.getInputStream(), StandardCharsets.UTF_8));
+            ResponseStream out = new ResponseStream(new BufferedOutputStream(s.getOutputStream()));
+
+            String requestToken = reader.readLine();
+            int exitCode;
+            if (requestToken == null || !MessageDigest.isEqual(token,
+                    requestToken.getBytes(StandardCharsets.UTF_8))) {
+                out.write("Error: invalid server token.\n".getBytes(StandardCharsets.UTF_8));
+                exitCode = 1;
+            } else {
+                String workingDir = reader.readLine();
+                List<String> argList = new ArrayList<>();
+                String line;
+                while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                    argList.add(line);
+                }
+
+                threadOutput.setThreadOutput(out);
+                try {
+                    exitCode = run(workingDir, argList);
+                } finally {
+                    threadOutput.setThreadOutput(null);
+                }
+            }
+            // The exit code is on its own line.
+            String exitLine = String.format("%s%s%d\n", out.lastByte == '\n' ? "" : "\n", EXIT_PREFIX, exitCode);
+            out.write(exitLine.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            // The client is gone.
+        }
+    }
+
+    private int run(
+            String workingDir,
+            List<String> argList
+    )
+    {
+        if (workingDir == null || argList.isEmpty()) {
+            System.out.println("Usage: function args");
+            return 0;
+        }
+
+        String funcName = argList.get(0);
+        if (funcName.equalsIgnoreCase("stop")) {
+            System.out.println("Stopping server.");
+            stop();
+            return 0;
+        }
+        PdfUtil.FuncCode funcCode = PdfUtil.getFuncCode(funcName);
+        // The functions running others have their own threads and output,
+        // and a watch never returns.
+        if (funcCode == null || funcCode == PdfUtil.FuncCode.SERVE
+                || funcCode == PdfUtil.FuncCode.BATCH || funcCode == PdfUtil.FuncCode.WATCH) {
+            System.out.println("Error: invalid function name \"" + funcName + "\".");
+            return 1;
+        }
+
+        List<String> args = new ArrayList<>();
+        args.add(funcName);
+        for (String arg : argList.subList(1, argList.size())) {
+            for (String option : GLOBAL_OPTIONS) {
+                if (arg.startsWith(option)) {
+                    System.out.printf("Error: global option \"%s\" is set when the server is started.\n", arg);
+                    return 1;
+                }
+            }
+            args.add(resolve(workingDir, arg));
+        }
+
+        try {
+            return PdfUtil.execute(funcCode, args.toArray(new String[0]));
+        } catch (Exception e) {
+            e.printStackTrace(System.out);
+            return 1;
+        }
+    }
+
+    /**
+     * Generate the token and write it to the token file, readable by
+     * this user only.
+     */
+    private void writeToken() throws IOException
+    {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : secret) {
+            hex.append(String.format("%02x", b));
+        }
+        token = hex.toString().getBytes(StandardCharsets.UTF_8);
+
+        Files.createDirectories(tokenFile.getParent());
+        Path tempFile = tokenFile.resolveSibling(tokenFile.getFileName() + ".tmp");
+        Files.deleteIfExists(tempFile);
+        try {
+            Files.createFile(tempFile, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system, the file is private to the user home.
+            Files.createFile(tempFile);
+        }
+        Files.write(tempFile, hex.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile, tokenFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.printf("Token written to \"%s\".\n", tokenFile);
+    }
+
+    /**
+     * Make a file argument relative to the client working directory
+     * absolute.
+     */
+    private static String resolve(
+            String workingDir,
+            String arg
+    )
+    {
+        if (arg.startsWith("-") || new File(arg).isAbsolute()) {
+            return arg;
+        }
+        File file = new File(workingDir, arg);
+        if (file.exists() || (arg.toLowerCase().endsWith(".pdf") && file.getParentFile().isDirectory())) {
+            return file.getPath();
+        }
+        return arg;
+    }
+
+    /**
+     * Socket output which tracks the last byte written.
+     */
+    private static class ResponseStream extends FilterOutputStream
+    {
+        private int lastByte = '\n';
+
+        ResponseStream(
+                OutputStream out
+        )
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(
+                int b
+        ) throws IOException
+        {
+            out.write(b);
+            lastByte = b;
+        }
+
+        @Override
+        public void write(
+                byte[] b,
+                int off,
+                int len
+        ) throws IOException
+        {
+            if (len > 0) {
+                out.write(b, off, len);
+                lastByte = b[off + len - 1];
+            }
+        }
+    }
+}
@@ -5,12 +5,14 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.pdfbox.contentstream.PDContentStream;
 import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.cos.COSArray;
 import org.apache.pdfbox.cos.COSBase;
 import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.cos.COSObject;
-import org.apache.pdfbox.filter.MissingImageReaderException;
+import org.apache.pdfbox.cos.COSStream;
 import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdfparser.PDFStreamParser;
 import org.apache.pdfbox.pdmodel.*;
 import org.apache.pdfbox.pdmodel.common.PDMetadata;
@@ -42,9 +44,7 @@ import org.apache.xmlgraphics.xmp.schemas.XMPBasicSchema;
 import org.apache.xmlgraphics.xmp.schemas.pdf.AdobePDFSchema;
 
 import javax.imageio.*;
-import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
 import javax.imageio.stream.FileImageInputStream;
-import javax.imageio.stream.FileImageOutputStream;
 import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
@@ -58,14 +58,17 @@ import java.util.List;
 
 public class PdfUtil
 {
-    private enum FuncCode {
+    enum FuncCode {
+        BATCH,
         CONSTRUCT,
         COPY_OUTLINE,
         COVER,
+        DEDUP,
         EPUB,
         EXTRACT,
         FIX_OUTLINE,
         FONTS,
+        GENERATE,
         INFO,
         JP2,
         KAKADU,
@@ -76,7 +79,9 @@ public class PdfUtil
         CODERS,
         REPLACE,
         RESIZE,
-        SHRINK
+        SERVE,
+        SHRINK,
+        WATCH
     }
 
     private enum FormatType {
@@ -93,15 +98,34 @@ public class PdfUtil
         PRODUCER
     }
 
+    // Buffering used for loading and creating documents,
+    // set by the global --memory and --scratch_dir options.
+    private static MemoryUsageSetting memoryUsageSetting = MemoryUsageSetting.setupMainMemoryOnly();
+
+    // Report of the processed images, set by the global --report option.
+    private static ImageReport report = null;
+
+    // Save with an xref stream and compressed streams, unless
+    // the global --classic_xref option is specified.
+    private static boolean compressSave = true;
+
+    // Outputs of the cover, copy_outline and optimize functions, set by the
+    // global --cache_dir and --cache_size options, or null without
+    // --cache_dir or with --no_cache.
+    private static ResultCache resultCache = null;
+
     private static Map<String, FuncCode> STRING2FUNC = new HashMap<>();
     static {
+        STRING2FUNC.put("batch", FuncCode.BATCH);
         STRING2FUNC.put("construct", FuncCode.CONSTRUCT);
         STRING2FUNC.put("copy_outline", FuncCode.COPY_OUTLINE);
         STRING2FUNC.put("cover", FuncCode.COVER);
+        STRING2FUNC.put("dedup", FuncCode.DEDUP);
         STRING2FUNC.put("epub", FuncCode.EPUB);
         STRING2FUNC.put("extract", FuncCode.EXTRACT);
         STRING2FUNC.put("fix_outline", FuncCode.FIX_OUTLINE);
         STRING2FUNC.put("fonts", FuncCode.FONTS);
+        STRING2FUNC.put("generate", FuncCode.GENERATE);
         STRING2FUNC.put("info", FuncCode.INFO);
         STRING2FUNC.put("jp2", FuncCode.JP2);
         STRING2FUNC.put("kakadu", FuncCode.KAKADU);
@@ -112,7 +136,9 @@ public class PdfUtil
         STRING2FUNC.put("coders", FuncCode.CODERS);
         STRING2FUNC.put("replace", FuncCode.REPLACE);
         STRING2FUNC.put("resize", FuncCode.RESIZE);
+        STRING2FUNC.put("serve", FuncCode.SERVE);
         STRING2FUNC.put("shrink", FuncCode.SHRINK);
+        STRING2FUNC.put("watch", FuncCode.WATCH);
     }
 
     private static Map<String, FormatType> STRING2FORMAT = new HashMap<>();
@@ -151,83 +177,457 @@ public class PdfUtil
             String[] args
             )
     {
+        System.exit(run(args));
+    }
+
+    /**
+     * Run a function.
+     *
+     * @param args The command line arguments.
+     * @return The exit code, 0 if the function succeeded.
+     */
+    static int run(
+            String[] args
+            )
+    {
+        try {
+            args = parseGlobalOptions(args);
+        } catch (Exception e) {
+            System.out.println(e.getLocalizedMessage());
+            return 1;
+        }
+
         if (args.length == 0) {
             System.out.println("Usage: function args");
-            System.exit(0);
+            return 0;
         }
 
         String funcName = args[0];
         FuncCode funcCode = STRING2FUNC.get(funcName.toLowerCase());
         if (funcCode == null) {
             System.out.println("Error: invalid function name \"" + funcName + "\".");
-            System.exit(1);
+            return 1;
         }
 
         System.setProperty("sun.java2d.cmm", "sun.java2d.cmm.kcms.KcmsServiceProvider");
         try {
-            switch (funcCode) {
-                case CONSTRUCT:
-                    constructPDF(args);
-                    break;
-                case COPY_OUTLINE:
-                    copyOutlinePDF(args);
-                    break;
-                case COVER:
-                    coverPDF(args);
-                    break;
-                case EPUB:
-                    epubPDF(args);
-                    break;
-                case EXTRACT:
-                    extractPDF(args);
-                    break;
-                case FIX_OUTLINE:
-                    fixOutline(args);
-                    break;
-                case FONTS:
-                    extractFonts(args);
-                    break;
-                case INFO:
-                    infoPDF(args);
-                    break;
-                case JP2:
-                    readImages(args);
-                    break;
-                case KAKADU:
-                    kakaduImages(args);
-                    break;
-                case REPLACE_COVER:
-                    replaceCoverPDF(args);
-                    break;
-                case OBJECTS:
-                    objectsPDF(args);
-                    break;
-                case OPTIMIZE:
-                    optimizePDF(args);
-                    break;
-                case HAS_OUTLINE:
-                    hasOutlinePDF(args);
-                    break;
-                case REPLACE:
-                    replacePDF(args);
-                    break;
-                case CODERS:
-                    dumpCoders(args);
-                    break;
-                case RESIZE:
-                    resizePDF(args);
-                    break;
-                case SHRINK:
-                    shrinkPDF(args);
-                    break;
-                default:
-                    System.out.println("Function \"" + funcName + "\" not implemented.\n");
-            }
+            return execute(funcCode, args);
         } catch (Exception e) {
             e.printStackTrace();
+            return 1;
+        } finally {
+            if (report != null) {
+                try {
+                    report.close();
+                } catch (IOException e) {
+                    System.out.printf("Error: %s\n", e.getLocalizedMessage());
+                }
+            }
         }
     }
 
+    /**
+     * Return the function of a name.
+     *
+     * @param funcName The function name.
+     * @return The function, or null if invalid.
+     */
+    static FuncCode getFuncCode(
+            String funcName
+            )
+    {
+        return STRING2FUNC.get(funcName.toLowerCase());
+    }
+
+    /**
+     * Execute a function once the global options are set.
+     *
+     * @param funcCode The function.
+     * @param args The function name and arguments.
+     * @return The exit code, 0 if the function succeeded.
+     */
+    static int execute(
+            FuncCode funcCode,
+            String[] args
+            ) throws Exception
+    {
+        switch (funcCode) {
+            case BATCH:
+                return batchPDF(args);
+            case CONSTRUCT:
+                constructPDF(args);
+                break;
+            case COPY_OUTLINE:
+                copyOutlinePDF(args);
+                break;
+            case COVER:
+                coverPDF(args);
+                break;
+            case DEDUP:
+                dedupPDF(args);
+                break;
+            case EPUB:
+                epubPDF(args);
+                break;
+            case EXTRACT:
+                extractPDF(args);
+                break;
+            case FIX_OUTLINE:
+                fixOutline(args);
+                break;
+            case FONTS:
+                extractFonts(args);
+                break;
+            case GENERATE:
+                generatePDF(args);
+                break;
+            case INFO:
+                infoPDF(args);
+                break;
+            case JP2:
+                readImages(args);
+                break;
+            case KAKADU:
+                return kakaduImages(args);
+            case REPLACE_COVER:
+                replaceCoverPDF(args);
+                break;
+            case OBJECTS:
+                objectsPDF(args);
+                break;
+            case OPTIMIZE:
+                optimizePDF(args);
+                break;
+            case HAS_OUTLINE:
+                hasOutlinePDF(args);
+                break;
+            case REPLACE:
+                replacePDF(args);
+                break;
+            case CODERS:
+                dumpCoders(args);
+                break;
+            case RESIZE:
+                resizePDF(args);
+                break;
+            case SERVE:
+                servePDF(args);
+                break;
+            case SHRINK:
+                shrinkPDF(args);
+                break;
+            case WATCH:
+                watchPDF(args);
+                break;
+            default:
+                System.out.println("Function \"" + args[0] + "\" not implemented.\n");
+        }
+        return 0;
+    }
+
+    /**
+     * Remove the global options from the command line arguments and
+     * set up the document buffering and saving.
+     * <p>
+     * --memory=ram keeps documents in main memory (the default),
+     * --memory=mixed:MB uses at most MB megabytes of main memory and then
+     * a scratch file, --memory=scratch uses a scratch file only.
+     * --scratch_dir=dir sets the scratch file directory.
+     * --classic_xref saves with a classic xref table.
+     * --report=file appends a JSON record for each image processed by
+     * the construct, extract, optimize, replace and resize functions.
+     * --cache_dir=dir enables the result cache in a directory, there is no
+     * cache by default, --cache_size=size[KMG] sets its size, 10G by
+     * default, and --no_cache disables it.
+     * </p>
+     *
+     * @param args The command line arguments.
+     * @return The remaining arguments.
+     */
+    private static String[] parseGlobalOptions(
+            String[] args
+            ) throws Exception
+    {
+        String memory = "ram";
+        String scratchDir = null;
+        String reportPath = null;
+        String cacheDir = null;
+        long cacheSize = ResultCache.DEFAULT_MAX_SIZE;
+        boolean useCache = true;
+
+        List<String> argList = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--memory=")) {
+                memory = arg.substring("--memory=".length());
+            } else if (arg.equals("--memory") && i + 1 < args.length) {
+                memory = args[++i];
+            } else if (arg.startsWith("--scratch_dir=")) {
+                scratchDir = arg.substring("--scratch_dir=".length());
+            } else if (arg.equals("--scratch_dir") && i + 1 < args.length) {
+                scratchDir = args[++i];
+            } else if (arg.equals("--classic_xref")) {
+                compressSave = false;
+            } else if (arg.startsWith("--report=")) {
+                reportPath = arg.substring("--report=".length());
+            } else if (arg.equals("--report") && i + 1 < args.length) {
+                reportPath = args[++i];
+            } else if (arg.startsWith("--cache_dir=")) {
+                cacheDir = arg.substring("--cache_dir=".length());
+            } else if (arg.equals("--cache_dir") && i + 1 < args.length) {
+                cacheDir = args[++i];
+            } else if (arg.startsWith("--cache_size=")) {
+                cacheSize = parseSize(arg.substring("--cache_size=".length()));
+            } else if (arg.equals("--cache_size") && i + 1 < args.length) {
+                cacheSize = parseSize(args[++i]);
+            } else if (arg.equals("--no_cache") || arg.equals("--no-cache")) {
+                useCache = false;
+            } else {
+                argList.add(arg);
+            }
+        }
+
+        if (memory.equalsIgnoreCase("ram")) {
+            memoryUsageSetting = MemoryUsageSetting.setupMainMemoryOnly();
+        } else if (memory.equalsIgnoreCase("scratch")) {
+            memoryUsageSetting = MemoryUsageSetting.setupTempFileOnly();
+        } else if (memory.toLowerCase().startsWith("mixed:")) {
+            long maxMainMemoryMB;
+            try {
+                maxMainMemoryMB = Long.parseLong(memory.substring("mixed:".length()));
+            } catch (NumberFormatException e) {
+                throw new Exception(String.format("Error: invalid memory option \"%s\".", memory));
+            }
+            memoryUsageSetting = MemoryUsageSetting.setupMixed(maxMainMemoryMB * 1024L * 1024L);
+        } else {
+            throw new Exception(String.format("Error: invalid memory option \"%s\".", memory));
+        }
+
+        if (scratchDir != null) {
+            File scratchDirFile = new File(scratchDir);
+            if (!scratchDirFile.isDirectory()) {
+                throw new Exception(String.format("Error: invalid directory path \"%s\".", scratchDir));
+            }
+            memoryUsageSetting.setTempDir(scratchDirFile);
+        }
+
+        if (reportPath != null) {
+            try {
+                report = new ImageReport(new File(reportPath));
+            } catch (IOException e) {
+                throw new Exception(String.format("Error: invalid report path \"%s\".", reportPath));
+            }
+        }
+
+        resultCache = useCache && cacheDir != null ? new ResultCache(Paths.get(cacheDir), cacheSize) : null;
+        return argList.toArray(new String[0]);
+    }
+
+    /**
+     * Return the result cache entry of a file processed by a function,
+     * or null if the cache is disabled.
+     *
+     * @param funcName The function name.
+     * @param cmdLine The parsed function options.
+     * @param pdfFile The input file.
+     * @param otherInputs Other files read by the function, if they exist.
+     */
+    private static ResultCache.Entry openCache(
+            String funcName,
+            CommandLine cmdLine,
+            File pdfFile,
+            File... otherInputs
+            ) throws IOException
+    {
+        if (resultCache == null) {
+            return null;
+        }
+        List<String> optionList = ResultCache.getOptions(cmdLine);
+        if (!compressSave) {
+            optionList.add("--classic_xref");
+        }
+        return resultCache.open(funcName, optionList, pdfFile, otherInputs);
+    }
+
+    /**
+     * Load a document using the configured buffering.
+     */
+    static PDDocument loadPDF(File pdfFile) throws IOException
+    {
+        return PDDocument.load(pdfFile, memoryUsageSetting);
+    }
+
+    /**
+     * Create an empty document using the configured buffering.
+     */
+    static PDDocument newPDF()
+    {
+        return new PDDocument(memoryUsageSetting);
+    }
+
+    /**
+     * Save a document. Unless --classic_xref is specified, the
+     * cross-reference table is written as a compressed xref stream
+     * (PDF 1.5) and streams without a filter are flate compressed.
+     * PDFBox 2.0 can not write object streams, so other objects
+     * remain uncompressed. An existing output is replaced rather than
+     * written over, as it may be a link to another file.
+     */
+    static void savePDF(PDDocument pdfDoc, File outputFile) throws IOException
+    {
+        if (compressSave) {
+            compressStreams(pdfDoc);
+            if (pdfDoc.getVersion() < 1.5f) {
+                pdfDoc.setVersion(1.5f);
+            }
+            pdfDoc.getDocument().setIsXRefStream(true);
+        }
+        Files.deleteIfExists(outputFile.toPath());
+        pdfDoc.save(outputFile);
+    }
+
+    /**
+     * Flate compress the streams of a document that have no filter,
+     * the loaded objects plus the page contents added since.
+     */
+    private static void compressStreams(PDDocument pdfDoc) throws IOException
+    {
+        Set<COSStream> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (COSObject obj : pdfDoc.getDocument().getObjects()) {
+            if (obj.getObject() instanceof COSStream) {
+                compressStream((COSStream) obj.getObject(), visited);
+            }
+        }
+        for (PDPage page : pdfDoc.getPages()) {
+            COSBase contents = page.getCOSObject().getDictionaryObject(COSName.CONTENTS);
+            if (contents instanceof COSStream) {
+                compressStream((COSStream) contents, visited);
+            } else if (contents instanceof COSArray) {
+                for (COSBase item : (COSArray) contents) {
+                    COSBase content = item instanceof COSObject ? ((COSObject) item).getObject() : item;
+                    if (content instanceof COSStream) {
+                        compressStream((COSStream) content, visited);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void compressStream(COSStream stream, Set<COSStream> visited) throws IOException
+    {
+        if (!visited.add(stream)
+                || stream.containsKey(COSName.FILTER)
+                || stream.containsKey(COSName.DECODE_PARMS)
+                || COSName.METADATA.equals(stream.getCOSName(COSName.TYPE))
+                || COSName.XREF.equals(stream.getCOSName(COSName.TYPE))
+                || COSName.OBJ_STM.equals(stream.getCOSName(COSName.TYPE))) {
+            return;
+        }
+
+        byte[] data;
+        try (InputStream is = stream.createRawInputStream()) {
+            data = IOUtils.toByteArray(is);
+        }
+        if (data.length == 0) {
+            return;
+        }
+        try (OutputStream os = stream.createOutputStream(COSName.FLATE_DECODE)) {
+            os.write(data);
+        }
+    }
+
+    private static int batchPDF(
+            String[] params
+    ) throws Exception
+    {
+        System.out.printf("Executing function \"%s\"\n", params[0]);
+
+        Options options = new Options();
+        options.addOption("j", "threads", true, "Files processed at once [0-9]+" );
+        options.addOption("l", "lease", true, "Share the files with other hosts, lease timeout seconds [0-9]+" );
+        options.addOption("m", "manifest", true, "Manifest of files and commands [csv|jsonl]" );
+        options.addOption("r", "results", true, "Results file [csv]" );
+        options.addOption(null, "retry", false, "With --lease, process again the files that failed" );
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmdLine = null;
+        boolean displayHelp = params.length < 2;
+        if (params.length > 1) {
+            try {
+                // Stop at the function name, the options that follow are its own.
+                cmdLine = parser.parse(options, Arrays.copyOfRange(params, 1, params.length), true);
+                displayHelp = !cmdLine.hasOption("m") && cmdLine.getArgList().size() < 2;
+            } catch (ParseException e) {
+                displayHelp = true;
+                System.out.printf("Error: %s\n", e.getLocalizedMessage());
+            }
+        }
+        if (displayHelp) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("batch [options] function [function_options --] file [file...]\n"
+                    + "       batch [options] --manifest manifest_file", options);
+            return 0;
+        }
+
+        int threadCount = Integer.parseInt(cmdLine.getOptionValue("j",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        File resultsFile = cmdLine.hasOption("r") ? new File(cmdLine.getOptionValue("r")) : null;
+
+        BatchRunner runner = new BatchRunner(threadCount);
+        if (cmdLine.hasOption("l")) {
+            runner.setLeaseTimeout(Long.parseLong(cmdLine.getOptionValue("l")) * 1000L);
+            runner.setRetryFailed(cmdLine.hasOption("retry"));
+        }
+        if (cmdLine.hasOption("m")) {
+            File manifestFile = new File(cmdLine.getOptionValue("m"));
+            if (!manifestFile.isFile()) {
+                throw new Exception(String.format("Error: invalid file path \"%s\".", manifestFile.getPath()));
+            }
+            if (!cmdLine.getArgList().isEmpty()) {
+                throw new Exception("Error: files are listed in the manifest.");
+            }
+            for (BatchManifest.Job job : BatchManifest.load(manifestFile)) {
+                runner.add(job.fileName, job.steps);
+            }
+            // The results are always written for a manifest.
+            if (resultsFile == null) {
+                String baseName = FilenameUtils.getBaseName(manifestFile.getName());
+                resultsFile = new File(manifestFile.getAbsoluteFile().getParentFile(), baseName + "_results.csv");
+            }
+        } else {
+            List<String> argList = cmdLine.getArgList();
+            String funcName = argList.get(0);
+            FuncCode funcCode = STRING2FUNC.get(funcName.toLowerCase());
+            if (funcCode == null || funcCode == FuncCode.BATCH || funcCode == FuncCode.SERVE || funcCode == FuncCode.WATCH) {
+                throw new Exception(String.format("Error: invalid function name \"%s\".", funcName));
+            }
+
+            // The function options are separated from the files by "--".
+            int separator = argList.indexOf("--");
+            List<String> step = new ArrayList<>();
+            step.add(funcName);
+            if (separator != -1) {
+                step.addAll(argList.subList(1, separator));
+            }
+            for (String fileName : argList.subList(separator == -1 ? 1 : separator + 1, argList.size())) {
+                runner.add(fileName, Collections.singletonList(step));
+            }
+        }
+        if (runner.getResults().isEmpty()) {
+            throw new Exception("Error: no files specified.");
+        }
+
+        System.out.printf("Processing %d files with %d threads.\n", runner.getResults().size(), threadCount);
+        long start = System.nanoTime();
+        int failedCount = runner.run();
+        runner.printSummary((System.nanoTime() - start) / 1e9);
+        if (resultsFile != null) {
+            runner.writeResults(resultsFile);
+            System.out.printf("Saving results \"%s\".\n", resultsFile.getPath());
+        }
+        return failedCount == 0 ? 0 : 1;
+    }
+
     private static void constructPDF(
             String[] params
     ) throws Exception
@@ -275,8 +675,11 @@ public class PdfUtil
             properties.put(MetadataId.CREATION_DATE, LocalDateTime.now().toString());
             properties.put(MetadataId.PRODUCER, "Michigan Publishing Services");
 
-            PDDocument pdfDoc = new PDDocument();
+            PDDocument pdfDoc = newPDF();
             docAddMetadata(pdfDoc, properties);
+            if (report != null) {
+                report.setSource(params[0], dirFile.getName());
+            }
 
             Set<String> pathList = listFiles(dirFile);
             List<String> nameList = new ArrayList<>(pathList);
@@ -302,15 +705,32 @@ public class PdfUtil
                 pdfDoc.addPage(page);
 
                 FileImageInputStream is = new FileImageInputStream(imgFile);
-                ImageReader reader = ImageIO.getImageReaders(is).next();
-                ImageReadParam param = reader.getDefaultReadParam();
+                ImageReader reader = CodecPool.getReader(is);
+                if (reader == null) {
+                    is.close();
+                    throw new Exception(String.format("Error: no reader for image \"%s\".", imgFile.getName()));
+                }
+                ImageReadParam param = CodecPool.getReadParam(reader, reader::getDefaultReadParam);
                 reader.setInput(is);
 
+                ImageReport.Record record = null;
+                if (report != null) {
+                    record = report.newRecord(pdfDoc.getNumberOfPages(), 1, imgFile.getName());
+                    record.filter = reader.getFormatName();
+                    record.bytesIn = imgFile.length();
+                }
+
                 PDImageXObject newObj = null;
                 try {
+                    long start = System.nanoTime();
                     BufferedImage pageImage = reader.read(0, param);
                     int width = pageImage.getWidth();
                     int height = pageImage.getHeight();
+                    if (record != null) {
+                        record.decodeNanos = System.nanoTime() - start;
+                        record.width = width;
+                        record.height = height;
+                    }
 
                     if (resizePct != 100) {
                         Dimension imageDim = new Dimension(width, height);
@@ -319,13 +739,14 @@ public class PdfUtil
                         Dimension newImageDim = new Dimension(newWidth, newHeight);
 
                         Dimension newDim = getScaledDimension(imageDim, newImageDim);
-                        BufferedImage scaledImage = getScaledInstance(
+                        BufferedImage scaledImage = ImageResampler.resample(
                                 pageImage,
                                 (int) newDim.getWidth(),
-                                (int) newDim.getHeight(),
-                                RenderingHints.VALUE_INTERPOLATION_BICUBIC,
-                                true);
+                                (int) newDim.getHeight());
                         pageImage = scaledImage;
+                        if (record != null) {
+                            record.scaleNanos = System.nanoTime() - start - record.decodeNanos;
+                        }
 
                         /*
                         File scaledFile = new File(dirFile, String.format("page.%s", extractExt));
@@ -341,7 +762,16 @@ public class PdfUtil
                         */
                     }
 
+                    // The lossless encode also creates the XObject.
+                    start = System.nanoTime();
                     newObj = LosslessFactory.createFromImage(pdfDoc, pageImage);
+                    if (record != null) {
+                        record.encodeNanos = System.nanoTime() - start;
+                        record.outWidth = newObj.getWidth();
+                        record.outHeight = newObj.getHeight();
+                        record.bytesOut = newObj.getCOSObject().getLength();
+                        record.result = "added";
+                    }
                     PDPageContentStream cs = new PDPageContentStream(pdfDoc, page, PDPageContentStream.AppendMode.APPEND, false);
                     PDRectangle mediaBox = page.getMediaBox();
                     float pageRatio = mediaBox.getWidth() * 100 / mediaBox.getHeight();
@@ -363,11 +793,25 @@ public class PdfUtil
                     String msg = String.format("Error: reading image \"%s\".", imgFile.getName());
                     pageAddText(pdfDoc, page, msg);
                     System.out.println(e.getLocalizedMessage());
+                    if (record != null) {
+                        record.result = "failed";
+                        report.write(record);
+                    }
                     continue;
+                } finally {
+                    // The reader is reused for the next image.
+                    CodecPool.release(reader);
+                    is.close();
                 }
+                if (record != null) {
+                    report.write(record);
+                }
+            }
+            if (report != null) {
+                System.out.println(CodecPool.getSummary());
             }
             System.out.printf("Saving PDF \"%s\".\n", outputFile.getName());
-            pdfDoc.save(outputFile);
+            savePDF(pdfDoc, outputFile);
             pdfDoc.close();
         }
     }
@@ -495,14 +939,22 @@ public class PdfUtil
             int extPos = pdfFile.getName().lastIndexOf(".");
             String baseName = extPos == -1 ?
                     pdfFile.getName() : pdfFile.getName().substring(0, extPos);
+            File pdfWebFile = new File(pdfFile.getAbsoluteFile().getParentFile(), baseName + "_web.pdf");
 
-            PDDocument pdfDoc = PDDocument.load(pdfFile);
+            ResultCache.Entry cacheEntry = openCache(params[0], cmdLine, pdfFile, pdfWebFile);
+            if (cacheEntry != null && cacheEntry.restore()) {
+                continue;
+            }
+            List<File> outputList = new ArrayList<>();
+
+            PDDocument pdfDoc = loadPDF(pdfFile);
 
             if (coverPageNumber >= 0 && coverPageNumber < pdfDoc.getNumberOfPages() && coverFormatType != null) {
                 // Extract the cover.
                 String ext = FORMAT2EXT.get(coverFormatType);
                 String outputCoverPath = String.format("%s_cover.%s", baseName, ext);
                 File outputCoverFile = new File(pdfFile.getAbsoluteFile().getParentFile(), outputCoverPath);
+                outputList.add(outputCoverFile);
                 coverPDFImages(
                         pdfDoc,
                         coverPageNumber,
@@ -511,11 +963,10 @@ public class PdfUtil
                 );
             }
 
-            File pdfWebFile = new File(pdfFile.getAbsoluteFile().getParentFile(), baseName + "_web.pdf");
             if (pdfWebFile.exists()) {
                 // Copy the bookmarks.
                 System.out.printf("Web file \"%s\" exists, copying the bookmarks.\n", pdfWebFile.getName());
-                PDDocument pdfWebDoc = PDDocument.load(pdfWebFile);
+                PDDocument pdfWebDoc = loadPDF(pdfWebFile);
                 copyOutline(pdfDoc, pdfWebDoc, addEntries);
                 pdfWebDoc.close();
 
@@ -523,9 +974,14 @@ public class PdfUtil
                 String outputPDFPath = String.format("%s_outline.pdf", baseName);
                 File outputPDFFile = new File(pdfFile.getAbsoluteFile().getParent(), outputPDFPath);
                 System.out.printf("Saving file \"%s\".\n", outputPDFFile.getName());
-                pdfDoc.save(outputPDFFile);
+                savePDF(pdfDoc, outputPDFFile);
+                outputList.add(outputPDFFile);
             }
             pdfDoc.close();
+
+            if (cacheEntry != null) {
+                cacheEntry.store(outputList);
+            }
         }
     }
 
@@ -558,7 +1014,7 @@ public class PdfUtil
 
             String extractType = FORMAT2TYPE.get(FormatType.JPEG);
             String extractExt = FORMAT2EXT.get(FormatType.JPEG);
-            PDDocument pdfDoc = PDDocument.load(pdfFile);
+            PDDocument pdfDoc = loadPDF(pdfFile);
             PDFRenderer pdfRenderer = new PDFRenderer(pdfDoc);
 
             for (int j = 0; j < pdfDoc.getNumberOfPages(); j++) {
@@ -618,7 +1074,12 @@ public class PdfUtil
             String extractExt = FORMAT2EXT.get(coverFormatType);
             File outputFile = new File(pdfFile.getAbsoluteFile().getParentFile(), baseName + "_cover." + extractExt);
 
-            PDDocument pdfDoc = PDDocument.load(pdfFile);
+            ResultCache.Entry cacheEntry = openCache(params[0], cmdLine, pdfFile);
+            if (cacheEntry != null && cacheEntry.restore()) {
+                continue;
+            }
+
+            PDDocument pdfDoc = loadPDF(pdfFile);
             coverPDFImages(
                     pdfDoc,
                     coverPageNumber,
@@ -627,6 +1088,10 @@ public class PdfUtil
             );
 
             pdfDoc.close();
+
+            if (cacheEntry != null) {
+                cacheEntry.store(Collections.singletonList(outputFile));
+            }
         }
     }
 
@@ -653,6 +1118,53 @@ public class PdfUtil
         ImageIO.write(coverImage, extractType, outputFile);
     }
 
+    private static void dedupPDF(
+            String[] params
+    ) throws Exception
+    {
+        System.out.printf("Executing function \"%s\"\n", params[0]);
+        if (params.length < 2) {
+            throw new Exception(String.format("Usage: %s <pdf_file> [<pdf_file>...]", params[0]));
+        }
+
+        for (int i = 1; i < params.length; i++) {
+            String pdfFileName = params[i];
+            File pdfFile = new File(pdfFileName);
+            if (!pdfFile.exists()) {
+                throw new Exception(String.format("Error: invalid file path \"%s\".", pdfFileName));
+            }
+
+            PDDocument pdfDoc = loadPDF(pdfFile);
+            int duplicateCount = dedupPDFImages(pdfDoc);
+
+            if (duplicateCount > 0) {
+                int extPos = pdfFile.getName().lastIndexOf(".");
+                String baseName = extPos == -1 ?
+                        pdfFile.getName() : pdfFile.getName().substring(0, extPos);
+                String outputPDFPath = String.format("%s_%s.pdf", baseName, params[0]);
+                File outputPDFFile = new File(pdfFile.getAbsoluteFile().getParent(), outputPDFPath);
+                System.out.printf("Saving file \"%s\".\n", outputPDFFile.getName());
+                savePDF(pdfDoc, outputPDFFile);
+            } else {
+                System.out.printf("File \"%s\" has no duplicate images.\n", pdfFile.getName());
+            }
+            pdfDoc.close();
+        }
+    }
+
+    private static int dedupPDFImages(
+            PDDocument pdfDoc
+    ) throws Exception
+    {
+        ImageDeduplicator deduplicator = new ImageDeduplicator();
+        deduplicator.deduplicate(pdfDoc);
+        System.out.printf("Images: %d duplicates: %d reclaimed: %d bytes\n",
+                deduplicator.getImageCount(),
+                deduplicator.getDuplicateCount(),
+                deduplicator.getReclaimedBytes());
+        return deduplicator.getDuplicateCount();
+    }
+
     private static void extractPDF(
             String[] params
     ) throws Exception
@@ -699,7 +1211,10 @@ public class PdfUtil
                         outputDirFile.getAbsoluteFile()));
             }
 
-            PDDocument pdfDoc = PDDocument.load(pdfFile);
+            PDDocument pdfDoc = loadPDF(pdfFile);
+            if (report != null) {
+                report.setSource(params[0], pdfFile.getName());
+            }
             extractPDFImages(
                     pdfDoc,
                     coverFormatType,
@@ -739,14 +1254,28 @@ public class PdfUtil
                     PDImageXObject imageObj = (PDImageXObject) resources.getXObject(name);
                     totalPageWidth += imageObj.getWidth();
                     totalPageHeight += imageObj.getHeight();
+                    ImageReport.Record record = report == null ? null
+                            : report.newRecord(pageNum, imageNum, name.getName(), imageObj);
+                    long start = System.nanoTime();
                     BufferedImage image = imageObj.getImage();
+                    long decodeNanos = System.nanoTime() - start;
 
                     File outputFile = new File(outputDirFile, String.format("Page_%04d_Image_%04d_%s.%s",
                             pageNum, imageNum, name.getName(), extractExt));
 
                     System.out.printf("Extracting image %s %dx%d\n",
                             outputFile.getName(), image.getWidth(), image.getHeight());
+                    start = System.nanoTime();
                     ImageIO.write(image, extractType, outputFile);
+                    if (record != null) {
+                        record.decodeNanos = decodeNanos;
+                        record.encodeNanos = System.nanoTime() - start;
+                        record.outWidth = image.getWidth();
+                        record.outHeight = image.getHeight();
+                        record.bytesOut = outputFile.length();
+                        record.result = "extracted";
+                        report.write(record);
+                    }
                 }
             }
             System.out.printf("Page %d: Width: %d Height: %d\n", pageNum, totalPageWidth, totalPageHeight);
@@ -781,7 +1310,7 @@ public class PdfUtil
                         outputDirFile.getAbsoluteFile()));
             }
             */
-            PDDocument pdfDoc = PDDocument.load(pdfFile);
+            PDDocument pdfDoc = loadPDF(pdfFile);
             for (int j = 0; j < pdfDoc.getNumberOfPages(); j++) {
                 PDPage page = pdfDoc.getPage(j);
                 PDResources resources = page.getResources();
@@ -798,6 +1327,83 @@ public class PdfUtil
         }
     }
 
+    private static void generatePDF(
+            String[] params
+    ) throws Exception
+    {
+        System.out.printf("Executing function \"%s\"\n", params[0]);
+
+        Options options = new Options();
+        options.addOption("d", "outline_depth", true, "Outline depth [0-9]+" );
+        options.addOption("e", "fonts", true, "Embedded fonts [0-9]+" );
+        options.addOption("i", "images", true, "Images per page [0-9]+" );
+        options.addOption("m", "mix", true, "Image filter mix [dct|flate|jbig2|jpx][-rgb|-gray|-bitonal][:weight],..." );
+        options.addOption("n", "pages", true, "Page count [0-9]+" );
+        options.addOption("r", "shared_pct", true, "Shared image references % [0-9]+" );
+        options.addOption("s", "seed", true, "Random seed [0-9]+" );
+        options.addOption("w", "outline_breadth", true, "Outline entries per level [0-9]+" );
+        options.addOption("x", "form_depth", true, "Form XObject nesting depth [0-9]+" );
+        options.addOption("z", "image_size", true, "Image size [0-9]+x[0-9]+" );
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmdLine = null;
+        boolean displayHelp = params.length < 2;
+        if (params.length > 1) {
+            try {
+                cmdLine = parser.parse(options, params);
+            } catch (ParseException e) {
+                displayHelp = true;
+                System.out.printf("Error: %s\n", e.getLocalizedMessage());
+            }
+        }
+        if (displayHelp) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp(String.format("%s [options] pdf_file [pdf_file...]", params[0]), options);
+            return;
+        }
+
+        long seed = Long.parseLong(cmdLine.getOptionValue("s", "1"));
+        String imageSize = cmdLine.getOptionValue("z", "1200x1600");
+        String[] dims = imageSize.toLowerCase().split("x");
+        if (dims.length != 2 || !dims[0].matches("[0-9]+") || !dims[1].matches("[0-9]+")) {
+            throw new Exception(String.format("Error: invalid image size \"%s\".", imageSize));
+        }
+
+        List<String> pdfFileList = cmdLine.getArgList();
+        for (int i = 1; i < pdfFileList.size(); i++) {
+            File outputPDFFile = new File(pdfFileList.get(i));
+
+            // Each file of a corpus has its own seed.
+            long fileSeed = seed + i - 1;
+            CorpusGenerator generator = new CorpusGenerator(fileSeed);
+            generator.setPageCount(Integer.parseInt(cmdLine.getOptionValue("n", "10")));
+            generator.setImages(
+                    Integer.parseInt(cmdLine.getOptionValue("i", "1")),
+                    Integer.parseInt(dims[0]),
+                    Integer.parseInt(dims[1])
+            );
+            try {
+                generator.setFilterMix(cmdLine.getOptionValue("m", "dct"));
+            } catch (IllegalArgumentException e) {
+                throw new Exception(e.getLocalizedMessage());
+            }
+            generator.setSharedPct(Integer.parseInt(cmdLine.getOptionValue("r", "0")));
+            generator.setOutline(
+                    Integer.parseInt(cmdLine.getOptionValue("d", "0")),
+                    Integer.parseInt(cmdLine.getOptionValue("w", "4"))
+            );
+            generator.setFontCount(Integer.parseInt(cmdLine.getOptionValue("e", "0")));
+            generator.setFormDepth(Integer.parseInt(cmdLine.getOptionValue("x", "0")));
+
+            System.out.printf("Generating file \"%s\" with seed %d.\n", outputPDFFile.getName(), fileSeed);
+            PDDocument pdfDoc = newPDF();
+            generator.generate(pdfDoc);
+            System.out.printf("Saving file \"%s\".\n", outputPDFFile.getName());
+            savePDF(pdfDoc, outputPDFFile);
+            pdfDoc.close();
+        }
+    }
+
     private static void infoPDF(
             String[] params
     ) throws Exception
@@ -805,6 +1411,7 @@ public class PdfUtil
         System.out.printf("Executing function \"%s\"\n", params[0]);
 
         Options options = new Options();
+        options.addOption("n", "gray_tolerance", true, "Count neutral color images [0-9]+" );
 
         CommandLineParser parser = new DefaultParser();
         CommandLine cmdLine = null;
@@ -819,10 +1426,12 @@ public class PdfUtil
         }
         if (displayHelp) {
             HelpFormatter formatter = new HelpFormatter();
-            formatter.printHelp("info pdf_file [pdf_file...]", options);
+            formatter.printHelp("info [options] pdf_file [pdf_file...]", options);
             return;
         }
 
+        int grayTolerance = Integer.parseInt(cmdLine.getOptionValue("n", "-1"));
+
         List<String> pdfFileList = cmdLine.getArgList();
         for (String pdfFileName : pdfFileList.subList(1, pdfFileList.size())) {
             File pdfFile = new File(pdfFileName);
@@ -835,9 +1444,10 @@ public class PdfUtil
                     pdfFile.getName() : pdfFile.getName().substring(0, extPos);
             File outputFile = new File(pdfFile.getAbsoluteFile().getParentFile(), baseName + "_resources.log");
 
-            PDDocument pdfDoc = PDDocument.load(pdfFile);
+            PDDocument pdfDoc = loadPDF(pdfFile);
             infoPDFImages(
                     pdfDoc,
+                    grayTolerance,
                     outputFile
             );
             pdfDoc.close();
@@ -846,6 +1456,7 @@ public class PdfUtil
 
     private static void infoPDFImages(
             PDDocument pdfDoc,
+            int grayTolerance,
             File outputFile
         ) throws Exception
     {
@@ -855,6 +1466,7 @@ public class PdfUtil
         Map<String, Integer> suffixMap = new HashMap<>();
 
         int imageCnt = 0;
+        int neutralCnt = 0;
         for (int i = 0; i < pdfDoc.getNumberOfPages(); i++) {
             PDPage page = pdfDoc.getPage(i);
 
@@ -902,6 +1514,15 @@ public class PdfUtil
                     lines.add(String.format("Color Space: %s\n", imageObj.getColorSpace().getName()));
                     lines.add(String.format("Components: %d\n", imageObj.getColorSpace().getNumberOfComponents()));
                     lines.add(String.format("Bits/Component: %d\n", imageObj.getBitsPerComponent()));
+
+                    if (grayTolerance >= 0 && imageObj.getColorSpace().getNumberOfComponents() > 1) {
+                        // A subsampled decode of about a megapixel is sufficient.
+                        int subsampling = (int) Math.sqrt((double) imageObj.getWidth() * imageObj.getHeight() / (1024 * 1024));
+                        BufferedImage image = ImageDecoder.decode(imageObj, subsampling);
+                        boolean neutral = ChannelReducer.isNeutral(image, grayTolerance);
+                        neutralCnt += neutral ? 1 : 0;
+                        lines.add(String.format("Neutral: %s\n", neutral ? "yes" : "no"));
+                    }
                 }
             }
         }
@@ -909,6 +1530,9 @@ public class PdfUtil
         for (Map.Entry<String, Integer> entry : suffixMap.entrySet()) {
             summary.add(String.format("%s: %d\n", entry.getKey(), entry.getValue()));
         }
+        if (grayTolerance >= 0) {
+            summary.add(String.format("Neutral: %d\n", neutralCnt));
+        }
         summary.addAll(lines);
         FileUtils.writeStringToFile(outputFile, summary.toString(), StandardCharsets.UTF_8);
     }
@@ -929,7 +1553,7 @@ public class PdfUtil
                 throw new Exception(String.format("Error: invalid file path \"%s\".", pdfFileName));
             }
 
-            PDDocument pdfDoc = PDDocument.load(pdfFile);
+            PDDocument pdfDoc = loadPDF(pdfFile);
             objectsPDFImages(
                     pdfDoc
             );
@@ -971,13 +1595,24 @@ public class PdfUtil
         System.out.printf("Executing function \"%s\"\n", params[0]);
 
         Options options = new Options();
+        options.addOption("b", "page_size", true, "Target bytes per page [0-9]+[KMG]" );
         options.addOption("c", "cover_format", true, "Cover format [bmp|jpeg|jpeg2000|png]" );
         options.addOption("d", "delete_dir", false, "Delete image directory" );
+        options.addOption("e", "estimate", false, "Estimate the output size and time only" );
         options.addOption("f", "image_format", true, "Image format [bmp|jpeg|jpeg2000|png]" );
+        options.addOption("g", "no_g4", false, "Do not encode bitonal images as CCITT G4, as done by default" );
+        options.addOption("j", "threads", true, "Worker threads [0-9]+" );
+        options.addOption("k", "keep_images", false, "Write optimized images to an image directory" );
         options.addOption("l", "compression_level", true, "Compression level %" );
+        options.addOption("m", "min_saving", true, "Minimum saving % to replace an image [0-9]+" );
+        options.addOption("n", "gray_tolerance", true, "Reduce neutral color images to gray [0-9]+" );
         options.addOption("p", "cover_page", true, "Cover page [0-9]+" );
         options.addOption("r", "resize_pct", true, "Resize %" );
+        options.addOption("s", "target_size", true, "Target file size [0-9]+[KMG]" );
         options.addOption("t", "dimen_threshold", true, "Dimension threshold [0-9]+" );
+        options.addOption("u", "dedup", false, "Remove duplicate images" );
+        options.addOption(null, "journal", false, "Journal the completed images so that the run can be resumed" );
+        options.addOption(null, "resume", false, "Resume from the journal of an interrupted run" );
 
         CommandLineParser parser = new DefaultParser();
         CommandLine cmdLine = null;
@@ -999,9 +1634,19 @@ public class PdfUtil
         FormatType coverFormatType = cmdLine.hasOption("c") ? STRING2FORMAT.get(cmdLine.getOptionValue("c")) : null;
         FormatType imageFormatType = STRING2FORMAT.get(cmdLine.getOptionValue("f", "jpeg"));
         int coverPageNumber = Integer.parseInt(cmdLine.getOptionValue("p", "0"));
-        int compressionLevel = Integer.parseInt(cmdLine.getOptionValue("l", "70"));
+        long targetSize = cmdLine.hasOption("s") ? parseSize(cmdLine.getOptionValue("s")) : 0;
+        long pageSize = cmdLine.hasOption("b") ? parseSize(cmdLine.getOptionValue("b")) : 0;
+        boolean hasTarget = targetSize > 0 || pageSize > 0;
+        // With a target size, the compression level is the highest quality tried.
+        int compressionLevel = Integer.parseInt(cmdLine.getOptionValue("l", hasTarget ? "95" : "70"));
         int resizePct = Integer.parseInt(cmdLine.getOptionValue("r", "100"));
         int imageSizeLimit = Integer.parseInt(cmdLine.getOptionValue("t", "0"));
+        int minSaving = Integer.parseInt(cmdLine.getOptionValue("m", "0"));
+        int grayTolerance = Integer.parseInt(cmdLine.getOptionValue("n", "-1"));
+        int threadCount = Integer.parseInt(cmdLine.getOptionValue("j",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        // Nothing is written when estimating.
+        boolean estimate = cmdLine.hasOption("e");
 
         List<String> pdfFileList = cmdLine.getArgList();
         for (String pdfFileName : pdfFileList.subList(1, pdfFileList.size())) {
@@ -1013,22 +1658,40 @@ public class PdfUtil
             int extPos = pdfFile.getName().lastIndexOf(".");
             String baseName = extPos == -1 ?
                     pdfFile.getName() : pdfFile.getName().substring(0, extPos);
-            String outputDirPath = String.format("%s_%dpct_%dlevel", baseName, resizePct, compressionLevel);
-            File outputDirFile = new File(pdfFile.getAbsoluteFile().getParentFile(), outputDirPath);
-            if (!outputDirFile.exists()) {
-                outputDirFile.mkdir();
-            } else if (!outputDirFile.isDirectory()) {
-                throw new Exception(String.format("Error: invalid directory path \"%s\"\n.",
-                        outputDirFile.getAbsoluteFile()));
+            File pdfWebFile = new File(pdfFile.getAbsoluteFile().getParentFile(), baseName + "_web.pdf");
+
+            // Nothing is cached when estimating.
+            ResultCache.Entry cacheEntry = estimate ? null : openCache(params[0], cmdLine, pdfFile, pdfWebFile);
+            if (cacheEntry != null && cacheEntry.restore()) {
+                continue;
+            }
+            List<File> outputList = new ArrayList<>();
+
+            // The optimized images are only written to disk when requested.
+            File outputDirFile = null;
+            if (cmdLine.hasOption("k") && !estimate) {
+                String outputDirPath = String.format("%s_%dpct_%dlevel", baseName, resizePct, compressionLevel);
+                outputDirFile = new File(pdfFile.getAbsoluteFile().getParentFile(), outputDirPath);
+                if (!outputDirFile.exists()) {
+                    outputDirFile.mkdir();
+                } else if (!outputDirFile.isDirectory()) {
+                    throw new Exception(String.format("Error: invalid directory path \"%s\"\n.",
+                            outputDirFile.getAbsoluteFile()));
+                }
             }
 
-            PDDocument pdfDoc = PDDocument.load(pdfFile);
+            PDDocument pdfDoc = loadPDF(pdfFile);
+            if (report != null) {
+                report.setSource(params[0], pdfFile.getName());
+            }
 
-            if (coverPageNumber >= 0 && coverPageNumber < pdfDoc.getNumberOfPages() && coverFormatType != null) {
+            if (coverPageNumber >= 0 && coverPageNumber < pdfDoc.getNumberOfPages() && coverFormatType != null
+                    && !estimate) {
                 // Extract the cover.
                 String ext = FORMAT2EXT.get(coverFormatType);
                 String outputCoverPath = String.format("%s_cover.%s", baseName, ext);
                 File outputCoverFile = new File(pdfFile.getAbsoluteFile().getParentFile(), outputCoverPath);
+                outputList.add(outputCoverFile);
                 coverPDFImages(
                         pdfDoc,
                         coverPageNumber,
@@ -1037,6 +1700,41 @@ public class PdfUtil
                 );
             }
 
+            if (cmdLine.hasOption("u")) {
+                // Remove duplicate images before they are optimized.
+                dedupPDFImages(pdfDoc);
+            }
+
+            long documentTargetSize = targetSize;
+            if (pageSize > 0) {
+                long pagesSize = pageSize * pdfDoc.getNumberOfPages();
+                documentTargetSize = documentTargetSize > 0 ? Math.min(documentTargetSize, pagesSize) : pagesSize;
+            }
+
+            String outputPDFPath = documentTargetSize > 0 ?
+                    String.format("%s_optimize_%dpct_%dbytes.pdf", baseName, resizePct, documentTargetSize) :
+                    String.format("%s_optimize_%dpct_%dlevel.pdf", baseName, resizePct, compressionLevel);
+            File outputPDFFile = new File(pdfFile.getAbsoluteFile().getParent(), outputPDFPath);
+
+            // Journal the completed images next to the output so that
+            // an interrupted run can be resumed. Only when requested, as
+            // the journal writes every encoded image to disk.
+            ImageJournal journal = null;
+            if (!estimate && (cmdLine.hasOption("journal") || cmdLine.hasOption("resume"))) {
+                journal = new ImageJournal(
+                        new File(outputPDFFile.getPath() + ".journal"),
+                        String.format("%s %d %d format=%s level=%d resize=%d threshold=%d min_saving=%d g4=%b gray=%d target=%d dedup=%b",
+                                pdfFile.getName(), pdfFile.length(), pdfFile.lastModified(),
+                                FORMAT2EXT.get(imageFormatType), compressionLevel, resizePct, imageSizeLimit,
+                                minSaving, !cmdLine.hasOption("g"), grayTolerance, documentTargetSize,
+                                cmdLine.hasOption("u"))
+                );
+                if (cmdLine.hasOption("resume")) {
+                    int count = journal.load();
+                    System.out.printf("Resuming with %d images from the journal.\n", count);
+                }
+            }
+
             // Resize the images.
             boolean result = optimizePDFImages(
                     pdfDoc,
@@ -1044,33 +1742,50 @@ public class PdfUtil
                     compressionLevel,
                     resizePct,
                     imageSizeLimit,
-                    outputDirFile
+                    threadCount,
+                    minSaving,
+                    !cmdLine.hasOption("g"),
+                    grayTolerance,
+                    outputDirFile,
+                    documentTargetSize,
+                    pdfFile.length(),
+                    estimate,
+                    journal
             );
 
-            if (result) {
-                File pdfWebFile = new File(pdfFile.getAbsoluteFile().getParentFile(), baseName + "_web.pdf");
+            if (estimate) {
+                System.out.printf("File \"%s\" has not been written.\n", pdfFile.getName());
+            } else if (result) {
                 if (pdfWebFile.exists()) {
                     // Copy the bookmarks.
                     System.out.printf("Web file \"%s\" exists, copying the bookmarks.\n", pdfWebFile.getName());
-                    PDDocument pdfWebDoc = PDDocument.load(pdfWebFile);
+                    PDDocument pdfWebDoc = loadPDF(pdfWebFile);
                     copyOutline(pdfDoc, pdfWebDoc, false);
                     pdfWebDoc.close();
                 }
 
                 // Save the resized PDF to a new name.
-                String outputPDFPath = String.format("%s_optimize_%dpct_%dlevel.pdf",
-                        baseName, resizePct, compressionLevel);
-                File outputPDFFile = new File(pdfFile.getAbsoluteFile().getParent(), outputPDFPath);
                 System.out.printf("Saving file \"%s\".", outputPDFFile.getName());
-                pdfDoc.save(outputPDFFile);
+                savePDF(pdfDoc, outputPDFFile);
+                outputList.add(outputPDFFile);
             } else {
                 System.out.printf("File \"%s\" has not been reduced.\n", pdfFile.getName());
             }
+            if (journal != null) {
+                // The journal is no longer needed once the run completes.
+                journal.delete();
+            }
 
             pdfDoc.close();
 
-            if (cmdLine.hasOption("d")) {
+            if (cmdLine.hasOption("d") && outputDirFile != null) {
                 FileUtils.deleteDirectory(outputDirFile);
+            } else if (outputDirFile != null) {
+                outputList.add(outputDirFile);
+            }
+
+            if (cacheEntry != null) {
+                cacheEntry.store(outputList);
             }
         }
     }
@@ -1081,152 +1796,43 @@ public class PdfUtil
             int compressionLevel,
             int resizePct,
             int imageSizeLimit,
-            File outputDirFile
+            int threadCount,
+            int minSaving,
+            boolean bitonal,
+            int grayTolerance,
+            File outputDirFile,
+            long targetSize,
+            long documentSize,
+            boolean estimate,
+            ImageJournal journal
         ) throws Exception
     {
-        // Traverse the source PDF pdfDoc pages.
-        for (int i = 0; i < pdfDoc.getNumberOfPages(); i++) {
-            int pageNum = i + 1;
-
-            PDPage page = pdfDoc.getPage(i);
-
-            // Get the page resources.
-            PDResources resources = page.getResources();
-            Iterable<COSName> xobjectNames = resources.getXObjectNames();
-
-            String extractExt = FORMAT2EXT.get(formatType);
-            String extractType = FORMAT2TYPE.get(formatType);
-
-            // Traverse source page resources.
-            int imageNum = 0;
-            for (COSName name : xobjectNames) {
-                if (resources.isImageXObject(name)) {
-                    imageNum += 1;
-
-                    File outputFile = new File(outputDirFile, String.format("Page_%04d_Image_%04d.%s",
-                            pageNum, imageNum, extractExt));
-
-                    PDImageXObject imageObj = (PDImageXObject) resources.getXObject(name);
-                    String suffix = imageObj.getSuffix();
-
-                    /*
-                    if (resizePct == 100 && suffix.equalsIgnoreCase("jpg")) {
-                        System.out.printf("Skipping image page %d image %d suffix %s resizePct %d\n",
-                                pageNum, imageNum, suffix, resizePct);
-                        continue;
-                    }
-                    */
-                    if (!suffix.equalsIgnoreCase("jpg") && !suffix.equalsIgnoreCase("png") && !suffix.equalsIgnoreCase("bmp")) {
-                        System.out.printf("Skipping image page %d image %d suffix %s\n",
-                                pageNum, imageNum, suffix);
-                        continue;
-                    }
-                    System.out.printf("Processing image page %d image %d suffix %s\n",
-                            pageNum, imageNum, suffix);
-
-                    BufferedImage image = null;
-                    try {
-                        image = imageObj.getImage();
-                    } catch (MissingImageReaderException exception) {
-                        System.out.printf("Error: %s\n", exception.getLocalizedMessage());
-                        //return false;
-                        continue;
-                    }
-
-                    BufferedImage scaledImage = image;
-                    boolean imageScaled = false;
-
-                    int width = image.getWidth();
-                    int height = image.getHeight();
-                    if (width < imageSizeLimit && height < imageSizeLimit) {
-                        System.out.printf("Dimensions: %dx%d less than limit %d. Skipping scaling.\n",
-                                width, height, imageSizeLimit);
-                    } else if (resizePct == 100) {
-                        System.out.printf("Resize pct = %d. Skipping scaling.\n", resizePct);
-                    } else {
-                        Dimension imageDim = new Dimension(width, height);
-                        int newWidth = ((width * resizePct) / 100);
-                        newWidth = newWidth < 1 ? 1 : newWidth;
-                        int newHeight = ((height * resizePct) / 100);
-                        newHeight = newHeight < 1 ? 1 : newHeight;
-                        Dimension newImageDim = new Dimension(newWidth, newHeight);
-                        System.out.printf("Dimensions: %dx%d => %dx%d\n", width, height,
-                                newWidth, newHeight);
-
-                        Dimension newDim = getScaledDimension(imageDim, newImageDim);
-                        newWidth = newDim.getWidth() < 1.0 ? 1 : (int) newDim.getWidth();
-                        newHeight = newDim.getHeight() < 1.0 ? 1 : (int) newDim.getHeight();
-                        scaledImage = getScaledInstance(
-                                image,
-                                newWidth,
-                                newHeight,
-                                RenderingHints.VALUE_INTERPOLATION_BICUBIC,
-                                true);
-                        imageScaled = true;
-                    }
-
-                    System.out.printf("Optimizing image %s %dx%d\n",
-                            outputFile.getName(), scaledImage.getWidth(), scaledImage.getHeight());
-
-                    // Can't write this as a jpeg2000 because
-                    // PDImageXObject.createFromFile below will
-                    // throw an exception attempting to read a jp2 file.
-                    // Using ImageIO.read will load the jp2 image, but
-                    // LosslessFactory.createFromImage will convert it to a
-                    // PNG and insert it into the PDF as such, thus no file
-                    // size savings.
-                    JPEGImageWriteParam jpegParams = new JPEGImageWriteParam(null);
-                    jpegParams.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-                    jpegParams.setCompressionQuality(compressionLevel / 100.0f);
-
-                    FileImageOutputStream outStream = new FileImageOutputStream(outputFile);
-                    final ImageWriter writer = ImageIO.getImageWritersBySuffix(extractExt).next();
-                    writer.setOutput(outStream);
-
-                    try {
-                        writer.write(null, new IIOImage(scaledImage, null, null), jpegParams);
-                    } catch (IIOException exception) {
-                        // Problem writing image. Log a message and skip it.
-                        System.out.printf("Optimizing image %s %dx%d write FAILED, not replaced.\n",
-                                outputFile.getName(), scaledImage.getWidth(), scaledImage.getHeight());
-                        continue;
-                    } finally {
-                        outStream.close();
-                        writer.dispose();
-                    }
-
-                    /*
-                    ImageInputStream stream = ImageIO.createImageInputStream(outputFile);
-                    try {
-                        Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
-                        BufferedImage newImage = null;
-                        while (readers.hasNext()) {
-                            ImageReader reader = readers.next();
-                            reader.setInput(stream);
-
-                            try {
-                                newImage = reader.read(0);
-                            } catch (IIOException exception) {
-                                System.out.printf("Optimizing image %s %dx%d re-read FAILED, not replaced.\n",
-                                        outputFile.getName(), scaledImage.getWidth(), scaledImage.getHeight());
-                                continue;
-                            } finally {
-                                reader.dispose();
-                            }
-                        }
-                        //BufferedImage newImage = ImageIO.read(outputFile);
-                        PDImageXObject newObj = LosslessFactory.createFromImage(pdfDoc, newImage);
-                        resources.put(name, newObj);
-                    } finally {
-                        stream.close();
-                    }
-                        */
-                    PDImageXObject newObj = PDImageXObject.createFromFile(outputFile.getAbsolutePath(), pdfDoc);
-                    resources.put(name, newObj);
-                }
-            }
-        }
-        return true;
+        // Decode, scale and encode the images on a pool of
+        // worker threads, replacing them in page order.
+        ImageOptimizer optimizer = new ImageOptimizer(
+                FORMAT2EXT.get(formatType),
+                compressionLevel,
+                resizePct,
+                imageSizeLimit,
+                threadCount,
+                outputDirFile
+        );
+        // Keep the original images that would not shrink.
+        optimizer.setMinSaving(minSaving);
+        optimizer.setBitonal(bitonal);
+        optimizer.setGrayTolerance(grayTolerance);
+        optimizer.setJournal(journal);
+        optimizer.setReport(report);
+        if (estimate) {
+            // Encode a sample of the images and report.
+            optimizer.estimate(pdfDoc, documentSize);
+            return false;
+        }
+        if (targetSize > 0) {
+            // Choose the compression level to fit the target size.
+            optimizer.setTargetSize(targetSize, documentSize);
+        }
+        return optimizer.optimize(pdfDoc);
     }
 
     private static void fixOutline(
@@ -1263,7 +1869,7 @@ public class PdfUtil
             }
             System.out.printf("Fixing \"%s\".\n", pdfFileName);
 
-            PDDocument pdfDoc = PDDocument.load(pdfFile);
+            PDDocument pdfDoc = loadPDF(pdfFile);
             PDDocumentCatalog catalog = pdfDoc.getDocumentCatalog();
             PDDocumentOutline outline = catalog.getDocumentOutline();
             if (outline == null) {
@@ -1331,7 +1937,7 @@ public class PdfUtil
             String outputPDFPath = String.format("%s_fix.pdf", baseName);
             File outputPDFFile = new File(pdfFile.getAbsoluteFile().getParent(), outputPDFPath);
             System.out.printf("Saving file \"%s\".\n", outputPDFFile.getName());
-            pdfDoc.save(outputPDFFile);
+            savePDF(pdfDoc, outputPDFFile);
 
             pdfDoc.close();
         }
@@ -1373,7 +1979,7 @@ public class PdfUtil
                 continue;
             }
 
-            PDDocument pdfDoc = PDDocument.load(pdfFile);
+            PDDocument pdfDoc = loadPDF(pdfFile);
             PDDocumentOutline outline = pdfDoc.getDocumentCatalog().getDocumentOutline();
             if (outline == null) {
                 System.out.printf("\"%s\": Warning: document outline does not exist.\n", pdfFile.getName());
@@ -1483,7 +2089,7 @@ public class PdfUtil
             String extractExt = FORMAT2EXT.get(coverFormatType);
             File outputFile = new File(pdfFile.getAbsoluteFile().getParentFile(), baseName + "_cover_merge.pdf");
 
-            PDDocument pdfDoc = PDDocument.load(pdfFile);
+            PDDocument pdfDoc = loadPDF(pdfFile);
             replaceCoverPDFImages(
                     pdfDoc,
                     coverPageNumber,
@@ -1517,7 +2123,7 @@ public class PdfUtil
 
         // Create a new PDF, replacing the cover page
         // with the extracted image.
-        PDDocument newPdfDoc = new PDDocument();
+        PDDocument newPdfDoc = newPDF();
         for (int pageNdx = 0; pageNdx < pdfDoc.getNumberOfPages(); pageNdx++) {
             PDPage page = pdfDoc.getPage(pageNdx);
             if (pageNdx != coverImageIndex) {
@@ -1537,7 +2143,7 @@ public class PdfUtil
             cs.close();
         }
 
-        newPdfDoc.save(outputFile);
+        savePDF(newPdfDoc, outputFile);
         newPdfDoc.close();
     }
 
@@ -1687,11 +2293,14 @@ public class PdfUtil
                         inputDirFile.getAbsoluteFile()));
             }
 
-            PDDocument pdfDoc = PDDocument.load(pdfFile);
+            PDDocument pdfDoc = loadPDF(pdfFile);
+            if (report != null) {
+                report.setSource(params[0], pdfFile.getName());
+            }
             replacePDFImages(pdfDoc, inputDirFile);
 
             File outputPDFFile = new File(pdfFile.getAbsoluteFile().getParent(), baseName + "_new.pdf");
-            pdfDoc.save(outputPDFFile);
+            savePDF(pdfDoc, outputPDFFile);
             pdfDoc.close();
         }
     }
@@ -1725,10 +2334,22 @@ public class PdfUtil
                     }
 
                     System.out.printf("Replacing image \"%s\"\n", inputFile.getName());
+                    ImageReport.Record record = report == null ? null
+                            : report.newRecord(pageNum, imageNum, name.getName(),
+                                    (PDImageXObject) resources.getXObject(name));
+                    long start = System.nanoTime();
                     PDImageXObject newObj = PDImageXObject.createFromFile(inputFile.getAbsolutePath(), pdfDoc);
                     //BufferedImage image = ImageIO.read(inputFile);
                     //PDImageXObject newObj = LosslessFactory.createFromImage(pdfDoc, image);
                     resources.put(name, newObj);
+                    if (record != null) {
+                        record.importNanos = System.nanoTime() - start;
+                        record.outWidth = newObj.getWidth();
+                        record.outHeight = newObj.getHeight();
+                        record.bytesOut = newObj.getCOSObject().getLength();
+                        record.result = "replaced";
+                        report.write(record);
+                    }
                 }
             }
         }
@@ -1756,7 +2377,10 @@ public class PdfUtil
                 return;
             }
 
-            PDDocument pdfDoc = PDDocument.load(pdfFile);
+            PDDocument pdfDoc = loadPDF(pdfFile);
+            if (report != null) {
+                report.setSource(params[0], pdfFile.getName());
+            }
             resizePDFImages(pdfDoc, resizePct);
 
             // Save the new PDF and close it.
@@ -1765,7 +2389,7 @@ public class PdfUtil
                     pdfFile.getName() : pdfFile.getName().substring(0, extPos);
             String outputPDFPath = String.format("%s_resize_%d.pdf", baseName, resizePct);
             File outputPDFFile = new File(pdfFile.getAbsoluteFile().getParent(), outputPDFPath);
-            pdfDoc.save(outputPDFFile);
+            savePDF(pdfDoc, outputPDFFile);
             pdfDoc.close();
         }
     }
@@ -1775,6 +2399,12 @@ public class PdfUtil
             int resizePct
         ) throws Exception
     {
+        // Resized images by source stream, so that an image
+        // shared by several pages is only resized once. The
+        // resized streams map to themselves, so that pages sharing
+        // the resources do not resize them again.
+        Map<COSStream, PDImageXObject> resizedMap = new IdentityHashMap<>();
+
         // Traverse the source PDF pdfDoc pages.
         for (int i = 0; i < pdfDoc.getNumberOfPages(); i++) {
             int pageNum = i + 1;
@@ -1792,12 +2422,26 @@ public class PdfUtil
             Iterable<COSName> xobjectNames = resources.getXObjectNames();
 
             // Traverse source page resources.
+            int imageNum = 0;
             for (COSName name : xobjectNames) {
                 if (resources.isImageXObject(name)) {
+                    imageNum += 1;
                     PDImageXObject imageObj = (PDImageXObject) resources.getXObject(name);
-                    BufferedImage image = imageObj.getImage();
-                    int width = image.getWidth();
-                    int height = image.getHeight();
+                    ImageReport.Record record = report == null ? null
+                            : report.newRecord(pageNum, imageNum, name.getName(), imageObj);
+                    PDImageXObject resizedObj = resizedMap.get(imageObj.getCOSObject());
+                    if (resizedObj != null) {
+                        System.out.printf("Reusing resized image %s\n", name.getName());
+                        resources.put(name, resizedObj);
+                        if (record != null) {
+                            record.result = "shared";
+                            report.write(record);
+                        }
+                        continue;
+                    }
+
+                    int width = imageObj.getWidth();
+                    int height = imageObj.getHeight();
                     Dimension imageDim = new Dimension(width, height);
                     int newWidth = ((width * resizePct)/100);
                     int newHeight = ((height * resizePct)/100);
@@ -1805,21 +2449,71 @@ public class PdfUtil
                     System.out.printf("Dimensions: %dx%d => %dx%d\n", width, height,
                             newWidth, newHeight);
 
+                    // Subsample while decoding to twice the target when reducing by 4x or more.
                     Dimension newDim = getScaledDimension(imageDim, newImageDim);
-                    BufferedImage scaledImage = getScaledInstance(
+                    int subsampling = ImageDecoder.getSubsampling(imageObj, newDim.width, newDim.height);
+                    long decodeStart = System.nanoTime();
+                    BufferedImage image = ImageDecoder.decode(imageObj, subsampling);
+                    long scaleStart = System.nanoTime();
+                    BufferedImage scaledImage = ImageResampler.resample(
                             image,
                             (int) newDim.getWidth(),
-                            (int) newDim.getHeight(),
-                            RenderingHints.VALUE_INTERPOLATION_BICUBIC,
-                            true);
+                            (int) newDim.getHeight());
 
+                    // The lossless encode also creates the XObject.
+                    long encodeStart = System.nanoTime();
                     PDImageXObject resizedXobject = LosslessFactory.createFromImage(pdfDoc, scaledImage);
+                    resizedMap.put(imageObj.getCOSObject(), resizedXobject);
+                    resizedMap.put(resizedXobject.getCOSObject(), resizedXobject);
                     resources.put(name, resizedXobject);
+                    if (record != null) {
+                        record.decodeNanos = scaleStart - decodeStart;
+                        record.scaleNanos = encodeStart - scaleStart;
+                        record.encodeNanos = System.nanoTime() - encodeStart;
+                        record.outWidth = resizedXobject.getWidth();
+                        record.outHeight = resizedXobject.getHeight();
+                        record.bytesOut = resizedXobject.getCOSObject().getLength();
+                        record.result = "replaced";
+                        report.write(record);
+                    }
                 }
             }
         }
     }
 
+    private static void servePDF(
+            String[] params
+    ) throws Exception
+    {
+        System.out.printf("Executing function \"%s\"\n", params[0]);
+
+        Options options = new Options();
+        options.addOption("j", "threads", true, "Requests run at once [0-9]+" );
+        options.addOption("k", "token_file", true, "Token file, ~/.pdfutil/server_<port>.token by default" );
+        options.addOption("n", "port", true, "Loopback port [0-9]+" );
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmdLine = null;
+        try {
+            cmdLine = parser.parse(options, params);
+        } catch (ParseException e) {
+            System.out.printf("Error: %s\n", e.getLocalizedMessage());
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("serve [options]", options);
+            return;
+        }
+
+        int port = Integer.parseInt(cmdLine.getOptionValue("n", "8765"));
+        int threadCount = Integer.parseInt(cmdLine.getOptionValue("j",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+        Path tokenFile = cmdLine.hasOption("k") ?
+                Paths.get(cmdLine.getOptionValue("k")) : PdfServer.getDefaultTokenFile(port);
+
+        PdfServer server = new PdfServer(port, threadCount, tokenFile);
+        server.serve();
+    }
+
     private static void shrinkPDF(
             String[] params
         ) throws Exception
@@ -1837,7 +2531,7 @@ public class PdfUtil
                 return;
             }
 
-            PDDocument pdfDoc = PDDocument.load(pdfFile);
+            PDDocument pdfDoc = loadPDF(pdfFile);
             shrinkPDFImages(pdfDoc);
 
             // Save the new PDF and close it.
@@ -1846,7 +2540,7 @@ public class PdfUtil
                     pdfFile.getName() : pdfFile.getName().substring(0, extPos);
             String outputPDFPath = String.format("%s_%s.pdf", baseName, params[0]);
             File outputPDFFile = new File(pdfFile.getAbsoluteFile().getParent(), outputPDFPath);
-            pdfDoc.save(outputPDFFile);
+            savePDF(pdfDoc, outputPDFFile);
             pdfDoc.close();
         }
     }
@@ -1854,6 +2548,8 @@ public class PdfUtil
             PDDocument pdfDoc
         ) throws Exception
     {
+        dedupPDFImages(pdfDoc);
+
         // Traverse the source PDF pdfDoc pages.
         for (PDPage page : pdfDoc.getPages())
         {
@@ -1883,11 +2579,7 @@ public class PdfUtil
         {
             pdfDoc.getDocumentCatalog().setAcroForm(null);
         }
-        if (pdfDoc.getVersion() < 1.5)
-        {
-            pdfDoc.setVersion(1.5f);
-        }
-        pdfDoc.getDocument().setIsXRefStream(true); // requires 1.5 or higher.
+        // The version and the xref stream are set by savePDF.
 
         pdfDoc.getDocumentCatalog().setMetadata(null);
 
@@ -1895,6 +2587,74 @@ public class PdfUtil
         //pdfDoc.getDocumentCatalog().setStructureTreeRoot(null);
     }
 
+    private static void watchPDF(
+            String[] params
+    ) throws Exception
+    {
+        System.out.printf("Executing function \"%s\"\n", params[0]);
+
+        Options options = new Options();
+        options.addOption("d", "done_dir", true, "Directory of the completed files" );
+        options.addOption("f", "failed_dir", true, "Directory of the failed files" );
+        options.addOption("g", "glob", true, "File names to process, default *.{pdf,PDF}" );
+        options.addOption("j", "threads", true, "Files processed at once [0-9]+" );
+        options.addOption("s", "settle", true, "Seconds a file must remain unchanged [0-9]+" );
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmdLine = null;
+        boolean displayHelp = params.length < 3;
+        if (params.length > 2) {
+            try {
+                // Stop at the function name, the options that follow are its own.
+                cmdLine = parser.parse(options, Arrays.copyOfRange(params, 1, params.length), true);
+                displayHelp = cmdLine.getArgList().size() < 2;
+            } catch (ParseException e) {
+                displayHelp = true;
+                System.out.printf("Error: %s\n", e.getLocalizedMessage());
+            }
+        }
+        if (displayHelp) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("watch [options] function [function_options --] directory", options);
+            return;
+        }
+
+        List<String> argList = cmdLine.getArgList();
+        String funcName = argList.get(0);
+        FuncCode funcCode = STRING2FUNC.get(funcName.toLowerCase());
+        if (funcCode == null || funcCode == FuncCode.BATCH || funcCode == FuncCode.SERVE || funcCode == FuncCode.WATCH) {
+            throw new Exception(String.format("Error: invalid function name \"%s\".", funcName));
+        }
+
+        // The function options are separated from the directory by "--".
+        int separator = argList.indexOf("--");
+        List<String> funcOptions = separator == -1 ?
+                Collections.emptyList() : argList.subList(1, separator);
+        if (argList.size() != (separator == -1 ? 2 : separator + 2)) {
+            throw new Exception("Error: one directory must be specified.");
+        }
+        File watchDir = new File(argList.get(argList.size() - 1));
+        if (!watchDir.isDirectory()) {
+            throw new Exception(String.format("Error: invalid directory path \"%s\".", watchDir.getPath()));
+        }
+
+        int threadCount = Integer.parseInt(cmdLine.getOptionValue("j",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        long settleSeconds = Long.parseLong(cmdLine.getOptionValue("s", "10"));
+
+        FolderWatcher watcher = new FolderWatcher(watchDir.toPath(), threadCount, settleSeconds * 1000L);
+        if (cmdLine.hasOption("d")) {
+            watcher.setDoneDir(Paths.get(cmdLine.getOptionValue("d")));
+        }
+        if (cmdLine.hasOption("f")) {
+            watcher.setFailedDir(Paths.get(cmdLine.getOptionValue("f")));
+        }
+        if (cmdLine.hasOption("g")) {
+            watcher.setGlob(cmdLine.getOptionValue("g"));
+        }
+        watcher.watch(funcName, new ArrayList<>(funcOptions));
+    }
+
     private static void readImages(
             String[] params
         ) throws Exception
@@ -1915,26 +2675,27 @@ public class PdfUtil
                 // Create the stream for the image.
                 is = ImageIO.createImageInputStream(imgFile);
 
-                // get the first matching reader
-                Iterator<ImageReader> iterator = ImageIO.getImageReaders(is);
-                boolean hasNext = iterator.hasNext();
-                if (!hasNext) {
+                // get the first matching reader, reused for the next image
+                ImageReader imageReader = CodecPool.getReader(is);
+                if (imageReader == null) {
                     System.err.println("\tError: no reader for image \"" + imgFile.getName() + "\".");
                     is.close();
                     continue;
                 }
 
-                ImageReader imageReader = iterator.next();
                 imageReader.setInput(is);
+                try {
+                    int pages = imageReader.getNumImages(true);
+                    if (pages > 1) {
+                        // Image file contains multiple images. Not expected.
+                        System.out.println("\tImage has " + pages + " pages. Using first.");
+                    }
 
-                int pages = imageReader.getNumImages(true);
-                if (pages > 1) {
-                    // Image file contains multiple images. Not expected.
-                    System.out.println("\tImage has " + pages + " pages. Using first.");
+                    BufferedImage bufferedImage = imageReader.read(0);
+                    //ImageIO.write(bufferedImage, jpg, imgDestFile);
+                } finally {
+                    CodecPool.release(imageReader);
                 }
-
-                BufferedImage bufferedImage = imageReader.read(0);
-                //ImageIO.write(bufferedImage, jpg, imgDestFile);
             } catch (Exception e) {
                 e.printStackTrace();
             } finally {
@@ -1998,7 +2759,7 @@ public class PdfUtil
         contentStream.endText();
         contentStream.close();}
 
-    private static void processContent(PDContentStream content)
+    static void processContent(PDContentStream content)
             throws IOException
     {
         Set<COSName> usedFontNames = new HashSet<>();
@@ -2104,69 +2865,95 @@ public class PdfUtil
         }
     }
 
-    private static void kakaduImages(
+    private static int kakaduImages(
             String[] params
         ) throws Exception
     {
         System.out.printf("Executing function \"%s\"\n", params[0]);
-        if (params.length < 2) {
-            throw new Exception("Usage: kakadu <bmp_file> [<bmp_file>...]");
-        }
 
-        //String commandStr = "kdu_compress -i \"%s\" -o \"%s\" Clevels=%d Clayers=8 Corder=RLCP Cuse_sop=yes Cuse_eph=yes Cmodes='RESET|RESTART|CAUSAL|ERTERM|SEGMARK' -no_weights -slope 42988";
-        String commandStr = "kdu_compress -i \"%s\" -o \"%s\" Clevels=%d Clayers=8 Corder=RLCP Cuse_sop=yes Cuse_eph=yes Cmodes=\"RESET|RESTART|CAUSAL|ERTERM|SEGMARK\" -no_weights -slope 42988";
+        Options options = new Options();
+        options.addOption("b", "binary", true, "kdu_compress path, converting within the JVM if not found" );
+        options.addOption("j", "threads", true, "Images converted at once [0-9]+" );
+        options.addOption("t", "timeout", true, "Seconds after which kdu_compress is killed, 0 for none [0-9]+" );
 
-        for (int i = 1; i < params.length; i++) {
-            String bmpFileName = params[i];
-            File bmpFile = new File(bmpFileName);
-            if (!bmpFile.exists()) {
-                System.out.printf("Error: invalid file path \"%s\". Skipping.", bmpFileName);
-                continue;
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmdLine = null;
+        boolean displayHelp = params.length < 2;
+        if (params.length > 1) {
+            try {
+                cmdLine = parser.parse(options, params);
+                displayHelp = cmdLine.getArgList().size() < 2;
+            } catch (ParseException e) {
+                displayHelp = true;
+                System.out.printf("Error: %s\n", e.getLocalizedMessage());
             }
+        }
+        if (displayHelp) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("kakadu [options] image_file [image_file...]", options);
+            return 0;
+        }
 
-            BufferedImage image = ImageIO.read(bmpFile);
-
-            String fileName = bmpFile.getName();
-            if (fileName.indexOf(".") > 0)
-                fileName = fileName.substring(0, fileName.lastIndexOf("."));
-            File newFile = new File(bmpFile.getParentFile(), fileName + ".jp2");
-
-            int width = image.getWidth();
-            int height = image.getHeight();
-            //double levels = (Math.max(5, Math.ceil(log2(Math.max(width, height) / 100.0))-1));
-            double dimLevel = Math.ceil(log2(Math.max(width, height) / 100.0)) - 1;
-            int level = (int)(Math.max(5.0, dimLevel));
-            System.out.printf("%s => %s: levels: %d width: %d height: %d\n",
-                    bmpFile.getName(), newFile.getName(), level, width, height);
-
-            String command = String.format(commandStr, bmpFile.getAbsolutePath(), newFile.getAbsolutePath(), level);
-            System.out.println(command);
+        int threadCount = Integer.parseInt(cmdLine.getOptionValue("j",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        long timeoutMillis = Long.parseLong(cmdLine.getOptionValue("t", "600")) * 1000L;
+        KakaduPool kakaduPool = new KakaduPool(
+                cmdLine.getOptionValue("b", KakaduPool.DEFAULT_BINARY),
+                threadCount,
+                timeoutMillis
+        );
 
-            Process process = Runtime.getRuntime().exec(command);
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(process.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                System.out.println(line);
+        List<String> imageFileList = cmdLine.getArgList();
+        for (String imageFileName : imageFileList.subList(1, imageFileList.size())) {
+            File imageFile = new File(imageFileName);
+            if (!imageFile.exists()) {
+                System.out.printf("Error: invalid file path \"%s\". Skipping.\n", imageFileName);
+                continue;
             }
-            reader.close();
+            kakaduPool.add(imageFile);
+        }
+        if (kakaduPool.getJobs().isEmpty()) {
+            throw new Exception("Error: no files specified.");
+        }
 
-            BufferedReader errorReader = new BufferedReader(
-                    new InputStreamReader(process.getErrorStream()));
-            while ((line = errorReader.readLine()) != null) {
-                System.out.println(line);
-            }
-            errorReader.close();
+        System.out.printf("Converting %d files with %d threads.\n", kakaduPool.getJobs().size(), threadCount);
+        long start = System.nanoTime();
+        int failedCount = kakaduPool.run();
+        kakaduPool.printSummary((System.nanoTime() - start) / 1e9);
+        return failedCount == 0 ? 0 : 1;
+    }
+
+    /**
+     * Parse a size in bytes with an optional K, M or G suffix.
+     */
+    private static long parseSize(String value) throws Exception
+    {
+        String size = value.trim().toUpperCase();
+        long multiplier = 1;
+        if (size.endsWith("K")) {
+            multiplier = 1024L;
+        } else if (size.endsWith("M")) {
+            multiplier = 1024L * 1024L;
+        } else if (size.endsWith("G")) {
+            multiplier = 1024L * 1024L * 1024L;
+        }
+        if (multiplier > 1) {
+            size = size.substring(0, size.length() - 1);
+        }
+        try {
+            return Long.parseLong(size) * multiplier;
+        } catch (NumberFormatException e) {
+            throw new Exception(String.format("Error: invalid size \"%s\".", value));
         }
     }
 
-    private static double log2(double f)
+    static double log2(double f)
     {
         //return (int)Math.floor(Math.log(f)/Math.log(2.0));
         return Math.log(f)/Math.log(2.0);
     }
 
-    private static Dimension getScaledDimension(Dimension imgSize, Dimension boundary) {
+    static Dimension getScaledDimension(Dimension imgSize, Dimension boundary) {
 
         int original_width = imgSize.width;
         int original_height = imgSize.height;
@@ -2194,11 +2981,11 @@ public class PdfUtil
         return new Dimension(new_width, new_height);
     }
 
-    private static BufferedImage getScaledInstance(BufferedImage img,
-                                                  int targetWidth,
-                                                  int targetHeight,
-                                                  Object hint,
-                                                  boolean higherQuality)
+    static BufferedImage getScaledInstance(BufferedImage img,
+                                          int targetWidth,
+                                          int targetHeight,
+                                          Object hint,
+                                          boolean higherQuality)
     {
         //int type = (img.getTransparency() == Transparency.OPAQUE) ?
         //        BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
@@ -2316,8 +3103,8 @@ public class PdfUtil
                 throw new Exception(String.format("Error: invalid file path \"%s\".", pdfWebFile.getAbsolutePath()));
             }
 
-            PDDocument pdfDoc = PDDocument.load(pdfFile);
-            PDDocument pdfWebDoc = PDDocument.load(pdfWebFile);
+            PDDocument pdfDoc = loadPDF(pdfFile);
+            PDDocument pdfWebDoc = loadPDF(pdfWebFile);
 
             PDDocumentOutline outline = pdfWebDoc.getDocumentCatalog().getDocumentOutline();
             if (outline == null) {
@@ -2390,7 +3177,7 @@ public class PdfUtil
             }
 
             File outputPDFFile = new File(pdfFile.getAbsoluteFile().getParent(), baseName + "_outline.pdf");
-            pdfDoc.save(outputPDFFile);
+            savePDF(pdfDoc, outputPDFFile);
 
             pdfWebDoc.close();
             pdfDoc.close();
@@ -0,0 +1,428 @@
+package edu.umich.mlib;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local cache of the outputs of a function, so that a file unchanged
+ * since a previous run is not processed again.
+ * <p>
+ * An entry is keyed on the SHA-256 of the function name, its options,
+ * the tool build and the bytes of its input files. On a hit, the outputs
+ * are copied next to the input, renamed for its base name. They are not
+ * hard linked to the cache, as the functions write over existing outputs
+ * in place, which would change the entry and the outputs of other inputs
+ * restored from it. The size and modification time of each cached file
+ * are checked before it is restored, so that a damaged entry is discarded.
+ * </p>
+ * <p>
+ * Once the cache exceeds its size, the least recently used entries are
+ * removed. Entries are written to a temporary directory and renamed into
+ * place, so that several processes may share the cache.
+ * </p>
+ */
+public class ResultCache
+{
+    public static final long DEFAULT_MAX_SIZE = 10L * 1024L * 1024L * 1024L;
+
+    // Options which do not change the outputs, by long name.
+    private static final List<String> RUN_OPTIONS = Arrays.asList("threads", "journal", "resume");
+
+    private static final String INDEX_NAME = "entry.index";
+    private static final String FILES_NAME = "files";
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private static String buildStamp = null;
+
+    private final Path cacheDir;
+    private final long maxSize;
+
+    /**
+     * A cache entry for a file, which is either restored or stored once
+     * the file is processed.
+     */
+    public class Entry
+    {
+        private final String key;
+        private final File pdfFile;
+        private final String baseName;
+        private final Path entryDir;
+
+        private Entry(
+                String key,
+                File pdfFile
+        )
+        {
+            this.key = key;
+            this.pdfFile = pdfFile.getAbsoluteFile();
+            int extPos = pdfFile.getName().lastIndexOf(".");
+            this.baseName = extPos == -1 ?
+                    pdfFile.getName() : pdfFile.getName().substring(0, extPos);
+            this.entryDir = cacheDir.resolve(key.substring(0, 2)).resolve(key);
+        }
+
+        /**
+         * Restore the cached outputs next to the input file.
+         *
+         * @return true if the entry was found and restored.
+         */
+        public boolean restore()
+        {
+            List<String[]> index;
+            try {
+                index = readIndex(entryDir);
+            } catch (NoSuchFileException e) {
+                return false;
+            } catch (IOException e) {
+                System.out.printf("Error: cache entry %s: %s\n", key, e.getLocalizedMessage());
+                return false;
+            }
+
+            try {
+                Path filesDir = entryDir.resolve(FILES_NAME);
+                for (String[] item : index) {
+                    Path cachedFile = filesDir.resolve(item[2]);
+                    if (Files.size(cachedFile) != Long.parseLong(item[0])
+                            || Files.getLastModifiedTime(cachedFile).toMillis() != Long.parseLong(item[1])) {
+                        System.out.printf("Discarding changed cache entry %s.\n", key);
+                        remove(entryDir);
+                        return false;
+                    }
+                }
+
+                Path outputDir = pdfFile.getParentFile().toPath();
+                for (String[] item : index) {
+                    Path outputFile = outputDir.resolve(baseName + item[2]);
+                    System.out.printf("Restoring file \"%s\".\n", outputDir.relativize(outputFile));
+                    Files.createDirectories(outputFile.getParent());
+                    // Replace rather than overwrite, an existing output may be a link to another file.
+                    Files.deleteIfExists(outputFile);
+                    Files.copy(filesDir.resolve(item[2]), outputFile);
+                }
+                // The entry modification time is its last use.
+                Files.setLastModifiedTime(entryDir, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException | NumberFormatException e) {
+                // Removed by another process, or damaged.
+                System.out.printf("Error: cache entry %s: %s\n", key, e.getLocalizedMessage());
+                return false;
+            }
+            System.out.printf("Restored the outputs of \"%s\" from the cache.\n", pdfFile.getName());
+            return true;
+        }
+
+        /**
+         * Store the outputs of the input file, then remove the least
+         * recently used entries over the cache size. Errors are displayed
+         * and otherwise ignored.
+         *
+         * @param outputList The output files and directories, named
+         *                   after the base name of the input file.
+         */
+        public void store(
+                List<File> outputList
+        )
+        {
+            Path tempDir = cacheDir.resolve("tmp").resolve(String.format("%s.%d.%d",
+                    key, System.nanoTime(), SEQUENCE.incrementAndGet()));
+            try {
+                Path filesDir = tempDir.resolve(FILES_NAME);
+                Files.createDirectories(filesDir);
+                StringBuilder index = new StringBuilder();
+                for (File output : outputList) {
+                    if (!output.exists()) {
+                        continue;
+                    }
+                    if (!output.getName().startsWith(baseName)) {
+                        throw new IOException(String.format("output \"%s\" is not named after \"%s\"",
+                                output.getName(), baseName));
+                    }
+                    Path outputPath = output.toPath();
+                    List<Path> fileList = new ArrayList<>();
+                    if (output.isDirectory()) {
+                        for (File file : FileUtils.listFiles(output, null, true)) {
+                            fileList.add(file.toPath());
+                        }
+                    } else {
+                        fileList.add(outputPath);
+                    }
+                    for (Path file : fileList) {
+                        // The path relative to the input directory, without the base name.
+                        String name = output.getName().substring(baseName.length())
+                                + (file.equals(outputPath) ? "" : "/" + outputPath.relativize(file).toString()
+                                .replace(File.separatorChar, '/'));
+                        Path cachedFile = filesDir.resolve(name);
+                        Files.createDirectories(cachedFile.getParent());
+                        Files.copy(file, cachedFile);
+                        index.append(String.format("%d %d %s\n", Files.size(cachedFile),
+                                Files.getLastModifiedTime(cachedFile).toMillis(), name));
+                    }
+                }
+                Files.write(tempDir.resolve(INDEX_NAME), index.toString().getBytes(StandardCharsets.UTF_8));
+
+                Files.createDirectories(entryDir.getParent());
+                try {
+                    Files.move(tempDir, entryDir, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    // Stored by another process since.
+                    if (!Files.isDirectory(entryDir)) {
+                        throw e;
+                    }
+                }
+            } catch (IOException e) {
+                System.out.printf("Error: cache entry %s: %s\n", key, e.getLocalizedMessage());
+            } finally {
+                FileUtils.deleteQuietly(tempDir.toFile());
+            }
+            evict();
+        }
+    }
+
+    /**
+     * @param cacheDir The cache directory, created when first stored.
+     * @param maxSize The size in bytes above which entries are removed.
+     */
+    public ResultCache(
+            Path cacheDir,
+            long maxSize
+    )
+    {
+        this.cacheDir = cacheDir.toAbsolutePath();
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Return the entry of an input file processed by a function.
+     *
+     * @param funcName The function name.
+     * @param optionList The options which change the outputs.
+     * @param pdfFile The input file, the outputs are named after it.
+     * @param otherInputs Other files read by the function, or null for
+     *                    files which do not exist.
+     * @return The entry.
+     */
+    public Entry open(
+            String funcName,
+            List<String> optionList,
+            File pdfFile,
+            File... otherInputs
+    ) throws IOException
+    {
+        MessageDigest digest = newDigest();
+        StringBuilder keyText = new StringBuilder();
+        keyText.append(funcName.toLowerCase()).append('\n');
+        keyText.append(getBuildStamp()).append('\n');
+        List<String> sortedList = new ArrayList<>(optionList);
+        Collections.sort(sortedList);
+        for (String option : sortedList) {
+            keyText.append(option).append('\n');
+        }
+        keyText.append(hashFile(pdfFile)).append('\n');
+        for (File input : otherInputs) {
+            keyText.append(input != null && input.exists() ? hashFile(input) : "-").append('\n');
+        }
+        digest.update(keyText.toString().getBytes(StandardCharsets.UTF_8));
+        return new Entry(toHex(digest.digest()), pdfFile);
+    }
+
+    /**
+     * Return the options of a command line which change the outputs,
+     * as name=values strings.
+     *
+     * @param cmdLine The parsed function options.
+     * @return The options.
+     */
+    public static List<String> getOptions(
+            CommandLine cmdLine
+    )
+    {
+        List<String> optionList = new ArrayList<>();
+        for (Option option : cmdLine.getOptions()) {
+            if (option.getLongOpt() != null && RUN_OPTIONS.contains(option.getLongOpt())) {
+                continue;
+            }
+            String name = option.getOpt() != null ? option.getOpt() : option.getLongOpt();
+            String[] values = option.getValues();
+            optionList.add(values == null ? name : name + "=" + String.join(",", values));
+        }
+        return optionList;
+    }
+
+    /**
+     * Remove the least recently used entries until the cache is within
+     * its size.
+     */
+    private synchronized void evict()
+    {
+        List<Path> entryList = new ArrayList<>();
+        long totalSize = 0;
+        try (DirectoryStream<Path> prefixStream = Files.newDirectoryStream(cacheDir, "??")) {
+            for (Path prefixDir : prefixStream) {
+                try (DirectoryStream<Path> entryStream = Files.newDirectoryStream(prefixDir)) {
+                    for (Path entryDir : entryStream) {
+                        entryList.add(entryDir);
+                        totalSize += getEntrySize(entryDir);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.printf("Error: cache \"%s\": %s\n", cacheDir, e.getLocalizedMessage());
+            return;
+        }
+        if (totalSize <= maxSize) {
+            return;
+        }
+
+        entryList.sort(Comparator.comparingLong(ResultCache::getLastUsed));
+        for (Path entryDir : entryList) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            long entrySize = getEntrySize(entryDir);
+            try {
+                remove(entryDir);
+                totalSize -= entrySize;
+            } catch (IOException e) {
+                System.out.printf("Error: cache entry %s: %s\n", entryDir.getFileName(), e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Rename an entry out of place, so that it is no longer found,
+     * then delete it.
+     */
+    private void remove(
+            Path entryDir
+    ) throws IOException
+    {
+        Path tempDir = cacheDir.resolve("tmp").resolve(String.format("%s.%d.%d.removed",
+                entryDir.getFileName(), System.nanoTime(), SEQUENCE.incrementAndGet()));
+        Files.createDirectories(tempDir.getParent());
+        try {
+            Files.move(entryDir, tempDir, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            // Removed by another process.
+            return;
+        }
+        FileUtils.deleteDirectory(tempDir.toFile());
+    }
+
+    private static List<String[]> readIndex(
+            Path entryDir
+    ) throws IOException
+    {
+        List<String[]> index = new ArrayList<>();
+        for (String line : Files.readAllLines(entryDir.resolve(INDEX_NAME), StandardCharsets.UTF_8)) {
+            String[] item = line.split(" ", 3);
+            if (item.length == 3) {
+                index.add(item);
+            }
+        }
+        return index;
+    }
+
+    private static long getEntrySize(
+            Path entryDir
+    )
+    {
+        long size = 0;
+        try {
+            for (String[] item : readIndex(entryDir)) {
+                size += Long.parseLong(item[0]);
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Being stored or removed.
+        }
+        return size;
+    }
+
+    private static long getLastUsed(
+            Path entryDir
+    )
+    {
+        try {
+            return Files.getLastModifiedTime(entryDir).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Identify the tool build, so that entries are not restored by a
+     * different build: the size and modification time of the jar, or
+     * of the PdfUtil class when run from a class directory.
+     */
+    private static synchronized String getBuildStamp()
+    {
+        if (buildStamp == null) {
+            File codeFile = null;
+            try {
+                codeFile = new File(ResultCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+                if (codeFile.isDirectory()) {
+                    codeFile = new File(codeFile, PdfUtil.class.getName().replace('.', File.separatorChar) + ".class");
+                }
+            } catch (URISyntaxException | SecurityException | NullPointerException e) {
+                // Unknown build.
+            }
+            buildStamp = codeFile == null ? "unknown" :
+                    String.format("%d %d", codeFile.length(), codeFile.lastModified());
+        }
+        return buildStamp;
+    }
+
+    private static String hashFile(
+            File file
+    ) throws IOException
+    {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(
+            byte[] bytes
+    )
+    {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
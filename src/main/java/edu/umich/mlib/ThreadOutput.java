@@ -0,0 +1,102 @@
+package edu.umich.mlib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Output stream that writes to a stream set for the current thread,
+ * or to a default stream.
+ * <p>
+ * Installed as System.out, it separates the messages of functions run
+ * concurrently, such as the files of the batch function or the requests
+ * of the serve function. The stream is inherited by the threads created
+ * by a function, such as the optimize workers.
+ * </p>
+ */
+public class ThreadOutput extends OutputStream
+{
+    private static ThreadOutput installed = null;
+
+    private final OutputStream defaultOut;
+    private final InheritableThreadLocal<OutputStream> threadOut = new InheritableThreadLocal<>();
+
+    /**
+     * @param defaultOut The stream of the threads without their own.
+     */
+    public ThreadOutput(
+            OutputStream defaultOut
+    )
+    {
+        this.defaultOut = defaultOut;
+    }
+
+    /**
+     * Install a ThreadOutput as System.out, once, with the current
+     * System.out as the default stream.
+     *
+     * @return The installed ThreadOutput.
+     */
+    public static synchronized ThreadOutput install()
+    {
+        if (installed == null) {
+            installed = new ThreadOutput(System.out);
+            System.setOut(new PrintStream(installed, true));
+        }
+        return installed;
+    }
+
+    /**
+     * @return The stream of the current thread, or the default stream.
+     */
+    public OutputStream getThreadOutput()
+    {
+        return out();
+    }
+
+    /**
+     * Set the stream of the current thread.
+     *
+     * @param out The stream, or null for the default stream.
+     */
+    public void setThreadOutput(
+            OutputStream out
+    )
+    {
+        if (out == null) {
+            threadOut.remove();
+        } else {
+            threadOut.set(out);
+        }
+    }
+
+    @Override
+    public void write(
+            int b
+    ) throws IOException
+    {
+        out().write(b);
+    }
+
+    @Override
+    public void write(
+            byte[] b,
+            int off,
+            int len
+    ) throws IOException
+    {
+        out().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        out().flush();
+    }
+
+    private OutputStream out()
+    {
+        OutputStream out = threadOut.get();
+        return out == null ? defaultOut : out;
+    }
+}
@@ -0,0 +1,134 @@
+package edu.umich.mlib;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchManifestTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void splitCommandQuoting()
+    {
+        List<List<String>> steps = BatchManifest.splitCommand("cover -p 3 -c \"two words\" -t 'single quoted'");
+        assertEquals(1, steps.size());
+        assertEquals(Arrays.asList("cover", "-p", "3", "-c", "two words", "-t", "single quoted"), steps.get(0));
+    }
+
+    @Test
+    public void splitCommandChain()
+    {
+        List<List<String>> steps = BatchManifest.splitCommand("optimize -r 60;cover -p 3; ;info \"a;b\"");
+        assertEquals(3, steps.size());
+        assertEquals(Arrays.asList("optimize", "-r", "60"), steps.get(0));
+        assertEquals(Arrays.asList("cover", "-p", "3"), steps.get(1));
+        assertEquals(Arrays.asList("info", "a;b"), steps.get(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void splitCommandUnterminatedQuote()
+    {
+        BatchManifest.splitCommand("cover -c \"png");
+    }
+
+    @Test
+    public void loadCSV() throws Exception
+    {
+        File manifest = write("jobs.csv",
+                "file,command",
+                "# comment",
+                "",
+                "a.pdf,\"optimize -r 60 -l 50; cover -p 3 -c png\"",
+                "\"b, \"\"quoted\"\".pdf\",info");
+        List<BatchManifest.Job> jobs = BatchManifest.load(manifest);
+        assertEquals(2, jobs.size());
+
+        assertEquals(4, jobs.get(0).lineNumber);
+        assertEquals(new File(folder.getRoot(), "a.pdf").getPath(), jobs.get(0).fileName);
+        assertEquals(2, jobs.get(0).steps.size());
+        assertEquals(Arrays.asList("optimize", "-r", "60", "-l", "50"), jobs.get(0).steps.get(0));
+        assertEquals(Arrays.asList("cover", "-p", "3", "-c", "png"), jobs.get(0).steps.get(1));
+
+        assertEquals(new File(folder.getRoot(), "b, \"quoted\".pdf").getPath(), jobs.get(1).fileName);
+        assertEquals(Arrays.asList("info"), jobs.get(1).steps.get(0));
+    }
+
+    @Test
+    public void loadCSVWithoutHeader() throws Exception
+    {
+        File absolute = new File(folder.getRoot(), "sub/a.pdf").getAbsoluteFile();
+        File manifest = write("jobs.csv", absolute.getPath() + ",info");
+        List<BatchManifest.Job> jobs = BatchManifest.load(manifest);
+        assertEquals(1, jobs.size());
+        assertEquals(absolute.getPath(), jobs.get(0).fileName);
+    }
+
+    @Test
+    public void loadJSON() throws Exception
+    {
+        File manifest = write("jobs.jsonl",
+                "{\"file\": \"a\\u00e9.pdf\", \"command\": [\"optimize -r 60\", \"cover -p 3\"]}",
+                "  ",
+                "{\"file\": \"b\\\\c\\\".pdf\", \"command\": \"info; cover -c \\\"png\\\"\", \"extra\": [1, true, null]}");
+        List<BatchManifest.Job> jobs = BatchManifest.load(manifest);
+        assertEquals(2, jobs.size());
+
+        assertEquals(new File(folder.getRoot(), "a\u00e9.pdf").getPath(), jobs.get(0).fileName);
+        assertEquals(Arrays.asList("optimize", "-r", "60"), jobs.get(0).steps.get(0));
+        assertEquals(Arrays.asList("cover", "-p", "3"), jobs.get(0).steps.get(1));
+
+        assertEquals(3, jobs.get(1).lineNumber);
+        assertEquals(new File(folder.getRoot(), "b\\c\".pdf").getPath(), jobs.get(1).fileName);
+        assertEquals(Arrays.asList("info"), jobs.get(1).steps.get(0));
+        assertEquals(Arrays.asList("cover", "-c", "png"), jobs.get(1).steps.get(1));
+    }
+
+    @Test
+    public void errorLineNumbers() throws Exception
+    {
+        assertError(write("bad.jsonl", "# comment", "{\"file\": \"a.pdf\", \"command\": \"info\"}",
+                "{\"file\": \"a.pdf\", \"command\": \"info\""), "line 3");
+        assertError(write("bad.jsonl", "{\"file\": \"a\\u00zz.pdf\", \"command\": \"info\"}"), "line 1");
+        assertError(write("bad.jsonl", "", "[\"a.pdf\"]"), "line 2");
+        assertError(write("bad.csv", "file,command", "a.pdf"), "line 2");
+        assertError(write("bad.csv", "a.pdf,info", ",info"), "no file on manifest line 2");
+        assertError(write("bad.csv", "a.pdf,\"info; ;\"", "b.pdf,\"\""), "no command on manifest line 2");
+        assertError(write("bad.csv", "", "", "a.pdf,nofunction"), "\"nofunction\" on manifest line 3");
+        assertError(write("bad.csv", "a.pdf,batch info"), "\"batch\" on manifest line 1");
+    }
+
+    private File write(
+            String name,
+            String... lines
+    ) throws Exception
+    {
+        File file = new File(folder.getRoot(), name);
+        FileUtils.writeLines(file, StandardCharsets.UTF_8.name(), Arrays.asList(lines));
+        return file;
+    }
+
+    private static void assertError(
+            File manifest,
+            String expected
+    )
+    {
+        try {
+            BatchManifest.load(manifest);
+            fail("Expected an error containing " + expected);
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(expected));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package edu.umich.mlib;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BitonalEncoderTest
+{
+    // 100x100 images are sampled at every pixel.
+    private static final int SIZE = 100;
+
+    @Test
+    public void detectsBlackAndWhite()
+    {
+        assertTrue(BitonalEncoder.isBitonal(page(0, 0xFFFFFF)));
+        // Up to 64 is black and from 192 white.
+        assertTrue(BitonalEncoder.isBitonal(page(0, 0xC0C0C0)));
+        assertTrue(BitonalEncoder.isBitonal(page(0x404040, 0xFFFFFF)));
+    }
+
+    @Test
+    public void grayThreshold()
+    {
+        // 1% of the samples may be midtones, 2% may not.
+        assertTrue(BitonalEncoder.isBitonal(withPixels(page(0, 0xFFFFFF), 100, 0x808080)));
+        assertFalse(BitonalEncoder.isBitonal(withPixels(page(0, 0xFFFFFF), 200, 0x808080)));
+        assertFalse(BitonalEncoder.isBitonal(page(0, 0xBFBFBF)));
+        assertFalse(BitonalEncoder.isBitonal(page(0x414141, 0xFFFFFF)));
+    }
+
+    @Test
+    public void colorThreshold()
+    {
+        // Light or dark colored samples count as colored, not gray.
+        assertTrue(BitonalEncoder.isBitonal(withPixels(page(0, 0xFFFFFF), 100, 0xFFD0D0)));
+        assertFalse(BitonalEncoder.isBitonal(withPixels(page(0, 0xFFFFFF), 200, 0xFFD0D0)));
+    }
+
+    @Test
+    public void rejectsHalftone()
+    {
+        // A gray ramp, as in a photograph, is not bitonal.
+        BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                image.getRaster().setSample(x, y, 0, x * 255 / (SIZE - 1));
+            }
+        }
+        assertFalse(BitonalEncoder.isBitonal(image));
+    }
+
+    @Test
+    public void roundTrip() throws Exception
+    {
+        // An odd width checks the padding of the packed rows.
+        BufferedImage image = new BufferedImage(203, 61, BufferedImage.TYPE_3BYTE_BGR);
+        Random random = new Random(1);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int v = random.nextInt(4) == 0 ? random.nextInt(100) : 160 + random.nextInt(96);
+                image.setRGB(x, y, (v << 16) | (v << 8) | v);
+            }
+        }
+
+        byte[] encoded = BitonalEncoder.encode(image);
+        try (PDDocument pdfDoc = new PDDocument()) {
+            PDImageXObject imageObj = BitonalEncoder.createXObject(pdfDoc, encoded,
+                    image.getWidth(), image.getHeight());
+            assertEquals(COSName.CCITTFAX_DECODE, imageObj.getCOSObject().getFilters());
+            COSDictionary parms = (COSDictionary) imageObj.getCOSObject().getDictionaryObject(COSName.DECODE_PARMS);
+            assertEquals(-1, parms.getInt(COSName.K));
+            assertEquals(1, imageObj.getBitsPerComponent());
+
+            // Decoded by the PDFBox CCITT filter.
+            BufferedImage decoded = imageObj.getImage();
+            assertEquals(image.getWidth(), decoded.getWidth());
+            assertEquals(image.getHeight(), decoded.getHeight());
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    boolean black = (image.getRGB(x, y) & 0xFF) < 128;
+                    int expected = black ? 0x000000 : 0xFFFFFF;
+                    assertEquals(String.format("pixel %d,%d", x, y), expected, decoded.getRGB(x, y) & 0xFFFFFF);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return a page of the background color with rows of text strokes.
+     */
+    private static BufferedImage page(
+            int ink,
+            int background
+    )
+    {
+        BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = image.createGraphics();
+        g2.setColor(new Color(background));
+        g2.fillRect(0, 0, SIZE, SIZE);
+        g2.setColor(new Color(ink));
+        for (int y = 10; y < SIZE - 10; y += 12) {
+            g2.fillRect(10, y, SIZE - 20, 6);
+        }
+        g2.dispose();
+        return image;
+    }
+
+    /**
+     * Set a number of pixels, in the first columns, to a color.
+     */
+    private static BufferedImage withPixels(
+            BufferedImage image,
+            int count,
+            int rgb
+    )
+    {
+        for (int i = 0; i < count; i++) {
+            image.setRGB(i / SIZE, i % SIZE, rgb);
+        }
+        return image;
+    }
+}
@@ -0,0 +1,66 @@
+package edu.umich.mlib;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChannelReducerTest
+{
+    @Test
+    public void neutralWithinTolerance()
+    {
+        BufferedImage image = rgb(0x808080, 0x848082, 0x000000, 0xFFFFFF);
+        assertTrue(ChannelReducer.isNeutral(image, 4));
+        // Red and green differ by 4.
+        assertFalse(ChannelReducer.isNeutral(image, 3));
+        assertTrue(ChannelReducer.isNeutral(rgb(0x808080, 0x101010), 0));
+    }
+
+    @Test
+    public void colorPixelIsNotNeutral()
+    {
+        // The difference between red and blue counts as well.
+        assertFalse(ChannelReducer.isNeutral(rgb(0x808080, 0x808080, 0x8A8580), 5));
+        assertFalse(ChannelReducer.isNeutral(rgb(0xFF0000), 254));
+        assertTrue(ChannelReducer.isNeutral(rgb(0xFF0000), 255));
+    }
+
+    @Test
+    public void grayImageIsNotReduced()
+    {
+        // Already a single component.
+        BufferedImage gray = new BufferedImage(2, 2, BufferedImage.TYPE_BYTE_GRAY);
+        assertFalse(ChannelReducer.isNeutral(gray, 10));
+    }
+
+    @Test
+    public void toGrayLuminance()
+    {
+        BufferedImage image = rgb(0x000000, 0xFFFFFF, 0x7F7F7F, 0xFF0000, 0x00FF00, 0x0000FF, 0x102030);
+        BufferedImage gray = ChannelReducer.toGray(image);
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, gray.getType());
+        assertEquals(image.getWidth(), gray.getWidth());
+        assertEquals(image.getHeight(), gray.getHeight());
+
+        // Neutral pixels keep their level, others use the Rec. 601 weights.
+        int[] expected = { 0, 255, 127, 76, 150, 29, 29 };
+        for (int x = 0; x < expected.length; x++) {
+            assertEquals(expected[x], gray.getRaster().getSample(x, 0, 0));
+        }
+    }
+
+    private static BufferedImage rgb(
+            int... pixels
+    )
+    {
+        BufferedImage image = new BufferedImage(pixels.length, 1, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < pixels.length; x++) {
+            image.setRGB(x, 0, pixels[x]);
+        }
+        return image;
+    }
+}
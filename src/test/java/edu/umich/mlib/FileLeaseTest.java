@@ -0,0 +1,135 @@
+package edu.umich.mlib;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileLeaseTest
+{
+    private static final long TIMEOUT = 60000;
+    private static final String COMMAND = "optimize -r 80";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path file;
+    private Path leaseFile;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        file = folder.newFile("book.pdf").toPath();
+        leaseFile = file.resolveSibling("book.pdf" + FileLease.LEASE_SUFFIX);
+    }
+
+    @Test
+    public void claimOnce() throws Exception
+    {
+        FileLease lease = FileLease.claim(file, COMMAND, false, TIMEOUT);
+        assertNotNull(lease);
+        assertTrue(Files.exists(leaseFile));
+        assertFalse(FileLease.getHolder(file).isEmpty());
+
+        // Held, by this process as well.
+        assertNull(FileLease.claim(file, COMMAND, false, TIMEOUT));
+        assertTrue(lease.heartbeat());
+
+        lease.release();
+        assertFalse(Files.exists(leaseFile));
+        assertNotNull(FileLease.claim(file, COMMAND, false, TIMEOUT));
+    }
+
+    @Test
+    public void reclaimStaleLease() throws Exception
+    {
+        FileLease stale = FileLease.claim(file, COMMAND, false, TIMEOUT);
+        assertNotNull(stale);
+
+        // Updated within the timeout.
+        Files.setLastModifiedTime(leaseFile, FileTime.fromMillis(System.currentTimeMillis() - TIMEOUT / 2));
+        assertNull(FileLease.claim(file, COMMAND, false, TIMEOUT));
+        assertTrue(Files.exists(leaseFile));
+
+        Files.setLastModifiedTime(leaseFile, FileTime.fromMillis(System.currentTimeMillis() - TIMEOUT * 2));
+        FileLease lease = FileLease.claim(file, COMMAND, false, TIMEOUT);
+        assertNotNull(lease);
+
+        // The former holder has lost it.
+        assertFalse(stale.heartbeat());
+        assertTrue(lease.heartbeat());
+        // Only the file and the lease remain.
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    public void lostLeaseWritesNoMarker() throws Exception
+    {
+        FileLease lease = FileLease.claim(file, COMMAND, false, TIMEOUT);
+        assertNotNull(lease);
+        Files.write(leaseFile, "other@host 1 now\n".getBytes(StandardCharsets.UTF_8));
+
+        assertFalse(lease.heartbeat());
+        assertFalse(lease.complete(false, ""));
+        assertNull(FileLease.getMarker(file, COMMAND, false));
+        // The lease of the other host is left alone.
+        assertEquals("other@host", FileLease.getHolder(file));
+    }
+
+    @Test
+    public void markersAreKeyedOnCommand() throws Exception
+    {
+        FileLease lease = FileLease.claim(file, COMMAND, false, TIMEOUT);
+        assertTrue(lease.complete(false, ""));
+        assertFalse(Files.exists(leaseFile));
+
+        Path done = FileLease.getMarker(file, COMMAND, false);
+        assertNotNull(done);
+        assertEquals("book.pdf" + FileLease.DONE_SUFFIX, done.getFileName().toString());
+        assertNull(FileLease.claim(file, COMMAND, false, TIMEOUT));
+
+        // Another command processes the file again, and its marker
+        // replaces the other.
+        assertNull(FileLease.getMarker(file, "cover -p 3", false));
+        lease = FileLease.claim(file, "cover -p 3", false, TIMEOUT);
+        assertNotNull(lease);
+        assertTrue(lease.complete(true, "Error: failed."));
+        assertFalse(Files.exists(done));
+        assertNotNull(FileLease.getMarker(file, "cover -p 3", false));
+        assertNull(FileLease.getMarker(file, COMMAND, false));
+    }
+
+    @Test
+    public void retryFailed() throws Exception
+    {
+        FileLease lease = FileLease.claim(file, COMMAND, false, TIMEOUT);
+        assertTrue(lease.complete(true, "Error: failed."));
+
+        Path failed = FileLease.getMarker(file, COMMAND, false);
+        assertEquals("book.pdf" + FileLease.FAILED_SUFFIX, failed.getFileName().toString());
+        assertNull(FileLease.claim(file, COMMAND, false, TIMEOUT));
+
+        assertNull(FileLease.getMarker(file, COMMAND, true));
+        lease = FileLease.claim(file, COMMAND, true, TIMEOUT);
+        assertNotNull(lease);
+        assertTrue(lease.complete(false, ""));
+        assertFalse(Files.exists(failed));
+
+        // A completed file is not retried.
+        assertNull(FileLease.claim(file, COMMAND, true, TIMEOUT));
+    }
+}
@@ -0,0 +1,170 @@
+package edu.umich.mlib;
+
+import com.github.jaiimageio.jpeg2000.J2KImageWriteParam;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class ImageDecoderTest
+{
+    private PDDocument pdfDoc;
+
+    @Before
+    public void setUp()
+    {
+        pdfDoc = new PDDocument();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        pdfDoc.close();
+    }
+
+    @Test
+    public void decompositionLevels() throws IOException
+    {
+        BufferedImage image = CorpusGenerator.createImage(new Random(1), 256, 192, "gray");
+        assertEquals(3, ImageDecoder.getDecompositionLevels(encodeJ2K(image, 3, true)));
+        assertEquals(1, ImageDecoder.getDecompositionLevels(encodeJ2K(image, 1, true)));
+        // The code stream is found within the JP2 boxes.
+        assertEquals(4, ImageDecoder.getDecompositionLevels(encodeJ2K(image, 4, false)));
+
+        // The default of the writer, as embedded by the corpus.
+        PDImageXObject imageObj = CorpusGenerator.createImageXObject(pdfDoc, image, "jpx");
+        byte[] data;
+        try (InputStream is = imageObj.getCOSObject().createRawInputStream()) {
+            data = IOUtils.toByteArray(is);
+        }
+        assertEquals(5, ImageDecoder.getDecompositionLevels(data));
+    }
+
+    @Test
+    public void decompositionLevelsAfterOtherSegments()
+    {
+        // SOC, SIZ, COM, COD with 2 levels.
+        byte[] data = bytes(
+                0xFF, 0x4F,
+                0xFF, 0x51, 0x00, 0x04, 0x00, 0x00,
+                0xFF, 0x64, 0x00, 0x05, 0x00, 0x01, 0x41,
+                0xFF, 0x52, 0x00, 0x0C, 0x00, 0x00, 0x00, 0x01, 0x00, 0x02, 0x04, 0x04, 0x00, 0x00);
+        assertEquals(2, ImageDecoder.getDecompositionLevels(data));
+    }
+
+    @Test
+    public void decompositionLevelsNotFound()
+    {
+        assertEquals(0, ImageDecoder.getDecompositionLevels(new byte[0]));
+        // No code stream.
+        assertEquals(0, ImageDecoder.getDecompositionLevels(bytes(0xFF, 0xD8, 0xFF, 0xE0, 0x00, 0x10)));
+        // Truncated before the levels.
+        assertEquals(0, ImageDecoder.getDecompositionLevels(bytes(
+                0xFF, 0x4F, 0xFF, 0x51, 0x00, 0x04, 0x00, 0x00, 0xFF, 0x52, 0x00, 0x0C, 0x00, 0x00)));
+        // A tile part before any COD.
+        assertEquals(0, ImageDecoder.getDecompositionLevels(bytes(
+                0xFF, 0x4F, 0xFF, 0x51, 0x00, 0x04, 0x00, 0x00, 0xFF, 0x90, 0x00, 0x0A, 0x00, 0x00)));
+    }
+
+    @Test
+    public void subsampling() throws IOException
+    {
+        PDImageXObject imageObj = imageObject(1000, 800, "gray", "flate");
+        // Decoded at least twice the target.
+        assertEquals(5, ImageDecoder.getSubsampling(imageObj, 100, 80));
+        assertEquals(4, ImageDecoder.getSubsampling(imageObj, 100, 100));
+        assertEquals(2, ImageDecoder.getSubsampling(imageObj, 250, 200));
+        assertEquals(1, ImageDecoder.getSubsampling(imageObj, 300, 200));
+        assertEquals(1, ImageDecoder.getSubsampling(imageObj, 500, 400));
+        // The same as the source, or larger.
+        assertEquals(1, ImageDecoder.getSubsampling(imageObj, 1000, 800));
+        assertEquals(1, ImageDecoder.getSubsampling(imageObj, 2000, 1600));
+        assertEquals(1, ImageDecoder.getSubsampling(imageObj, 2000, 10));
+        // No target.
+        assertEquals(1, ImageDecoder.getSubsampling(imageObj, 0, 80));
+        assertEquals(1, ImageDecoder.getSubsampling(imageObj, 100, -1));
+
+        assertEquals(5, ImageDecoder.getSubsampling(imageObject(1000, 800, "rgb", "dct"), 100, 80));
+        assertEquals(5, ImageDecoder.getSubsampling(imageObject(1000, 800, "rgb", "jpx"), 100, 80));
+    }
+
+    @Test
+    public void bitonalIsNotSubsampled() throws IOException
+    {
+        PDImageXObject packed = imageObject(1000, 800, "bitonal", "flate");
+        assertEquals(1, packed.getBitsPerComponent());
+        assertEquals(1, ImageDecoder.getSubsampling(packed, 100, 80));
+
+        assertEquals(1, ImageDecoder.getSubsampling(imageObject(1000, 800, "bitonal", "jbig2"), 100, 80));
+
+        BufferedImage image = CorpusGenerator.createImage(new Random(1), 1000, 800, "bitonal");
+        PDImageXObject ccitt = BitonalEncoder.createXObject(pdfDoc, BitonalEncoder.encode(image),
+                image.getWidth(), image.getHeight());
+        assertEquals(1, ImageDecoder.getSubsampling(ccitt, 100, 80));
+
+        PDImageXObject stencil = imageObject(1000, 800, "gray", "flate");
+        stencil.setStencil(true);
+        assertEquals(1, ImageDecoder.getSubsampling(stencil, 100, 80));
+    }
+
+    private PDImageXObject imageObject(
+            int width,
+            int height,
+            String colorType,
+            String filter
+    ) throws IOException
+    {
+        BufferedImage image = CorpusGenerator.createImage(new Random(1), width, height, colorType);
+        return CorpusGenerator.createImageXObject(pdfDoc, image, filter);
+    }
+
+    /**
+     * Encode an image losslessly as JPEG2000 with a number of
+     * decomposition levels, as a code stream or a JP2 file.
+     */
+    private static byte[] encodeJ2K(
+            BufferedImage image,
+            int levels,
+            boolean codeStreamOnly
+    ) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg2000").next();
+        J2KImageWriteParam param = (J2KImageWriteParam) writer.getDefaultWriteParam();
+        param.setLossless(true);
+        param.setNumDecompositionLevels(levels);
+        param.setWriteCodeStreamOnly(codeStreamOnly);
+        try (MemoryCacheImageOutputStream outStream = new MemoryCacheImageOutputStream(buffer)) {
+            writer.setOutput(outStream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return buffer.toByteArray();
+    }
+
+    private static byte[] bytes(
+            int... values
+    )
+    {
+        byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            data[i] = (byte) values[i];
+        }
+        return data;
+    }
+}
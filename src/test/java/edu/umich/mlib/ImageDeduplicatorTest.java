@@ -0,0 +1,152 @@
+package edu.umich.mlib;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class ImageDeduplicatorTest
+{
+    private PDDocument pdfDoc;
+
+    @Before
+    public void setUp()
+    {
+        pdfDoc = new PDDocument();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        pdfDoc.close();
+    }
+
+    @Test
+    public void identicalStreamsMerge() throws IOException
+    {
+        COSStream first = image("pixels");
+        COSDictionary xobjects1 = addPage(first);
+        COSDictionary xobjects2 = addPage(image("pixels"));
+        COSDictionary xobjects3 = addPage(image("other pixels"));
+
+        ImageDeduplicator deduplicator = new ImageDeduplicator();
+        assertEquals(1, deduplicator.deduplicate(pdfDoc));
+        assertEquals(3, deduplicator.getImageCount());
+        assertEquals(6, deduplicator.getReclaimedBytes());
+        assertSame(first, xobjects1.getDictionaryObject(COSName.getPDFName("Im1")));
+        assertSame(first, xobjects2.getDictionaryObject(COSName.getPDFName("Im1")));
+        assertNotSame(first, xobjects3.getDictionaryObject(COSName.getPDFName("Im1")));
+    }
+
+    @Test
+    public void differentSMaskDoesNotMerge() throws IOException
+    {
+        COSStream image1 = image("pixels");
+        image1.setItem(COSName.SMASK, image("mask 1"));
+        COSStream image2 = image("pixels");
+        image2.setItem(COSName.SMASK, image("mask 2"));
+        addPage(image1);
+        addPage(image2);
+
+        assertEquals(0, new ImageDeduplicator().deduplicate(pdfDoc));
+    }
+
+    @Test
+    public void differentDictionaryDoesNotMerge() throws IOException
+    {
+        COSStream image1 = image("pixels");
+        COSStream image2 = image("pixels");
+        image2.setItem(COSName.COLORSPACE, COSName.DEVICERGB);
+        COSStream image3 = image("pixels");
+        image3.setInt(COSName.WIDTH, 3);
+        addPage(image1);
+        addPage(image2);
+        addPage(image3);
+
+        assertEquals(0, new ImageDeduplicator().deduplicate(pdfDoc));
+    }
+
+    @Test
+    public void formInPatternIsTraversed() throws IOException
+    {
+        COSStream first = image("pixels");
+        addPage(first);
+
+        // Page resources > tiling pattern > form XObject > image.
+        COSDictionary formXObjects = new COSDictionary();
+        formXObjects.setItem(COSName.getPDFName("Im1"), image("pixels"));
+        COSDictionary formResources = new COSDictionary();
+        formResources.setItem(COSName.XOBJECT, formXObjects);
+        COSStream form = pdfDoc.getDocument().createCOSStream();
+        form.setItem(COSName.SUBTYPE, COSName.FORM);
+        form.setItem(COSName.RESOURCES, formResources);
+
+        COSDictionary patternXObjects = new COSDictionary();
+        patternXObjects.setItem(COSName.getPDFName("Fm1"), form);
+        COSDictionary patternResources = new COSDictionary();
+        patternResources.setItem(COSName.XOBJECT, patternXObjects);
+        COSStream pattern = pdfDoc.getDocument().createCOSStream();
+        pattern.setInt(COSName.PATTERN_TYPE, 1);
+        pattern.setItem(COSName.RESOURCES, patternResources);
+
+        COSDictionary patterns = new COSDictionary();
+        patterns.setItem(COSName.getPDFName("P1"), pattern);
+        PDPage page = new PDPage();
+        page.setResources(new PDResources());
+        page.getResources().getCOSObject().setItem(COSName.PATTERN, patterns);
+        pdfDoc.addPage(page);
+
+        assertEquals(1, new ImageDeduplicator().deduplicate(pdfDoc));
+        assertSame(first, formXObjects.getDictionaryObject(COSName.getPDFName("Im1")));
+    }
+
+    /**
+     * Return an unfiltered gray image stream of raw data.
+     */
+    private COSStream image(
+            String data
+    ) throws IOException
+    {
+        COSStream stream = pdfDoc.getDocument().createCOSStream();
+        stream.setItem(COSName.TYPE, COSName.XOBJECT);
+        stream.setItem(COSName.SUBTYPE, COSName.IMAGE);
+        stream.setInt(COSName.WIDTH, data.length());
+        stream.setInt(COSName.HEIGHT, 1);
+        stream.setInt(COSName.BITS_PER_COMPONENT, 8);
+        stream.setItem(COSName.COLORSPACE, COSName.DEVICEGRAY);
+        try (OutputStream os = stream.createRawOutputStream()) {
+            os.write(data.getBytes(StandardCharsets.US_ASCII));
+        }
+        return stream;
+    }
+
+    /**
+     * Add a page with an image, returning its XObject dictionary.
+     */
+    private COSDictionary addPage(
+            COSStream image
+    )
+    {
+        COSDictionary xobjects = new COSDictionary();
+        xobjects.setItem(COSName.getPDFName("Im1"), image);
+        COSDictionary resources = new COSDictionary();
+        resources.setItem(COSName.XOBJECT, xobjects);
+        PDPage page = new PDPage();
+        page.setResources(new PDResources(resources));
+        pdfDoc.addPage(page);
+        return xobjects;
+    }
+}
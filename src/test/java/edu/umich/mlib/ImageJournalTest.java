@@ -0,0 +1,166 @@
+package edu.umich.mlib;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ImageJournalTest
+{
+    private static final String SIGNATURE = "book.pdf 1234 -r 80";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void resume() throws Exception
+    {
+        File journalFile = writeJournal(3);
+
+        ImageJournal journal = new ImageJournal(journalFile, SIGNATURE);
+        assertEquals(3, journal.load());
+        assertEquals(70, journal.getQuality());
+        for (int i = 1; i <= 3; i++) {
+            ImageJournal.Entry entry = journal.getEntry(i, i, 1, "10 0 R");
+            assertNotNull(entry);
+            assertEquals(ImageJournal.REPLACED, entry.status);
+            assertArrayEquals(data(i), journal.read(entry));
+        }
+        // Another image at the same index is not resumed.
+        assertNull(journal.getEntry(1, 1, 2, "10 0 R"));
+        assertNull(journal.getEntry(1, 1, 1, "11 0 R"));
+
+        ImageJournal.Entry kept = journal.getEntry(2, 2, 1, "10 0 R");
+        assertTrue(kept.bitonal);
+    }
+
+    @Test
+    public void resumeAfterTornLine() throws Exception
+    {
+        File journalFile = writeJournal(3);
+        String torn = "4\t4\t1\t10 0 R\treplaced\t";
+        Files.write(journalFile.toPath(), torn.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        ImageJournal journal = new ImageJournal(journalFile, SIGNATURE);
+        assertEquals(3, journal.load());
+
+        // The torn tail is dropped when the journal is appended to.
+        journal.open(70);
+        journal.append(entry(4), data(4));
+        journal.close();
+
+        journal = new ImageJournal(journalFile, SIGNATURE);
+        assertEquals(4, journal.load());
+        assertArrayEquals(data(4), journal.read(journal.getEntry(4, 4, 1, "10 0 R")));
+        assertArrayEquals(data(3), journal.read(journal.getEntry(3, 3, 1, "10 0 R")));
+    }
+
+    @Test
+    public void resumeAfterTruncatedData() throws Exception
+    {
+        File journalFile = writeJournal(3);
+        File dataFile = new File(journalFile.getPath() + ".data");
+        try (RandomAccessFile file = new RandomAccessFile(dataFile, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+
+        // The last entry refers past the end of the data.
+        ImageJournal journal = new ImageJournal(journalFile, SIGNATURE);
+        assertEquals(2, journal.load());
+        assertNull(journal.getEntry(3, 3, 1, "10 0 R"));
+    }
+
+    @Test
+    public void resumeAfterHashMismatch() throws Exception
+    {
+        File journalFile = writeJournal(3);
+        File dataFile = new File(journalFile.getPath() + ".data");
+
+        ImageJournal journal = new ImageJournal(journalFile, SIGNATURE);
+        assertEquals(3, journal.load());
+        ImageJournal.Entry entry = journal.getEntry(2, 2, 1, "10 0 R");
+        try (RandomAccessFile file = new RandomAccessFile(dataFile, "rw")) {
+            file.seek(entry.offset);
+            file.write(~data(2)[0]);
+        }
+
+        // The damaged image is encoded again, the others are resumed.
+        assertNull(journal.read(entry));
+        assertArrayEquals(data(1), journal.read(journal.getEntry(1, 1, 1, "10 0 R")));
+        assertArrayEquals(data(3), journal.read(journal.getEntry(3, 3, 1, "10 0 R")));
+    }
+
+    @Test
+    public void otherSignatureOrQualityStartsOver() throws Exception
+    {
+        File journalFile = writeJournal(2);
+        assertEquals(0, new ImageJournal(journalFile, "other.pdf 1234 -r 80").load());
+
+        ImageJournal journal = new ImageJournal(journalFile, SIGNATURE);
+        assertEquals(2, journal.load());
+        journal.open(60);
+        journal.close();
+
+        journal = new ImageJournal(journalFile, SIGNATURE);
+        assertEquals(0, journal.load());
+        assertEquals(60, journal.getQuality());
+        assertEquals(0, new File(journalFile.getPath() + ".data").length());
+    }
+
+    /**
+     * Write a journal of images 1 to count at quality 70.
+     */
+    private File writeJournal(
+            int count
+    ) throws Exception
+    {
+        File journalFile = new File(folder.getRoot(), "book.journal");
+        ImageJournal journal = new ImageJournal(journalFile, SIGNATURE);
+        assertEquals(0, journal.load());
+        journal.open(70);
+        for (int i = 1; i <= count; i++) {
+            journal.append(entry(i), data(i));
+        }
+        journal.close();
+        return journalFile;
+    }
+
+    private static ImageJournal.Entry entry(
+            int index
+    )
+    {
+        ImageJournal.Entry entry = new ImageJournal.Entry();
+        entry.index = index;
+        entry.pageNum = index;
+        entry.imageNum = 1;
+        entry.objectId = "10 0 R";
+        entry.status = ImageJournal.REPLACED;
+        entry.fileName = String.format("Page_%04d_Image_0001.jpg", index);
+        entry.width = 10 * index;
+        entry.height = 20;
+        entry.bitonal = index == 2;
+        return entry;
+    }
+
+    private static byte[] data(
+            int index
+    )
+    {
+        byte[] data = new byte[100 + index];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * index);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,139 @@
+package edu.umich.mlib;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+
+import static org.junit.Assert.assertEquals;
+
+public class ImageResamplerTest
+{
+    @Test
+    public void areaAverageGray()
+    {
+        // Each destination pixel averages a 2x3 block.
+        BufferedImage img = gray(BufferedImage.TYPE_BYTE_GRAY, new int[][] {
+                { 0, 60, 100, 100 },
+                { 30, 90, 100, 100 },
+                { 60, 120, 100, 100 }
+        });
+        BufferedImage scaled = ImageResampler.resample(img, 2, 1, ImageResampler.Filter.AREA_AVERAGE);
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, scaled.getType());
+        assertEquals(2, scaled.getWidth());
+        assertEquals(1, scaled.getHeight());
+        assertEquals(60, scaled.getRaster().getSample(0, 0, 0));
+        assertEquals(100, scaled.getRaster().getSample(1, 0, 0));
+    }
+
+    @Test
+    public void areaAverageFractionalWeights()
+    {
+        // From 3 to 2 pixels, the middle pixel contributes half its
+        // weight to each destination pixel: (v0 + v1 / 2) / 1.5.
+        BufferedImage img = gray(BufferedImage.TYPE_BYTE_GRAY, new int[][] { { 30, 90, 150 } });
+        BufferedImage scaled = ImageResampler.resample(img, 2, 1, ImageResampler.Filter.AREA_AVERAGE);
+        assertEquals(50, scaled.getRaster().getSample(0, 0, 0));
+        assertEquals(130, scaled.getRaster().getSample(1, 0, 0));
+    }
+
+    @Test
+    public void areaAverageGray16()
+    {
+        BufferedImage img = gray(BufferedImage.TYPE_USHORT_GRAY, new int[][] {
+                { 0, 65535 },
+                { 1000, 3000 }
+        });
+        BufferedImage scaled = ImageResampler.resample(img, 1, 1, ImageResampler.Filter.AREA_AVERAGE);
+        assertEquals(BufferedImage.TYPE_USHORT_GRAY, scaled.getType());
+        assertEquals(17384, scaled.getRaster().getSample(0, 0, 0));
+    }
+
+    @Test
+    public void areaAverageRGB()
+    {
+        for (int type : new int[] { BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB }) {
+            BufferedImage img = new BufferedImage(2, 2, type);
+            img.setRGB(0, 0, 0xFF0000);
+            img.setRGB(1, 0, 0x00FF00);
+            img.setRGB(0, 1, 0x0000FF);
+            img.setRGB(1, 1, 0xFFFFFF);
+            BufferedImage scaled = ImageResampler.resample(img, 1, 1);
+            assertEquals(type, scaled.getType());
+            // (255 + 0 + 0 + 255) / 4 = 127.5, rounded up, for each channel.
+            assertEquals(0x808080, scaled.getRGB(0, 0) & 0xFFFFFF);
+        }
+    }
+
+    @Test
+    public void lanczosKeepsConstantImages()
+    {
+        BufferedImage img = new BufferedImage(7, 5, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 5; y++) {
+            for (int x = 0; x < 7; x++) {
+                img.setRGB(x, y, 0x40A0C0);
+            }
+        }
+        // The weights of each destination pixel add up to 1.
+        for (int[] size : new int[][] { { 13, 11 }, { 5, 4 }, { 3, 2 } }) {
+            BufferedImage scaled = ImageResampler.resample(img, size[0], size[1], ImageResampler.Filter.LANCZOS);
+            for (int y = 0; y < size[1]; y++) {
+                for (int x = 0; x < size[0]; x++) {
+                    assertEquals(0x40A0C0, scaled.getRGB(x, y) & 0xFFFFFF);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void lanczosInterpolatesRamp()
+    {
+        int[][] rows = new int[1][16];
+        for (int x = 0; x < 16; x++) {
+            rows[0][x] = 64 + x * 8;
+        }
+        BufferedImage img = gray(BufferedImage.TYPE_BYTE_GRAY, rows);
+        BufferedImage scaled = ImageResampler.resample(img, 32, 1, ImageResampler.Filter.LANCZOS);
+        // Away from the edges, the enlarged samples lie between their neighbors.
+        for (int x = 8; x < 24; x++) {
+            int expected = (int) Math.round(64 + ((x + 0.5) / 2 - 0.5) * 8);
+            assertEquals(expected, scaled.getRaster().getSample(x, 0, 0), 1);
+        }
+    }
+
+    @Test
+    public void selectsFilterByScale()
+    {
+        // A 2x reduction averages the pixels rather than ringing at the edge.
+        BufferedImage img = gray(BufferedImage.TYPE_BYTE_GRAY, new int[][] {
+                { 0, 0, 0, 0, 255, 255, 255, 255 },
+                { 0, 0, 0, 0, 255, 255, 255, 255 }
+        });
+        BufferedImage scaled = ImageResampler.resample(img, 4, 1);
+        int[] expected = { 0, 0, 255, 255 };
+        for (int x = 0; x < 4; x++) {
+            assertEquals(expected[x], scaled.getRaster().getSample(x, 0, 0));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidDimensions()
+    {
+        ImageResampler.resample(new BufferedImage(4, 4, BufferedImage.TYPE_BYTE_GRAY), 0, 2);
+    }
+
+    private static BufferedImage gray(
+            int type,
+            int[][] rows
+    )
+    {
+        BufferedImage img = new BufferedImage(rows[0].length, rows.length, type);
+        WritableRaster raster = img.getRaster();
+        for (int y = 0; y < rows.length; y++) {
+            for (int x = 0; x < rows[y].length; x++) {
+                raster.setSample(x, y, 0, rows[y][x]);
+            }
+        }
+        return img;
+    }
+}
@@ -0,0 +1,193 @@
+package edu.umich.mlib;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResultCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path cacheDir;
+    private File inputDir;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        cacheDir = folder.getRoot().toPath().resolve("cache");
+        inputDir = folder.newFolder("input");
+    }
+
+    @Test
+    public void runOptionsDoNotChangeKey() throws Exception
+    {
+        List<String> base = ResultCache.getOptions(parse("-r", "80", "-c", "png"));
+        assertEquals(base, ResultCache.getOptions(parse("-r", "80", "-j", "4", "-c", "png")));
+        assertEquals(base, ResultCache.getOptions(parse("-r", "80", "-c", "png", "--journal", "--resume")));
+        assertFalse(base.equals(ResultCache.getOptions(parse("-r", "70", "-c", "png"))));
+
+        // Entries stored by one run are restored by another with other
+        // run options, in another option order.
+        ResultCache cache = new ResultCache(cacheDir, ResultCache.DEFAULT_MAX_SIZE);
+        File pdfFile = input("book", 'a');
+        File output = output("book.txt", 10);
+        cache.open("optimize", base, pdfFile).store(Collections.singletonList(output));
+        assertTrue(output.delete());
+
+        List<String> other = ResultCache.getOptions(parse("-j", "2", "-c", "png", "--journal", "-r", "80"));
+        assertTrue(cache.open("OPTIMIZE", other, pdfFile).restore());
+        assertTrue(output.exists());
+
+        assertFalse(cache.open("optimize", ResultCache.getOptions(parse("-r", "70", "-c", "png")),
+                pdfFile).restore());
+        assertFalse(cache.open("cover", base, pdfFile).restore());
+    }
+
+    @Test
+    public void storeAndRestore() throws Exception
+    {
+        ResultCache cache = new ResultCache(cacheDir, ResultCache.DEFAULT_MAX_SIZE);
+        File pdfFile = input("book", 'a');
+        File webFile = input("web", 'w');
+        List<String> options = Collections.singletonList("r=80");
+        assertFalse(cache.open("optimize", options, pdfFile, webFile).restore());
+
+        File output = output("book.txt", 10);
+        File outputDir = new File(inputDir, "book_images");
+        assertTrue(new File(outputDir, "sub").mkdirs());
+        File image = output("book_images/sub/Page_0001.jpg", 20);
+        byte[] imageData = Files.readAllBytes(image.toPath());
+        // Missing outputs are skipped.
+        cache.open("optimize", options, pdfFile, webFile).store(Arrays.asList(output, outputDir,
+                new File(inputDir, "book_missing.txt")));
+        assertTrue(output.delete());
+        assertTrue(image.delete());
+
+        assertTrue(cache.open("optimize", options, pdfFile, webFile).restore());
+        assertEquals(10, output.length());
+        assertArrayEquals(imageData, Files.readAllBytes(image.toPath()));
+        assertFalse(new File(inputDir, "book_missing.txt").exists());
+
+        // Another input, or a missing other input, is another entry.
+        Files.write(webFile.toPath(), "changed".getBytes(StandardCharsets.UTF_8));
+        assertFalse(cache.open("optimize", options, pdfFile, webFile).restore());
+        assertFalse(cache.open("optimize", options, pdfFile, (File) null).restore());
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception
+    {
+        // Room for two entries of 100 bytes.
+        ResultCache cache = new ResultCache(cacheDir, 250);
+        List<String> options = Collections.emptyList();
+        File first = input("first", '1');
+        File second = input("second", '2');
+        File third = input("third", '3');
+        cache.open("optimize", options, first).store(Collections.singletonList(output("first.txt", 100)));
+        cache.open("optimize", options, second).store(Collections.singletonList(output("second.txt", 100)));
+        assertEquals(2, countEntries());
+
+        // Both stored in the past, then the first is used again.
+        long past = System.currentTimeMillis() - 60000;
+        try (Stream<Path> entries = listEntries()) {
+            for (Path entryDir : (Iterable<Path>) entries::iterator) {
+                Files.setLastModifiedTime(entryDir, FileTime.fromMillis(past));
+            }
+        }
+        assertTrue(cache.open("optimize", options, first).restore());
+
+        cache.open("optimize", options, third).store(Collections.singletonList(output("third.txt", 100)));
+        assertEquals(2, countEntries());
+        assertTrue(cache.open("optimize", options, first).restore());
+        assertFalse(cache.open("optimize", options, second).restore());
+        assertTrue(cache.open("optimize", options, third).restore());
+
+        // An entry larger than the cache is removed once stored.
+        File large = input("large", 'l');
+        cache.open("optimize", options, large).store(Collections.singletonList(output("large.txt", 300)));
+        assertFalse(cache.open("optimize", options, large).restore());
+    }
+
+    /**
+     * Parse arguments with the run options and some which change the
+     * outputs.
+     */
+    private static CommandLine parse(
+            String... args
+    ) throws Exception
+    {
+        Options options = new Options();
+        options.addOption("r", "resolution", true, "Resolution");
+        options.addOption("c", "compression", true, "Compression");
+        options.addOption("j", "threads", true, "Worker threads");
+        options.addOption(null, "journal", false, "Journal");
+        options.addOption(null, "resume", false, "Resume");
+        return new DefaultParser().parse(options, args);
+    }
+
+    /**
+     * Write an input file, its content distinct for each fill byte.
+     */
+    private File input(
+            String baseName,
+            char fill
+    ) throws Exception
+    {
+        File file = new File(inputDir, baseName + ".pdf");
+        byte[] data = new byte[64];
+        Arrays.fill(data, (byte) fill);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    /**
+     * Write an output file of a size, relative to the input directory.
+     */
+    private File output(
+            String name,
+            int size
+    ) throws Exception
+    {
+        File file = new File(inputDir, name);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i + name.length());
+        }
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private Stream<Path> listEntries() throws Exception
+    {
+        return Files.walk(cacheDir, 2)
+                .filter(path -> path.getNameCount() == cacheDir.getNameCount() + 2)
+                .filter(path -> path.getParent().getFileName().toString().length() == 2);
+    }
+
+    private long countEntries() throws Exception
+    {
+        try (Stream<Path> entries = listEntries()) {
+            return entries.count();
+        }
+    }
+}